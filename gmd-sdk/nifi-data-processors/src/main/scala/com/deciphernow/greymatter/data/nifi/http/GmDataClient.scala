@@ -1,5 +1,7 @@
 package com.deciphernow.greymatter.data.nifi.http
 
+import java.nio.charset.StandardCharsets
+
 import io.circe.{Decoder, Printer}
 import io.circe.fs2._
 import org.http4s.client.Client
@@ -11,14 +13,20 @@ import io.circe.syntax._
 import io.circe.parser.decode
 import cats.implicits._
 import fs2.Stream
-import cats.effect.{IO, Sync}
+import cats.effect.{Async, IO, Sync}
 import com.deciphernow.greymatter.data.nifi.processors.utils.ErrorHandling
 import org.http4s.Status.Successful
 
+import scala.concurrent.duration.FiniteDuration
+
 trait GmDataClient[F[_]] extends Http4sClientDsl[F] with ErrorHandling {
 
   implicit val securityDecoder = Decoder[Security].either(Decoder[Map[String, String]]).map(_.left.toOption)
 
+  private val configResponses = new ResponseCache[F, Config]
+
+  private val selfResponses = new ResponseCache[F, SelfResponse]
+
   def defaultHandleResponseFunction[X](request: F[Request[F]])(implicit decoder: Decoder[X], F: Sync[F]): PartialFunction[Response[F], F[X]] = {
     case Successful(resp) => resp.as[String].map { response =>
       decode[X](response) match {
@@ -47,7 +55,7 @@ trait GmDataClient[F[_]] extends Http4sClientDsl[F] with ErrorHandling {
     }
   } yield stream
 
-  def gmDataError[X](response: Response[F], request: Request[F])(implicit d: Decoder[X], F: Sync[F]): F[X] = response.as[String].map(err => throw new Throwable(s"There was an error response from ${request.uri} with response code ${response.status.code}: $err"))
+  def gmDataError[X](response: Response[F], request: Request[F])(implicit d: Decoder[X], F: Sync[F]): F[X] = response.as[String].map(err => throw new GmDataError(response.status.code, err, s"There was an error response from ${request.uri} with response code ${response.status.code}: $err"))
 
   private def get[X](path: Uri)(client: Client[F], headers: Headers)(implicit F: Sync[F], decoder: Decoder[X]): F[X] = writeToGmData[X](client, headers, Method.GET(path), defaultHandleResponseFunction)
 
@@ -55,28 +63,96 @@ trait GmDataClient[F[_]] extends Http4sClientDsl[F] with ErrorHandling {
 
   protected def getConfig(rootUrl: Uri, client: Client[F], headers: Headers)(implicit F: Sync[F]): F[Config] = get(rootUrl / "config")(client: Client[F], headers: Headers)
 
+  /** Like [[getConfig]], reusing the answer for the same Remote Url and headers until the TTL expires. */
+  protected def getCachedConfig(rootUrl: Uri, client: Client[F], headers: Headers, ttl: FiniteDuration)(implicit F: Async[F]): F[Config] = configResponses(rootUrl, headers, ttl)(getConfig(rootUrl, client, headers))
+
+  /** Like [[getSelf]], reusing the answer for the same Remote Url and headers until the TTL expires. */
+  protected def getCachedSelf(rootUrl: Uri, client: Client[F], headers: Headers, ttl: FiniteDuration)(implicit F: Async[F]): F[SelfResponse] = selfResponses(rootUrl, headers, ttl)(getSelf(rootUrl, client, headers))
+
   protected def getProps[X](path: Uri.Path, headers: Headers, rootUrl: Uri, client: Client[F])(implicit decoder: Decoder[X], F: Sync[F]): F[X] = get(rootUrl / "props" / path)(client: Client[F], headers: Headers)
 
   protected def getFolderProps(path: Uri.Path, headers: Headers)(implicit rootUrl: Uri, client: Client[F], F: Sync[F]) = getProps[Metadata](path, headers, rootUrl, client)
 
   protected def getPropsAndStatus(path: Uri.Path, headers: Headers, rootUrl: Uri, client: Client[F])(implicit F: Sync[F]): F[GmDataResponse[String]] = writeToGmData(client, headers, Method.GET(parseUrl(s"$rootUrl/props/$path")), getRawResponse)
 
+  /**
+    * Like [[getPropsAndStatus]], sending the extra headers along, and also returning the ETag and Last-Modified headers
+    * of the response, with which the properties can be revalidated later.
+    */
+  protected def getPropsStatusAndValidators(path: Uri.Path, headers: Headers, extraHeaders: Headers, rootUrl: Uri, client: Client[F])(implicit F: Sync[F]): F[(GmDataResponse[String], Headers)] = {
+    val request = Method.GET(parseUrl(s"$rootUrl/props/$path")).map(_.withHeaders(headers ++ extraHeaders))
+    client.fetch(request) { response =>
+      getRawResponse(request)(F)(response).map(_ -> Headers(response.headers.toList.filter(header => validatorHeaders.contains(header.name.value.toLowerCase))))
+    }
+  }
+
+  /**
+    * Like [[getPropsAndStatus]], handing the body of the answer to `consume` as it streams in instead of reading it into
+    * a string. The body of an error response is replaced by the same message as with getPropsAndStatus.
+    */
+  protected def streamPropsAndStatus[X](path: Uri.Path, headers: Headers, rootUrl: Uri, client: Client[F])(consume: (Int, Stream[F, Byte]) => F[X])(implicit F: Sync[F]): F[X] = {
+    val request = Method.GET(parseUrl(s"$rootUrl/props/$path")).map(_.withHeaders(headers))
+    client.fetch(request) {
+      case Successful(response) => consume(response.status.code, response.body)
+      case response => getRawResponse(request)(F)(response).flatMap(error => consume(error.statusCode, Stream.emits(error.response.getBytes(StandardCharsets.UTF_8))))
+    }
+  }
+
+  private val validatorHeaders = Set("etag", "last-modified")
+
   private def getList[X](path: Uri.Path, headers: Headers)(implicit rootUrl: Uri, client: Client[F], decoder: Decoder[X], F: Sync[F]): F[List[X]] = get(parseUrl(s"$rootUrl/list/$path"))(client: Client[F], headers: Headers)
 
   protected def getFileList(path: Uri.Path, headers: Headers)(implicit rootUrl: Uri, client: Client[F], F: Sync[F]) = getList[Metadata](path, headers)
 
-  protected def streamFileList(path: Uri.Path, headers: Headers)(implicit rootUrl: Uri, client: Client[F], F: Sync[F]) = streamFromGMData[Metadata](client, headers, Method.GET(parseUrl(s"$rootUrl/list/$path")))
+  /**
+    * Streams the listing of a folder. When a page size is given, the listing is requested `count` objects at a time,
+    * following the tstamp of the last object on each page as the `last` cursor until a short page is returned, so only
+    * one page is held in memory at a time.
+    */
+  protected def streamFileList(path: Uri.Path, headers: Headers, pageSize: Option[Int] = None)(implicit rootUrl: Uri, client: Client[F], F: Sync[F]): Stream[F, Metadata] = pageSize match {
+    case Some(count) => streamFileListPages(parseUrl(s"$rootUrl/list/$path"), count, headers, None)
+    case None => streamFromGMData[Metadata](client, headers, Method.GET(parseUrl(s"$rootUrl/list/$path")))
+  }
+
+  /**
+    * Requests the page that follows `boundary`, the tstamp of the last object listed so far along with the objects
+    * listed at that tstamp. Since `last` skips every object of its tstamp, the page is requested from the tstamp just
+    * before the boundary with room for the objects already listed at it, and those are dropped from the page. This way
+    * no object is skipped when several share the tstamp at the end of a page, however many they are.
+    */
+  private def streamFileListPages(url: Uri, count: Int, headers: Headers, boundary: Option[(Long, Set[String])])(implicit client: Client[F], F: Sync[F]): Stream[F, Metadata] = {
+    val requested = count + boundary.fold(0)(_._2.size)
+    val pageUrl = boundary.fold(url)(last => url.withQueryParam("last", (last._1 - 1).toHexString)).withQueryParam("count", requested)
+    def listedAt(tstamp: Long)(metadata: Metadata) = metadata.tstamp.exists(java.lang.Long.parseLong(_, 16) == tstamp)
+    Stream.eval(get[List[Metadata]](pageUrl)(client, headers)).flatMap { page =>
+      val listed = page.filterNot(metadata => boundary.exists { case (tstamp, keys) => listedAt(tstamp)(metadata) && keys.contains(pageKey(metadata)) })
+      val next = page.lastOption.flatMap(_.tstamp).map(java.lang.Long.parseLong(_, 16)).filter(_ => page.length >= requested && listed.nonEmpty).map { tstamp =>
+        tstamp -> (page.filter(listedAt(tstamp)).map(pageKey).toSet ++ boundary.filter(_._1 == tstamp).fold(Set[String]())(_._2))
+      }
+      Stream.emits(listed) ++ next.fold[Stream[F, Metadata]](Stream.empty)(last => streamFileListPages(url, count, headers, Some(last)))
+    }
+  }
 
-  protected def writeFolder(metadata: List[Metadata], rootUrl: Uri, headers: Headers)(implicit client: Client[F], F: Sync[F]) = {
+  private def pageKey(metadata: Metadata) = metadata.oid.getOrElse(metadata.name)
+
+  protected def writeFolder(metadata: List[Metadata], rootUrl: Uri, headers: Headers)(implicit client: Client[F], F: Sync[F]) = writeFolders(metadata, rootUrl, headers).map(_.head)
+
+  /** Writes all the folders in a single request and returns the metadata of every folder written. */
+  protected def writeFolders(metadata: List[Metadata], rootUrl: Uri, headers: Headers)(implicit client: Client[F], F: Sync[F]) = {
     val printer = Printer.spaces2.copy(dropNullValues = true)
     val body = metadata.asJson.pretty(printer)
     val multipart = Multipart[F](Vector(Part.formData("meta", body)))
     val request = Method.POST(multipart, rootUrl / "write")
-    writeToGmData[List[Metadata]](client, multipart.headers ++ headers, request, defaultHandleResponseFunction).map(_.head)
+    writeToGmData[List[Metadata]](client, multipart.headers ++ headers, request, defaultHandleResponseFunction)
   }
 
-  def getUserFolder(rootUrl: Uri, headers: Headers, config: Config, client: Client[F])(implicit F: Sync[F]) =
-    getSelf(rootUrl, client, headers).attempt.map(_.flatMap(_.getUserField(config.GMDATA_NAMESPACE_USERFIELD))).map(handleErrorAndContinue("There was an error hitting the /self endpoint of GM Data"))
+  def getUserFolder(rootUrl: Uri, headers: Headers, config: Config, client: Client[F])(implicit F: Sync[F]) = userFolder(getSelf(rootUrl, client, headers), config)
+
+  /** Like [[getUserFolder]], reusing the answer of /self for the same Remote Url and headers until the TTL expires. */
+  def getCachedUserFolder(rootUrl: Uri, headers: Headers, config: Config, client: Client[F], ttl: FiniteDuration)(implicit F: Async[F]) = userFolder(getCachedSelf(rootUrl, client, headers, ttl), config)
+
+  private def userFolder(self: F[SelfResponse], config: Config)(implicit F: Sync[F]) =
+    self.attempt.map(_.flatMap(_.getUserField(config.GMDATA_NAMESPACE_USERFIELD))).map(handleErrorAndContinue("There was an error hitting the /self endpoint of GM Data"))
 
   private def parseUrl(string: String) = Uri.fromString(string) match {
     case Right(url) => url
@@ -91,3 +167,15 @@ case class SelfResponse(values: Map[String, Option[List[String]]]) {
 }
 
 case class GmDataResponse[X](response: X, statusCode: Int)
+
+/** An error response of GM Data, with its status code and body. */
+class GmDataError(val statusCode: Int, val body: String, message: String) extends Throwable(message) {
+
+  /** Whether GM Data refused to write a folder because its name is already taken in its parent. */
+  def isDuplicateName = statusCode == 409 || (statusCode == 400 && body.toLowerCase.contains(GmDataError.duplicateName))
+}
+
+object GmDataError {
+
+  val duplicateName = "already exists"
+}
@@ -1,5 +1,9 @@
 package com.deciphernow.greymatter.data.nifi.http
 
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+
+import com.deciphernow.greymatter.data.nifi.processors.utils.ConcurrentLru
 import io.circe.Json
 import io.circe.generic.auto._
 import io.circe.syntax._
@@ -22,7 +26,8 @@ case class Metadata(parentoid: String,
                     isfile: Option[Boolean] = Some(true),
                     allowPartialPermissions: Option[Boolean] = None,
                     sha256plain: Option[String] = None,
-                    rootUrlOption: Option[String] = None) extends ListableEntity {
+                    rootUrlOption: Option[String] = None,
+                    childCount: Option[Long] = None) extends ListableEntity {
 
   lazy val folder = isfile.isEmpty || !isfile.get || (isdir.nonEmpty && isdir.get)
 
@@ -37,13 +42,48 @@ case class Metadata(parentoid: String,
     "gmdata.fileurl" -> oid.flatMap(id => rootUrlOption.map(rootUrl => s"$rootUrl/stream/$id")),
     "gmdata.oid" -> oid,
     "gmdata.parentoid" -> Option(parentoid),
-    "gmdata.objectpolicy" -> Option(objectpolicy.noSpaces),
+    "gmdata.objectpolicy" -> Option(internedPolicy.rendered),
     "gmdata.originalobjectpolicy" -> originalObjectPolicy,
-    "gmdata.security" -> security.map(_.asJson.noSpaces),
+    "gmdata.security" -> security.map(Metadata.internSecurity),
     "gmdata.custom" -> custom.map(_.noSpaces),
-    "gmdata.sha256" -> sha256plain).filterNot(_._2.isEmpty).mapValues(_.get)
+    "gmdata.sha256" -> sha256plain).collect { case (key, Some(value)) => key -> value }
+
+  def fileOwner = internedPolicy.owner
+
+  private def internedPolicy = Metadata.internPolicy(objectpolicy)
+
+  def getName = name
+
+  def getIdentifier = oid.get
+
+  def getTimestamp = java.lang.Long.valueOf(tstamp.get, 16)
+
+  def getSize = size.getOrElse(0)
+}
+
+/**
+  * Listings hold millions of files that share a few dozen object policies, so the values derived from a policy are
+  * computed once per distinct policy and the same instances are shared by every file that has it. Policies are looked
+  * up by their compact rendering, which hashes and compares far faster than the JSON tree, and the caches keep the
+  * `maxInternedValues` most recently used entries.
+  */
+object Metadata {
+
+  private val maxInternedValues = 10000
 
-  def fileOwner = objectpolicy.as[ObjectPolicy].toOption.flatMap(objPolicy => getFileOwner(objPolicy.requirements))
+  private val cruxpMap = "CRUDXP".map(letter => Requirements(v = Some(letter.toString))).toList.sortBy(_.v)
+
+  private val successfulRequirements = List(Requirements(Some("yield"), Some(cruxpMap)), Requirements(Some("yield-all")))
+
+  private val internedPolicies = new ConcurrentLru[String, InternedPolicy](maxInternedValues)
+
+  private val internedSecurity = new ConcurrentLru[Security, String](maxInternedValues)
+
+  def internPolicy(objectpolicy: Json): InternedPolicy = internedPolicies.getOrElseUpdate(objectpolicy.noSpaces) { rendered =>
+    InternedPolicy(rendered, objectpolicy.as[ObjectPolicy].toOption.flatMap(objPolicy => getFileOwner(objPolicy.requirements)))
+  }
+
+  def internSecurity(security: Security): String = internedSecurity.getOrElseUpdate(security)(_.asJson.noSpaces)
 
   private def getInnerFileOwner(requirements: Requirements): Option[String] = {
     requirements.f.flatMap { f =>
@@ -58,8 +98,6 @@ case class Metadata(parentoid: String,
   }
 
   private def getFileOwner(requirements: Requirements, lastRequirements: Option[Requirements] = None): Option[String] = {
-    val cruxpMap = "CRUDXP".map(letter => Requirements(v = Some(letter.toString))).toList.sortBy(_.v)
-    val successfulRequirements = List(Requirements(Some("yield"), Some(cruxpMap)), Requirements(Some("yield-all")))
     val sortedRequirements = requirements.copy(a = requirements.a.map(_.sortBy(_.v)))
     if (successfulRequirements.contains(sortedRequirements)) lastRequirements.flatMap(getInnerFileOwner)
     else requirements.a.flatMap {
@@ -69,14 +107,11 @@ case class Metadata(parentoid: String,
       }._2
     }
   }
+}
 
-  def getName = name
-
-  def getIdentifier = oid.get
-
-  def getTimestamp = java.lang.Long.valueOf(tstamp.get, 16)
-
-  def getSize = size.getOrElse(0)
+/** The rendering of an object policy, the file owner found in it and the SHA-256 of the rendering. */
+case class InternedPolicy(rendered: String, owner: Option[String]) {
+  lazy val hash = MessageDigest.getInstance("SHA-256").digest(rendered.getBytes(StandardCharsets.UTF_8)).map("%02x".format(_)).mkString
 }
 
 case class ObjectPolicy(label: String, requirements: Requirements)
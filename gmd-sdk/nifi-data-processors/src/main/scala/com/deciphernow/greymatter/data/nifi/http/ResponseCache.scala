@@ -0,0 +1,34 @@
+package com.deciphernow.greymatter.data.nifi.http
+
+import cats.effect.Async
+import cats.implicits._
+import com.deciphernow.greymatter.data.nifi.processors.utils.{ConcurrentLru, SingleFlight}
+import org.http4s.{Headers, Uri}
+
+import scala.concurrent.duration.FiniteDuration
+
+/**
+  * The answers of a GM Data endpoint that only depend on the Remote Url and the headers sent, such as /config and
+  * /self, kept until they expire. Concurrent requests for an answer that is not cached share a single request, and a
+  * failed request is not cached. Up to `maxEntries` answers are kept, and the least recently used answers are evicted
+  * to make room for new ones.
+  */
+class ResponseCache[F[_], V](maxEntries: Int = ResponseCache.maxEntries) {
+
+  private val entries = new ConcurrentLru[(Uri, Headers), (Long, V)](maxEntries)
+
+  private val loading = new SingleFlight[F, (Uri, Headers), V]
+
+  def apply(rootUrl: Uri, headers: Headers, ttl: FiniteDuration)(load: F[V])(implicit F: Async[F]): F[V] = if (ttl.length <= 0) load else {
+    val key = (rootUrl, headers)
+    F.delay(entries.get(key).collect { case (expires, value) if expires > System.currentTimeMillis => value }).flatMap {
+      case Some(value) => F.pure(value)
+      case None => loading(key)(load.flatTap(value => F.delay(entries.put(key, (System.currentTimeMillis + ttl.toMillis, value)))))
+    }
+  }
+}
+
+object ResponseCache {
+
+  val maxEntries = 1000
+}
@@ -1,19 +1,16 @@
 package com.deciphernow.greymatter.data.nifi.processors
-import java.util.concurrent.Executors
-
 import cats.effect.concurrent.Ref
-import cats.effect.{Blocker, ContextShift, IO, Timer}
+import cats.effect.{ContextShift, IO, Timer}
 import cats.implicits._
-import com.deciphernow.greymatter.data.nifi.processors.utils.GetFilePropertiesUtils
+import com.deciphernow.greymatter.data.nifi.processors.utils.{ClientResource, GetFilePropertiesUtils, PropsCache}
 import org.apache.nifi.annotation.behavior.{DynamicProperty, ReadsAttribute, ReadsAttributes, WritesAttribute, WritesAttributes}
 import org.apache.nifi.expression.ExpressionLanguageScope
-import org.http4s.client.JavaNetClientBuilder
 
 import scala.concurrent.ExecutionContext
 
 // NiFi
 import org.apache.nifi.annotation.documentation.{ CapabilityDescription, Tags }
-import org.apache.nifi.annotation.lifecycle.OnScheduled
+import org.apache.nifi.annotation.lifecycle.{OnScheduled, OnStopped}
 import org.apache.nifi.components.PropertyDescriptor
 import org.apache.nifi.processor._
 
@@ -26,7 +23,8 @@ import org.apache.nifi.processor._
 ))
 @WritesAttributes(Array(
   new WritesAttribute(attribute = "gmdata.status.code", description="The status code returned by GM Data when calling the props endpoint."),
-  new WritesAttribute(attribute = "gmdata.file.props", description="The raw metadata of a file from GM Data or an error response.")
+  new WritesAttribute(attribute = "gmdata.file.props", description="The raw metadata of a file from GM Data or an error response."),
+  new WritesAttribute(attribute = "gmdata.file.props.*", description="When the Output Destination is content or parsed, each of the Extracted Fields of a successful response.")
 ))
 class GetFileProperties extends AbstractProcessor with GetFilePropertiesUtils {
 
@@ -37,24 +35,30 @@ class GetFileProperties extends AbstractProcessor with GetFilePropertiesUtils {
   }
 
   override def getRelationships: java.util.Set[Relationship] = {
-    relationships.asJava
+    (relationships + RelResponse).asJava
   }
 
   private lazy implicit val ec = ExecutionContext.global
   private lazy implicit val cs: ContextShift[IO] = IO.contextShift(ec)
   private lazy implicit val timer: Timer[IO] = IO.timer(ec)
-  private lazy val blockingPool = Executors.newFixedThreadPool(5)
-  private lazy val blocker = Blocker.liftExecutorService(blockingPool)
-  private lazy val clientRef = Ref[IO].of(JavaNetClientBuilder[IO](blocker).create).unsafeRunSync()
+  private lazy val clientRef = Ref[IO].of(ClientResource.unavailable).unsafeRunSync()
+  private lazy val propsCacheRef = Ref[IO].of(PropsCache.disabled).unsafeRunSync()
 
   @OnScheduled
-  def onScheduled(context: ProcessContext) = initializeClient(context, blocker, clientRef)
+  def onScheduled(context: ProcessContext) = {
+    initializeClient(context, clientRef)
+    propsCacheRef.set(new PropsCache(parsePropsCacheSize(context), parsePropsCacheTtl(context))).unsafeRunSync()
+  }
+
+  // The client is only released once the triggers still running after @OnUnscheduled have finished
+  @OnStopped
+  def onStopped(): Unit = releaseClient(clientRef)
 
   override def getSupportedDynamicPropertyDescriptor(name: String): PropertyDescriptor = dynamicProperty(name)
 
   override def onTrigger(context: ProcessContext, session: ProcessSession) = (for {
     logger <- IO.delay(getLogger)
     flowfileEither <- getFlowFile(session, logger)
-    result <- flowfileEither.flatTraverse(getFileProps(context, session, _, logger, clientRef, cs))
+    result <- flowfileEither.flatTraverse(getFileProps(context, session, _, logger, clientRef, propsCacheRef, cs))
   } yield result).unsafeRunSync()
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+package com.deciphernow.greymatter.data.nifi.processors
+import cats.effect.concurrent.Ref
+import cats.effect.{ContextShift, IO, Timer}
+import cats.implicits._
+import com.deciphernow.greymatter.data.nifi.processors.utils.{ClientResource, GetFilePropertiesRecordUtils}
+import org.apache.nifi.annotation.behavior.{DynamicProperty, WritesAttribute, WritesAttributes}
+import org.apache.nifi.expression.ExpressionLanguageScope
+
+import scala.concurrent.ExecutionContext
+
+// NiFi
+import org.apache.nifi.annotation.documentation.{ CapabilityDescription, SeeAlso, Tags }
+import org.apache.nifi.annotation.lifecycle.{OnScheduled, OnStopped}
+import org.apache.nifi.components.PropertyDescriptor
+import org.apache.nifi.processor._
+
+@Tags(Array("gmdata", "record"))
+@CapabilityDescription("Retrieves the file properties of the GMData objects named by the path and filename fields of each record, and writes the records with the status, oid, tstamp, size, sha256 and error of each answer added.")
+@SeeAlso(Array(classOf[GetFileProperties]))
+@DynamicProperty(name = "Header Name", value = "Attribute Expression Language", expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES, description = "Send request header with a key matching the Dynamic Property Key and a value created by evaluating the Attribute Expression Language set in the value of the Dynamic Property.")
+@WritesAttributes(Array(
+  new WritesAttribute(attribute = "record.count", description = "The number of records written."),
+  new WritesAttribute(attribute = "mime.type", description = "The MIME type of the Record Writer.")
+))
+class GetFilePropertiesRecord extends AbstractProcessor with GetFilePropertiesRecordUtils {
+
+  import scala.collection.JavaConverters._
+
+  override def getSupportedPropertyDescriptors: java.util.List[PropertyDescriptor] = {
+    getFilePropertiesRecordProperties.asJava
+  }
+
+  override def getRelationships: java.util.Set[Relationship] = {
+    relationships.asJava
+  }
+
+  private lazy implicit val ec = ExecutionContext.global
+  private lazy implicit val cs: ContextShift[IO] = IO.contextShift(ec)
+  private lazy implicit val timer: Timer[IO] = IO.timer(ec)
+  private lazy val clientRef = Ref[IO].of(ClientResource.unavailable).unsafeRunSync()
+
+  @OnScheduled
+  def onScheduled(context: ProcessContext) = initializeClient(context, clientRef)
+
+  // The client is only released once the triggers still running after @OnUnscheduled have finished
+  @OnStopped
+  def onStopped(): Unit = releaseClient(clientRef)
+
+  override def getSupportedDynamicPropertyDescriptor(name: String): PropertyDescriptor = dynamicProperty(name)
+
+  override def onTrigger(context: ProcessContext, session: ProcessSession) = (for {
+    logger <- IO.delay(getLogger)
+    flowfileEither <- getFlowFile(session, logger)
+    result <- flowfileEither.flatTraverse(getRecordProps(context, session, _, logger, clientRef, cs))
+  } yield result).unsafeRunSync()
+}
@@ -1,21 +1,20 @@
 package com.deciphernow.greymatter.data.nifi.processors
 
-import java.util.concurrent.Executors
+import java.nio.file.Paths
 
 import cats.effect.concurrent.Ref
-import cats.effect.{Blocker, ContextShift, IO}
+import cats.effect.{ContextShift, IO}
 import cats.implicits._
-import com.deciphernow.greymatter.data.nifi.processors.utils.GetOidForPathUtils
+import com.deciphernow.greymatter.data.nifi.processors.utils.{ClientResource, FolderOidCache, FolderOidLog, GetOidForPathUtils}
 import org.apache.nifi.annotation.behavior.{DynamicProperty, WritesAttribute, WritesAttributes}
 import org.apache.nifi.expression.ExpressionLanguageScope
-import org.http4s.client.JavaNetClientBuilder
 
 import scala.concurrent.ExecutionContext
 
 // NiFi
 import org.apache.nifi.annotation.behavior.{ ReadsAttribute, ReadsAttributes }
 import org.apache.nifi.annotation.documentation.{ CapabilityDescription, SeeAlso, Tags }
-import org.apache.nifi.annotation.lifecycle.OnScheduled
+import org.apache.nifi.annotation.lifecycle.{OnScheduled, OnStopped, OnUnscheduled}
 import org.apache.nifi.components.PropertyDescriptor
 import org.apache.nifi.processor._
 
@@ -39,19 +38,32 @@ class GetOidForPath extends AbstractProcessor with GetOidForPathUtils {
 
   private lazy implicit val ec = ExecutionContext.global
   private lazy implicit val ctxShift: ContextShift[IO] = IO.contextShift(ec)
-  private lazy val blockingPool = Executors.newFixedThreadPool(5)
-  private lazy val blocker = Blocker.liftExecutorService(blockingPool)
-  private lazy val clientRef = Ref[IO].of(JavaNetClientBuilder[IO](blocker).create).unsafeRunSync()
+  private lazy val clientRef = Ref[IO].of(ClientResource.unavailable).unsafeRunSync()
+  private lazy val folderOidCache = new FolderOidCache
 
   @OnScheduled
-  def onScheduled(context: ProcessContext) = initializeClient(context, blocker, clientRef)
+  def onScheduled(context: ProcessContext) = {
+    initializeClient(context, clientRef)
+    folderOidCache.open(parseFolderIndexDirectory(context).map(directory => FolderOidLog(Paths.get(directory, s"$getIdentifier.folders"))), System.currentTimeMillis)
+  }
+
+  /** Writes the folders cached so far as soon as the processor is unscheduled, while the running triggers finish. */
+  @OnUnscheduled
+  def onUnscheduled(): Unit = folderOidCache.flush()
+
+  @OnStopped
+  def onStopped(): Unit = {
+    releaseClient(clientRef)
+    folderOidCache.flush()
+  }
 
   override def getSupportedDynamicPropertyDescriptor(name: String): PropertyDescriptor = dynamicProperty(name)
   override def onTrigger(context: ProcessContext, session: ProcessSession) = {
     for{
       logger <- IO.delay(getLogger)
-      flowFileEither <- getFlowFile(session, logger)
-      result <- flowFileEither.flatTraverse(startProcessing(logger)(context, session, _, clientRef, ctxShift))
+      flowFilesEither <- getFlowFiles(session, logger, parseBatchSize(context))
+      result <- flowFilesEither.flatTraverse(startProcessing(logger)(context, session, _, clientRef, folderOidCache, ctxShift))
+      _ <- IO.delay(folderOidCache.flush())
     } yield result
   }.unsafeRunSync()
 }
@@ -6,6 +6,11 @@ import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.deciphernow.greymatter.data.nifi.processors.utils.ResponseOutput;
+import com.deciphernow.greymatter.data.nifi.services.GmDataClientService;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -20,6 +25,7 @@ import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.expression.AttributeExpression;
 import org.apache.nifi.expression.ExpressionLanguageScope;
@@ -42,9 +48,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -52,7 +61,12 @@ import java.security.Principal;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.apache.commons.lang3.StringUtils.trimToEmpty;
@@ -76,6 +90,8 @@ import static org.apache.commons.lang3.StringUtils.trimToEmpty;
         @WritesAttribute(attribute = "gmdata.originalobjectpolicy", description = "A compound structure containing the inputs used to produce the object policy."),
         @WritesAttribute(attribute = "gmdata.security", description = "The security banner information for the Object Policy."),
         @WritesAttribute(attribute = "gmdata.lisp", description = "Object Policy lisp conversion information"),
+        @WritesAttribute(attribute = "gmdata.*", description = "When the 'Output Destination' is content or parsed, each of the 'Extracted Fields' of the response, "
+                + "as an attribute named for its path."),
 })
 @DynamicProperty(name = "Header Name", value = "Attribute Expression Language", expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES,
         description = "Send request header with a key matching the Dynamic Property Key and a value created by evaluating "
@@ -95,6 +111,9 @@ public final class GetPolicies extends AbstractProcessor {
     // Set of HTTP header names explicitly excluded from requests.
     private static final Map<String, String> excludedHeaders = new HashMap<>();
 
+    // Writes the canonical form of the acm and permissions that conversion keys are hashed from.
+    private static final ObjectMapper canonicalMapper = new ObjectMapper().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
     // properties
     public static final PropertyDescriptor PROP_BASE_URL = new PropertyDescriptor.Builder()
             .name("Remote base URL")
@@ -136,6 +155,14 @@ public final class GetPolicies extends AbstractProcessor {
             .identifiesControllerService(SSLContextService.class)
             .build();
 
+    public static final PropertyDescriptor PROP_GM_DATA_CLIENT_SERVICE = new PropertyDescriptor.Builder()
+            .name("GM Data Client Service")
+            .description("The controller service that provides a shared, pooled HTTP client. When set, connections to the remote service are "
+                    + "borrowed from the pool of the service instead of a client created by this processor.")
+            .required(false)
+            .identifiesControllerService(GmDataClientService.class)
+            .build();
+
     public static final PropertyDescriptor PROP_PUT_OUTPUT_IN_ATTRIBUTE = new PropertyDescriptor.Builder()
             .name("Put Response Body In Attribute")
             .description("If set, the response body received back will be put into an attribute of the original FlowFile instead of a separate "
@@ -164,15 +191,115 @@ public final class GetPolicies extends AbstractProcessor {
             .allowableValues("true", "false")
             .build();
 
+    public static final PropertyDescriptor PROP_OUTPUT_DESTINATION = new PropertyDescriptor.Builder()
+            .name("Output Destination")
+            .description("Where the response body is put. With attribute, the policies are put in the gmdata attributes and the body in the "
+                    + "attribute set by \"Put Response Body In Attribute\". With content, the body is streamed into a child of the FlowFile, which "
+                    + "is routed to Response Content while the FlowFile keeps its own content, and the Extracted Fields are read from it into attributes of "
+                    + "both. With parsed, only the Extracted Fields are read from the body, as it "
+                    + "streams in, and put into attributes, so the body is never held in memory.")
+            .required(true)
+            .defaultValue(ResponseOutput.attribute())
+            .allowableValues(ResponseOutput.attribute(), ResponseOutput.content(), ResponseOutput.parsed())
+            .build();
+
+    public static final PropertyDescriptor PROP_EXTRACTED_FIELDS = new PropertyDescriptor.Builder()
+            .name("Extracted Fields")
+            .description("A comma separated list of the fields of the response that are put in attributes when the Output Destination is content "
+                    + "or parsed. A nested field is named by its path, as in objectpolicy.label, and is put in the attribute gmdata.<path>. A field "
+                    + "that is an object or an array is put as JSON.")
+            .required(true)
+            .defaultValue("objectpolicy,lisp,security,originalobjectpolicy")
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROP_CONVERSION_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("Conversion Cache Size")
+            .description("The largest number of conversions kept by the processor, by a hash of the URL, the header properties and the acm and "
+                    + "permission attributes in canonical form, so that FlowFiles with the same inputs are answered without a request to the "
+                    + "Data Policy service. Concurrent FlowFiles with the same inputs share a single request. Only successful responses are kept, "
+                    + "and the least recently used one is dropped first. A value of 0 disables the cache.")
+            .required(true)
+            .defaultValue("0")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROP_CONVERSION_CACHE_TTL = new PropertyDescriptor.Builder()
+            .name("Conversion Cache TTL")
+            .description("How long a cached conversion is used without asking the Data Policy service again.")
+            .required(true)
+            .defaultValue("10 mins")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROP_CONVERSION_CACHE_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Conversion Cache Directory")
+            .description("When set, the cached conversions are also kept in a file per conversion in this directory, so that the cache starts warm "
+                    + "when the processor or NiFi is restarted and can be shared by processors with the same directory. Conversions are kept apart "
+                    + "by URL, headers and SSL Context Service. Whenever the processor is scheduled, the directory is pruned to the newest Conversion "
+                    + "Cache Size files, without the files older than the Conversion Cache TTL unless stale conversions are served, so processors "
+                    + "sharing a directory keep it to the smallest of their sizes.")
+            .required(false)
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .build();
+
+    public static final PropertyDescriptor PROP_SERVE_STALE_CONVERSIONS = new PropertyDescriptor.Builder()
+            .name("Serve Stale Conversions")
+            .description("Whether a cached conversion that is older than the Conversion Cache TTL is used when the Data Policy service cannot be "
+                    + "reached or answers with a server error (5xx).")
+            .required(true)
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .build();
+
+    public static final PropertyDescriptor PROP_BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("Batch Size")
+            .description("The largest number of FlowFiles taken at each trigger. When more than 1, the requests of the FlowFiles are sent at once, "
+                    + "within the Max Concurrent Requests and Max Concurrent Requests Per Host, and each FlowFile is transferred as its response "
+                    + "arrives, so that many requests are in flight on a single thread.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROP_MAX_REQUESTS = new PropertyDescriptor.Builder()
+            .name("Max Concurrent Requests")
+            .description("The largest number of requests of a batch that are in flight at once, across all the threads of the processor. "
+                    + "Further requests wait until one of them completes. Not used when a GM Data Client Service is set, whose shared client "
+                    + "sets its own limits.")
+            .required(true)
+            .defaultValue("64")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROP_MAX_REQUESTS_PER_HOST = new PropertyDescriptor.Builder()
+            .name("Max Concurrent Requests Per Host")
+            .description("The largest number of requests of a batch that are in flight at once to the same host, across all the threads of the processor. "
+                    + "Not used when a GM Data Client Service is set, whose shared client sets its own limits.")
+            .required(true)
+            .defaultValue("5")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
     public static final List<PropertyDescriptor> PROPERTIES = Collections.unmodifiableList(Arrays.asList(
             PROP_BASE_URL,
             PROP_SSL_CONTEXT_SERVICE,
+            PROP_GM_DATA_CLIENT_SERVICE,
             PROP_CONNECT_TIMEOUT,
             PROP_READ_TIMEOUT,
             PROP_FOLLOW_REDIRECTS,
             PROP_PUT_OUTPUT_IN_ATTRIBUTE,
             PROP_PUT_ATTRIBUTE_MAX_LENGTH,
-            PROP_ADD_HEADERS_TO_REQUEST
+            PROP_ADD_HEADERS_TO_REQUEST,
+            PROP_OUTPUT_DESTINATION,
+            PROP_EXTRACTED_FIELDS,
+            PROP_CONVERSION_CACHE_SIZE,
+            PROP_CONVERSION_CACHE_TTL,
+            PROP_CONVERSION_CACHE_DIRECTORY,
+            PROP_SERVE_STALE_CONVERSIONS,
+            PROP_BATCH_SIZE,
+            PROP_MAX_REQUESTS,
+            PROP_MAX_REQUESTS_PER_HOST
     ));
 
     // relationships
@@ -181,6 +308,12 @@ public final class GetPolicies extends AbstractProcessor {
             .description("A Response FlowFile will be routed upon success (2xx status codes).")
             .build();
 
+    public static final Relationship REL_RESPONSE_CONTENT = new Relationship.Builder()
+            .name("Response Content")
+            .description("When the Output Destination is content, a child of the request FlowFile holding the response body, with the same "
+                    + "attributes as the request FlowFile, will be routed upon success (2xx status codes).")
+            .build();
+
     public static final Relationship REL_FAILURE = new Relationship.Builder()
             .name("Failure")
             .description("The original FlowFile will be routed on any type of connection failure, timeout or general exception. "
@@ -188,12 +321,16 @@ public final class GetPolicies extends AbstractProcessor {
             .build();
 
     public static final Set<Relationship> RELATIONSHIPS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
-            REL_RESPONSE, REL_FAILURE)));
+            REL_RESPONSE, REL_RESPONSE_CONTENT, REL_FAILURE)));
 
     private volatile Set<String> dynamicPropertyNames = new HashSet<>();
 
     private final AtomicReference<OkHttpClient> okHttpClientAtomicReference = new AtomicReference<>();
 
+    private final AtomicReference<Dispatcher> dispatcherAtomicReference = new AtomicReference<>();
+
+    private final AtomicReference<PolicyConversionCache> conversionCacheAtomicReference = new AtomicReference<>();
+
     protected void init(ProcessorInitializationContext context) {
         excludedHeaders.put("Trusted Hostname", "HTTP request header '{}' excluded. " +
                 "Update processor to use the SSLContextService instead. " +
@@ -240,32 +377,73 @@ public final class GetPolicies extends AbstractProcessor {
         logger.debug("Setup");
         okHttpClientAtomicReference.set(null);
 
-        OkHttpClient.Builder okHttpClientBuilder = new OkHttpClient().newBuilder();
+        final SSLContextService sslService = context.getProperty(PROP_SSL_CONTEXT_SERVICE).asControllerService(SSLContextService.class);
+        final GmDataClientService clientService = context.getProperty(PROP_GM_DATA_CLIENT_SERVICE).asControllerService(GmDataClientService.class);
+
+        // Borrow the pooled client when a client service is configured, the TLS configuration is then applied by the service
+        OkHttpClient.Builder okHttpClientBuilder = clientService != null ? clientService.getOkHttpClient(sslService).newBuilder() : new OkHttpClient().newBuilder();
 
         // Set timeouts
         okHttpClientBuilder.connectTimeout((context.getProperty(PROP_CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue()), TimeUnit.MILLISECONDS);
         okHttpClientBuilder.readTimeout(context.getProperty(PROP_READ_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(), TimeUnit.MILLISECONDS);
 
+        // Set the limits of the requests of batches in flight at once, unless the pooled client of the service sets them
+        if (clientService == null) {
+            final Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequests(context.getProperty(PROP_MAX_REQUESTS).asInteger());
+            dispatcher.setMaxRequestsPerHost(context.getProperty(PROP_MAX_REQUESTS_PER_HOST).asInteger());
+            okHttpClientBuilder.dispatcher(dispatcher);
+            dispatcherAtomicReference.set(dispatcher);
+        }
+
         // Set whether to follow redirects
         okHttpClientBuilder.followRedirects(context.getProperty(PROP_FOLLOW_REDIRECTS).asBoolean());
 
         // Apply the TLS configuration if present
-        final SSLContextService sslService = context.getProperty(PROP_SSL_CONTEXT_SERVICE).asControllerService(SSLContextService.class);
-        if (sslService != null) {
+        if (sslService != null && clientService == null) {
             final TlsConfiguration tlsConfiguration = sslService.createTlsConfiguration();
             OkHttpClientUtils.applyTlsToOkHttpClientBuilder(tlsConfiguration, okHttpClientBuilder);
         }
 
         okHttpClientAtomicReference.set(okHttpClientBuilder.build());
+
+        // Set up the conversion cache if enabled, a new cache is started whenever the processor is scheduled
+        final int conversionCacheSize = context.getProperty(PROP_CONVERSION_CACHE_SIZE).asInteger();
+        final String conversionCacheDirectory = context.getProperty(PROP_CONVERSION_CACHE_DIRECTORY).getValue();
+        final PolicyConversionCache conversionCache = conversionCacheSize == 0 ? null : new PolicyConversionCache(
+                conversionCacheSize,
+                context.getProperty(PROP_CONVERSION_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS),
+                conversionCacheDirectory != null ? Paths.get(conversionCacheDirectory) : null,
+                context.getProperty(PROP_SERVE_STALE_CONVERSIONS).asBoolean(),
+                logger);
+        if (conversionCache != null) {
+            conversionCache.prune();
+        }
+        conversionCacheAtomicReference.set(conversionCache);
         logger.debug("Finished setup");
     }
 
+    @OnStopped
+    public void shutDownDispatcher() {
+        // Only the dispatcher of the processor is shut down, the one of a pooled client belongs to the service
+        final Dispatcher dispatcher = dispatcherAtomicReference.getAndSet(null);
+        if (dispatcher != null) {
+            dispatcher.executorService().shutdown();
+        }
+    }
+
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
         final ComponentLog logger = getLogger();
         logger.debug("Triggering");
         OkHttpClient okHttpClient = okHttpClientAtomicReference.get();
 
+        final int batchSize = context.getProperty(PROP_BATCH_SIZE).asInteger();
+        if (batchSize > 1) {
+            onTriggerBatch(context, session, okHttpClient, batchSize);
+            return;
+        }
+
         FlowFile requestFlowFile = session.get();
 
         if (requestFlowFile == null) {
@@ -273,21 +451,8 @@ public final class GetPolicies extends AbstractProcessor {
             return;
         }
 
-        // Setting some initial variables
-        final int maxAttributeSize = context.getProperty(PROP_PUT_ATTRIBUTE_MAX_LENGTH).asInteger();
-
-        // Every request/response cycle has a unique transaction id which will be stored as a flowfile attribute.
-        final UUID txId = UUID.randomUUID();
-
         try {
-            // read the url property from the context
-            final String urlstr = trimToEmpty(context.getProperty(PROP_BASE_URL).evaluateAttributeExpressions(requestFlowFile).getValue());
-            URL url;
-            if (urlstr.endsWith("/")) {
-                url = new URL(urlstr + "convert/addpermissions");
-            } else {
-                url = new URL(urlstr + "/convert/addpermissions");
-            }
+            URL url = conversionUrl(context, requestFlowFile);
 
             Request httpRequest = configureRequest(context, requestFlowFile, url);
 
@@ -301,7 +466,146 @@ public final class GetPolicies extends AbstractProcessor {
 
             final long startNanos = System.nanoTime();
 
-            try (Response responseHttp = okHttpClient.newCall(httpRequest).execute()) {
+            final PolicyConversionCache conversionCache = conversionCacheAtomicReference.get();
+            final Response executedResponse;
+            if (conversionCache == null) {
+                executedResponse = okHttpClient.newCall(httpRequest).execute();
+            } else {
+                PolicyConversionCache.Lookup lookup = conversionCache.execute(conversionKey(context, requestFlowFile, url), httpRequest,
+                        () -> okHttpClient.newCall(httpRequest).execute());
+                session.adjustCounter(lookup.counter, 1, false);
+                executedResponse = lookup.response;
+            }
+
+            handleResponse(context, session, requestFlowFile, url, startNanos, executedResponse);
+        } catch (final Exception e) {
+            handleFailure(context, session, requestFlowFile, e);
+        }
+    }
+
+    /**
+     * Sends the requests of up to a batch of FlowFiles at once, within the limits of the dispatcher of the client, and
+     * completes each FlowFile on this thread as its response arrives, since the session must not be used concurrently.
+     */
+    private void onTriggerBatch(final ProcessContext context, final ProcessSession session, final OkHttpClient okHttpClient, final int batchSize) {
+        final ComponentLog logger = getLogger();
+        final List<FlowFile> requestFlowFiles = session.get(batchSize);
+
+        if (requestFlowFiles.isEmpty()) {
+            logger.debug("The flowfile was empty");
+            return;
+        }
+
+        final PolicyConversionCache conversionCache = conversionCacheAtomicReference.get();
+        final BlockingQueue<Exchange> completed = new LinkedBlockingQueue<>();
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        int pending = 0;
+
+        for (FlowFile requestFlowFile : requestFlowFiles) {
+            try {
+                final URL url = conversionUrl(context, requestFlowFile);
+                final Request httpRequest = configureRequest(context, requestFlowFile, url);
+
+                // log request
+                logRequest(logger, httpRequest);
+
+                // emit send provenance event if successfully sent to the server
+                if (httpRequest.body() != null) {
+                    session.getProvenanceReporter().send(requestFlowFile, url.toExternalForm(), true);
+                }
+
+                final Exchange exchange = new Exchange(requestFlowFile, url, System.nanoTime());
+                final CompletableFuture<PolicyConversionCache.Lookup> lookup = conversionCache == null
+                        ? enqueue(okHttpClient, httpRequest).thenApply(response -> new PolicyConversionCache.Lookup(response, null))
+                        : conversionCache.lookup(conversionKey(context, requestFlowFile, url), httpRequest, () -> enqueue(okHttpClient, httpRequest));
+                lookup.whenComplete((result, error) -> {
+                    exchange.lookup = result;
+                    exchange.error = error;
+                    completed.add(exchange);
+                    if (abandoned.get()) {
+                        closeResponses(completed);
+                    }
+                });
+                pending++;
+            } catch (final Exception e) {
+                handleFailure(context, session, requestFlowFile, e);
+            }
+        }
+
+        try {
+            for (; pending > 0; pending--) {
+                final Exchange exchange = completed.take();
+                if (exchange.error != null) {
+                    final Throwable cause = exchange.error instanceof CompletionException && exchange.error.getCause() != null ? exchange.error.getCause() : exchange.error;
+                    handleFailure(context, session, exchange.requestFlowFile, cause);
+                    continue;
+                }
+                if (exchange.lookup.counter != null) {
+                    session.adjustCounter(exchange.lookup.counter, 1, false);
+                }
+                handleResponse(context, session, exchange.requestFlowFile, exchange.url, exchange.startNanos, exchange.lookup.response);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException("Interrupted while waiting for the responses of a batch", e);
+        } finally {
+            // release the connections of the responses that will not be handled, including those that arrive later
+            if (pending > 0) {
+                abandoned.set(true);
+                closeResponses(completed);
+            }
+        }
+    }
+
+    /** Closes the responses of the completed exchanges of a batch that are left unhandled. */
+    private static void closeResponses(final BlockingQueue<Exchange> completed) {
+        for (Exchange exchange = completed.poll(); exchange != null; exchange = completed.poll()) {
+            if (exchange.lookup != null) {
+                exchange.lookup.response.close();
+            }
+        }
+    }
+
+    private static CompletableFuture<Response> enqueue(final OkHttpClient okHttpClient, final Request httpRequest) {
+        final CompletableFuture<Response> response = new CompletableFuture<>();
+        okHttpClient.newCall(httpRequest).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                response.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response responseHttp) {
+                response.complete(responseHttp);
+            }
+        });
+        return response;
+    }
+
+    private URL conversionUrl(final ProcessContext context, final FlowFile requestFlowFile) throws MalformedURLException {
+        // read the url property from the context
+        final String urlstr = trimToEmpty(context.getProperty(PROP_BASE_URL).evaluateAttributeExpressions(requestFlowFile).getValue());
+        URL url;
+        if (urlstr.endsWith("/")) {
+            url = new URL(urlstr + "convert/addpermissions");
+        } else {
+            url = new URL(urlstr + "/convert/addpermissions");
+        }
+        return url;
+    }
+
+    private void handleResponse(final ProcessContext context, final ProcessSession session, FlowFile requestFlowFile, final URL url, final long startNanos, final Response executedResponse) {
+        final ComponentLog logger = getLogger();
+
+        // Setting some initial variables
+        final int maxAttributeSize = context.getProperty(PROP_PUT_ATTRIBUTE_MAX_LENGTH).asInteger();
+        final String outputDestination = context.getProperty(PROP_OUTPUT_DESTINATION).getValue();
+
+        // Every request/response cycle has a unique transaction id which will be stored as a flowfile attribute.
+        final UUID txId = UUID.randomUUID();
+
+        try {
+            try (Response responseHttp = executedResponse) {
                 // output the raw response headers (DEBUG level only)
                 logResponse(logger, url, responseHttp);
 
@@ -353,9 +657,13 @@ public final class GetPolicies extends AbstractProcessor {
                     // this will overwrite any existing flowfile attributes
                     requestFlowFile = session.putAllAttributes(requestFlowFile, convertAttributesFromHeaders(responseHttp));
 
+                    // stream the message body into a response FlowFile, or only read the extracted fields out of it
+                    if (bodyExists && !ResponseOutput.attribute().equals(outputDestination)) {
+                        requestFlowFile = writeResponse(context, session, requestFlowFile, responseBody, responseBodyStream, outputDestination, url, startNanos);
+                    }
                     // transfer the message body to the payload
                     // can potentially be null in edge cases
-                    if (bodyExists) {
+                    else if (bodyExists) {
                         // write content type attribute to response flowfile if it is available
                         if (responseBody.contentType() != null) {
                             logger.debug("content type not null");
@@ -422,23 +730,42 @@ public final class GetPolicies extends AbstractProcessor {
                 }
 
                 route(requestFlowFile, session, statusCode);
-
             }
         } catch (final Exception e) {
-            // penalize or yield
-            if (requestFlowFile != null) {
-                logger.error("Routing to {} due to exception: {}", new Object[]{REL_FAILURE.getName(), e}, e.fillInStackTrace());
-                logger.error("Trace:");
-                e.printStackTrace();
-                requestFlowFile = session.penalize(requestFlowFile);
-                requestFlowFile = session.putAttribute(requestFlowFile, EXCEPTION_CLASS, e.getClass().getName());
-                requestFlowFile = session.putAttribute(requestFlowFile, EXCEPTION_MESSAGE, e.getMessage());
-                // transfer original to failure
-                session.transfer(requestFlowFile, REL_FAILURE);
-            } else {
-                logger.error("Yielding processor due to exception encountered as a source processor: {}", e);
-                context.yield();
-            }
+            handleFailure(context, session, requestFlowFile, e);
+        }
+    }
+
+    private void handleFailure(final ProcessContext context, final ProcessSession session, FlowFile requestFlowFile, final Throwable e) {
+        final ComponentLog logger = getLogger();
+        // penalize or yield
+        if (requestFlowFile != null) {
+            logger.error("Routing to {} due to exception: {}", new Object[]{REL_FAILURE.getName(), e}, e.fillInStackTrace());
+            logger.error("Trace:");
+            e.printStackTrace();
+            requestFlowFile = session.penalize(requestFlowFile);
+            requestFlowFile = session.putAttribute(requestFlowFile, EXCEPTION_CLASS, e.getClass().getName());
+            requestFlowFile = session.putAttribute(requestFlowFile, EXCEPTION_MESSAGE, e.getMessage());
+            // transfer original to failure
+            session.transfer(requestFlowFile, REL_FAILURE);
+        } else {
+            logger.error("Yielding processor due to exception encountered as a source processor: {}", e);
+            context.yield();
+        }
+    }
+
+    /** A FlowFile of a batch whose request was sent, with its response or the reason there is none once it completes. */
+    private static final class Exchange {
+        final FlowFile requestFlowFile;
+        final URL url;
+        final long startNanos;
+        PolicyConversionCache.Lookup lookup;
+        Throwable error;
+
+        Exchange(FlowFile requestFlowFile, URL url, long startNanos) {
+            this.requestFlowFile = requestFlowFile;
+            this.url = url;
+            this.startNanos = startNanos;
         }
     }
 
@@ -536,6 +863,74 @@ public final class GetPolicies extends AbstractProcessor {
     }
 
 
+    /**
+     * Reads the extracted fields of the response into gmdata attributes of the request FlowFile. When the output
+     * destination is content, the response body is streamed into a child of the request FlowFile, the fields are read
+     * from it and the child is routed to Response Content, so the content of the request FlowFile is kept as it was.
+     */
+    private FlowFile writeResponse(final ProcessContext context, final ProcessSession session, FlowFile requestFlowFile, final ResponseBody responseBody,
+                                   final InputStream responseBodyStream, final String outputDestination, final URL url, final long startNanos) {
+        final List<String> fields = ResponseOutput.fieldList(context.getProperty(PROP_EXTRACTED_FIELDS).getValue());
+        final Map<String, String> extracted = new HashMap<>();
+        FlowFile responseFlowFile = null;
+        if (ResponseOutput.content().equals(outputDestination)) {
+            responseFlowFile = session.create(requestFlowFile);
+            try {
+                if (responseBody.contentType() != null) {
+                    responseFlowFile = session.putAttribute(responseFlowFile, CoreAttributes.MIME_TYPE.key(), responseBody.contentType().toString());
+                }
+                responseFlowFile = session.importFrom(responseBodyStream, responseFlowFile);
+                session.read(responseFlowFile, in -> extracted.putAll(ResponseOutput.extractFields(in, fields)));
+            } catch (final RuntimeException e) {
+                session.remove(responseFlowFile);
+                throw e;
+            }
+        } else {
+            extracted.putAll(ResponseOutput.extractFields(responseBodyStream, fields));
+        }
+
+        Map<String, String> attributes = new HashMap<>();
+        extracted.forEach((field, value) -> attributes.put("gmdata." + field, value));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if (responseFlowFile != null) {
+            responseFlowFile = session.putAllAttributes(responseFlowFile, attributes);
+            session.getProvenanceReporter().fetch(responseFlowFile, url.toExternalForm(), millis);
+            session.transfer(responseFlowFile, REL_RESPONSE_CONTENT);
+        }
+        requestFlowFile = session.putAllAttributes(requestFlowFile, attributes);
+        if (responseFlowFile == null) {
+            session.getProvenanceReporter().fetch(requestFlowFile, url.toExternalForm(), millis);
+        }
+        return requestFlowFile;
+    }
+
+    /**
+     * The key of the conversion requested for the FlowFile: a hash of the URL, the SSL context service, the header
+     * properties and the acm and permission attributes, the latter with the fields of every object in sorted order so
+     * that equal inputs written differently share a key. The SSL context service sets the identity the conversion is
+     * asked for, so processors with different identities never share a conversion through the cache directory.
+     */
+    private String conversionKey(final ProcessContext context, final FlowFile requestFlowFile, URL url) throws IOException, NoSuchAlgorithmException {
+        Map<String, Object> canonical = new TreeMap<>();
+        canonical.put("acm", canonicalMapper.readValue(requestFlowFile.getAttribute("acm"), Object.class));
+        canonical.put("permissions", canonicalMapper.readValue(requestFlowFile.getAttribute("permission"), Object.class));
+
+        StringBuilder request = new StringBuilder(url.toExternalForm()).append('\n');
+        request.append("ssl: ").append(context.getProperty(PROP_SSL_CONTEXT_SERVICE).getValue()).append('\n');
+        for (String headerKey : new TreeSet<>(dynamicPropertyNames)) {
+            if (!excludedHeaders.containsKey(headerKey)) {
+                request.append(headerKey).append(": ").append(context.getProperty(headerKey).evaluateAttributeExpressions(requestFlowFile).getValue()).append('\n');
+            }
+        }
+        request.append('\n').append(canonicalMapper.writeValueAsString(canonical));
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(request.toString().getBytes(StandardCharsets.UTF_8))) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
     private Request.Builder setHeaderProperties(final ProcessContext context, Request.Builder requestBuilder, final FlowFile requestFlowFile) {
 
         final ComponentLog logger = getLogger();
@@ -647,7 +1042,7 @@ public final class GetPolicies extends AbstractProcessor {
             map.put(key, value);
         });
 
-        if (responseHttp.request().isHttps()) {
+        if (responseHttp.request().isHttps() && responseHttp.handshake() != null) {
             Principal principal = responseHttp.handshake().peerPrincipal();
 
             if (principal != null) {
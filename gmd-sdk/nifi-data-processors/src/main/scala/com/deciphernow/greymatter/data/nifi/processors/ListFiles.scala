@@ -1,13 +1,11 @@
 package com.deciphernow.greymatter.data.nifi.processors
-import java.util.concurrent.Executors
-
 import cats.effect.concurrent.Ref
-import cats.effect.{Blocker, ContextShift, IO}
-import com.deciphernow.greymatter.data.nifi.processors.utils.{ListFilesStreamingFunctions, SaveState}
+import fs2.concurrent.SignallingRef
+import cats.effect.{ContextShift, IO}
+import com.deciphernow.greymatter.data.nifi.processors.utils.{ClientResource, FolderIndex, ListFilesStreamingFunctions, ListedIdentifiers, ListingCheckpoint, ListingShard, ListingShards, ProcessorStateStore, SaveState}
 import org.apache.nifi.annotation.behavior.{DynamicProperty, Stateful}
 import org.apache.nifi.components.state.Scope
 import org.apache.nifi.expression.ExpressionLanguageScope
-import org.http4s.client.JavaNetClientBuilder
 
 import scala.concurrent.{ExecutionContext, ExecutionContextExecutor}
 import fs2.Stream
@@ -15,25 +13,24 @@ import org.apache.nifi.annotation.notification.{OnPrimaryNodeStateChange, Primar
 
 // NiFi
 import org.apache.nifi.annotation.documentation.{ CapabilityDescription, Tags }
-import org.apache.nifi.annotation.lifecycle.OnScheduled
+import org.apache.nifi.annotation.lifecycle.{OnScheduled, OnStopped, OnUnscheduled}
 import org.apache.nifi.components.PropertyDescriptor
 import org.apache.nifi.processor._
 
 @Tags(Array("gmdata"))
-@CapabilityDescription("Retrieves a listing of files from a Grey Matter Data instance. For each file that is listed, creates a FlowFile that represents the file.")
+@CapabilityDescription("Retrieves a listing of files from a Grey Matter Data instance. For each file that is listed, creates a FlowFile that represents the file, or writes the listing as records when a Record Writer is set.")
 @DynamicProperty(name = "Header Name", value = "Attribute Expression Language", expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES, description = "Send request header with a key matching the Dynamic Property Key and a value created by evaluating the Attribute Expression Language set in the value of the Dynamic Property.")
-@Stateful(scopes = Array(Scope.CLUSTER), description = "After performing a listing of GM Data Files, the timestamp of the last modified file is stored. This allows the Processor to list only files that have been added or modified after this date the next time that the Processor is run")
+@Stateful(scopes = Array(Scope.CLUSTER, Scope.LOCAL), description = "After performing a listing of GM Data Files, the timestamp of the last modified file is stored, along with a compressed set of the identifiers listed at that timestamp. While a listing is in progress, the folders that are left to list are stored with every intermediate commit so that an interrupted listing resumes where it left off. When Skip Unchanged Folders is set, the tstamp and child count of every completely listed folder are stored as well. When Distribute Listing is set, each node stores a heartbeat and the state of every shard is stored under its own prefix, and each node keeps its id in its local state. This allows the Processor to list only files that have been added or modified after this date the next time that the Processor is run")
 class ListFiles extends AbstractProcessor with ListFilesStreamingFunctions {
   import scala.collection.JavaConverters._
 
   private lazy implicit val ec: ExecutionContextExecutor = ExecutionContext.global
   private lazy implicit val ctxShift: ContextShift[IO] = IO.contextShift(ec)
-  private lazy val blockingPool = Executors.newFixedThreadPool(5)
-  private lazy val blocker = Blocker.liftExecutorService(blockingPool)
-  private lazy val clientRef = Ref[IO].of(JavaNetClientBuilder[IO](blocker).create).unsafeRunSync()
+  private lazy val clientRef = Ref[IO].of(ClientResource.unavailable).unsafeRunSync()
+  private lazy val stopRequested = SignallingRef[IO, Boolean](false).unsafeRunSync()
   lazy val lastTimestampListed: Ref[IO, Long] = Ref[IO].of(0L).unsafeRunSync()
   lazy val justElectedPrimaryNode: Ref[IO, Boolean] = Ref[IO].of(false).unsafeRunSync()
-  lazy val lastIds: Ref[IO, List[String]] = Ref[IO].of(List[String]()).unsafeRunSync()
+  lazy val lastIds: Ref[IO, ListedIdentifiers] = Ref[IO].of(ListedIdentifiers.empty).unsafeRunSync()
   lazy val resetState: Ref[IO, Boolean] = Ref[IO].of(false).unsafeRunSync()
   lazy val lastTimestampKey = "listing.timestamp"
   lazy val idPrefix = "id"
@@ -47,22 +44,38 @@ class ListFiles extends AbstractProcessor with ListFilesStreamingFunctions {
   }
 
   @OnScheduled
-  def onScheduled(context: ProcessContext) = initializeClient(context, blocker, clientRef)
+  def onScheduled(context: ProcessContext) = {
+    stopRequested.set(false).unsafeRunSync()
+    initializeClient(context, clientRef)
+  }
+
+  @OnUnscheduled
+  def onUnscheduled(): Unit = stopRequested.set(true).unsafeRunSync()
+
+  @OnStopped
+  def onStopped(context: ProcessContext): Unit = {
+    releaseClient(clientRef)
+    if (parseDistributeListing(context)) ListingShards.nodeId(context.getStateManager).flatMap(ListingShards.leave(context.getStateManager, getStateScope(context), _)).attempt.unsafeRunSync()
+  }
 
   override def getSupportedDynamicPropertyDescriptor(name: String): PropertyDescriptor = dynamicProperty(name)
 
   override def onTrigger(context: ProcessContext, session: ProcessSession) = {
     for{
       logger <- Stream.eval(IO.delay(getLogger))
-      stream = getMetadataStreamOrThrowError(clientRef)(context, ctxShift)
-      listed <- listFlowfiles(context, session, getLogger)(stream, lastTimestampListed, lastIds, justElectedPrimaryNode, lastTimestampKey, idPrefix).attempt
+      listing = (shard: Option[ListingShard]) => (checkpoint: Option[ListingCheckpoint], unchangedFolders: Option[FolderIndex]) =>
+        interruptWhenStopped(stopRequested)(getListingEventsOrThrowError(clientRef, shard)(checkpoint, unchangedFolders)(context, ctxShift))
+      distributed <- Stream.eval(IO.delay(parseDistributeListing(context)))
+      listed <- (if (distributed) Stream.eval(ListingShards.nodeId(context.getStateManager)).flatMap(nodeId => listOwnedShards(context, session, getLogger)(nodeId, getListingShards(clientRef)(context, ctxShift), shard => listing(Some(shard)), lastTimestampKey, idPrefix))
+        else listFlowfiles(context, session, getLogger, ProcessorStateStore(context.getStateManager, getStateScope(context)))(listing(None), lastTimestampListed, lastIds, justElectedPrimaryNode, lastTimestampKey, idPrefix)).attempt
       _ <- Stream.eval(logErrors(logger, { newState: SaveState => s"Successfully listed ${newState.count} files"}, "Failed to list files")(listed))
+      _ <- Stream.eval(rollbackIfFailed(session)(listed))
     } yield listed
   }.compile.drain.unsafeRunSync()
 
   def resetTime = for {
     _ <- lastTimestampListed.modify(old => (0, old))
-    modify <- lastIds.modify(old => (List(), old)).flatMap(_ => IO.unit)
+    modify <- lastIds.modify(old => (ListedIdentifiers.empty, old)).flatMap(_ => IO.unit)
   } yield modify
 
   def setResetState(bool: Boolean) = resetState.modify(old => (bool, old)).flatMap(_ => IO.unit)
@@ -0,0 +1,297 @@
+package com.deciphernow.greymatter.data.nifi.processors;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.apache.nifi.logging.ComponentLog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The answers of the Data Policy service to the conversions requested by GetPolicies, by a hash of the canonical
+ * request, kept up to a number of entries in least recently used order and, when a directory is given, in a file per
+ * entry so that they outlive a restart. An entry is served without a request while it is fresh. Concurrent requests
+ * for the same conversion share a single call, and a stale entry can be served in place of a failed call or a server
+ * error. The directory is pruned to the entries that can still be served whenever a cache is started.
+ */
+final class PolicyConversionCache {
+    static final String HITS_COUNTER = "Conversion Cache Hits";
+    static final String MISSES_COUNTER = "Conversion Cache Misses";
+    static final String SHARED_COUNTER = "Conversion Cache Shared Requests";
+    static final String STALE_COUNTER = "Conversion Cache Stale Hits";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Path directory;
+    private final boolean serveStale;
+    private final ComponentLog logger;
+    private final Map<String, Conversion> entries;
+    private final ConcurrentHashMap<String, CompletableFuture<Conversion>> inFlight = new ConcurrentHashMap<>();
+
+    PolicyConversionCache(final int maxEntries, final long ttlMillis, final Path directory, final boolean serveStale, final ComponentLog logger) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.directory = directory;
+        this.serveStale = serveStale;
+        this.logger = logger;
+        this.entries = new LinkedHashMap<String, Conversion>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Conversion> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    interface Call {
+        Response execute() throws IOException;
+    }
+
+    interface AsyncCall {
+        CompletableFuture<Response> start();
+    }
+
+    /** A response to a conversion, and the counter of the cache that it adds to, if any. */
+    static final class Lookup {
+        final Response response;
+        final String counter;
+
+        Lookup(Response response, String counter) {
+            this.response = response;
+            this.counter = counter;
+        }
+    }
+
+    /** Answers the request as {@link #lookup} does, blocking until the answer is known. */
+    Lookup execute(final String key, final Request request, final Call call) throws IOException {
+        return await(lookup(key, request, () -> {
+            final CompletableFuture<Response> response = new CompletableFuture<>();
+            try {
+                response.complete(call.execute());
+            } catch (IOException | RuntimeException e) {
+                response.completeExceptionally(e);
+            }
+            return response;
+        }));
+    }
+
+    /**
+     * Answers the request from the cache while its entry is fresh, and otherwise starts the call, or waits for the call
+     * that a concurrent request for the same conversion already started. Only successful answers are kept.
+     */
+    CompletableFuture<Lookup> lookup(final String key, final Request request, final AsyncCall call) {
+        final long now = System.currentTimeMillis();
+        final Conversion cached = get(key);
+        if (cached != null && cached.stored + ttlMillis > now) {
+            return CompletableFuture.completedFuture(new Lookup(cached.toResponse(request), HITS_COUNTER));
+        }
+
+        final CompletableFuture<Conversion> created = new CompletableFuture<>();
+        final CompletableFuture<Conversion> shared = inFlight.putIfAbsent(key, created);
+        if (shared == null) {
+            load(key, created, call, now);
+        }
+        final String counter = shared != null ? SHARED_COUNTER : MISSES_COUNTER;
+
+        return (shared != null ? shared : created).handle((conversion, error) -> {
+            final Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof IOException && serveStale && cached != null) {
+                logger.warn("Serving a stale conversion because the Data Policy service could not be reached: {}", new Object[]{cause.getMessage()});
+                return new Lookup(cached.toResponse(request), STALE_COUNTER);
+            }
+            if (cause != null) {
+                throw new CompletionException(cause);
+            }
+            if (conversion.code >= 500 && serveStale && cached != null) {
+                logger.warn("Serving a stale conversion because the Data Policy service answered with status {}", new Object[]{conversion.code});
+                return new Lookup(cached.toResponse(request), STALE_COUNTER);
+            }
+            return new Lookup(conversion.toResponse(request), counter);
+        });
+    }
+
+    private void load(final String key, final CompletableFuture<Conversion> created, final AsyncCall call, final long now) {
+        final CompletableFuture<Response> started;
+        try {
+            started = call.start();
+        } catch (RuntimeException e) {
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+            return;
+        }
+        started.whenComplete((response, error) -> {
+            try {
+                if (error != null) {
+                    created.completeExceptionally(error);
+                    return;
+                }
+                final Conversion conversion;
+                try (Response read = response) {
+                    conversion = Conversion.read(read, now);
+                }
+                if (conversion.code / 100 == 2) {
+                    put(key, conversion);
+                }
+                created.complete(conversion);
+            } catch (IOException | RuntimeException e) {
+                created.completeExceptionally(e);
+            } finally {
+                inFlight.remove(key, created);
+            }
+        });
+    }
+
+    /**
+     * Removes the files of the directory beyond the newest number of entries of the cache, the files of conversions older
+     * than the TTL unless stale conversions are served, and the files left behind by writes that did not complete.
+     */
+    void prune() {
+        if (directory == null) {
+            return;
+        }
+        final long expired = System.currentTimeMillis() - ttlMillis;
+        final List<Map.Entry<Path, Long>> files;
+        try (Stream<Path> listed = Files.list(directory)) {
+            files = listed.collect(Collectors.toMap(file -> file, PolicyConversionCache::lastModified)).entrySet().stream()
+                    .sorted(Map.Entry.<Path, Long>comparingByValue().reversed())
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.warn("Could not list the cached conversions in {}: {}", new Object[]{directory, e.getMessage()});
+            return;
+        }
+        int kept = 0;
+        for (final Map.Entry<Path, Long> entry : files) {
+            final Path file = entry.getKey();
+            final String name = file.getFileName().toString();
+            final boolean stale = entry.getValue() < expired;
+            if (name.endsWith(".json") && kept < maxEntries && (serveStale || !stale)) {
+                kept++;
+            } else if (name.endsWith(".json") || (name.endsWith(".tmp") && stale)) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    logger.warn("Could not remove the cached conversion {}: {}", new Object[]{file, e.getMessage()});
+                }
+            }
+        }
+    }
+
+    private static long lastModified(final Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static <T> T await(final CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a conversion");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("The conversion failed", e.getCause());
+        }
+    }
+
+    private Conversion get(final String key) {
+        synchronized (entries) {
+            final Conversion cached = entries.get(key);
+            if (cached != null || directory == null) {
+                return cached;
+            }
+        }
+        final Path file = directory.resolve(key + ".json");
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            final Conversion stored = objectMapper.readValue(file.toFile(), Conversion.class);
+            synchronized (entries) {
+                entries.put(key, stored);
+            }
+            return stored;
+        } catch (IOException e) {
+            logger.warn("Could not read the cached conversion {}: {}", new Object[]{file, e.getMessage()});
+            return null;
+        }
+    }
+
+    private void put(final String key, final Conversion conversion) {
+        synchronized (entries) {
+            entries.put(key, conversion);
+        }
+        if (directory == null) {
+            return;
+        }
+        final Path file = directory.resolve(key + ".json");
+        final Path written = directory.resolve(key + ".json." + Thread.currentThread().getId() + ".tmp");
+        try {
+            objectMapper.writeValue(written.toFile(), conversion);
+            Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Could not write the cached conversion {}: {}", new Object[]{file, e.getMessage()});
+        }
+    }
+
+    /** A response of the Data Policy service, read in full so that it can be replayed. */
+    static final class Conversion {
+        public int code;
+        public String message;
+        public String contentType;
+        public Map<String, List<String>> headers = new HashMap<>();
+        public byte[] body;
+        public long stored;
+
+        static Conversion read(final Response response, final long now) throws IOException {
+            final Conversion conversion = new Conversion();
+            conversion.code = response.code();
+            conversion.message = response.message();
+            conversion.headers = response.headers().toMultimap();
+            final ResponseBody responseBody = response.body();
+            conversion.contentType = responseBody != null && responseBody.contentType() != null ? responseBody.contentType().toString() : null;
+            conversion.body = responseBody != null ? responseBody.bytes() : new byte[0];
+            conversion.stored = now;
+            return conversion;
+        }
+
+        Response toResponse(final Request request) {
+            final Headers.Builder replayedHeaders = new Headers.Builder();
+            headers.forEach((name, values) -> values.forEach(value -> replayedHeaders.add(name, value)));
+            return new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(code)
+                    .message(message)
+                    .headers(replayedHeaders.build())
+                    .body(ResponseBody.create(contentType != null ? MediaType.parse(contentType) : null, body))
+                    .build();
+        }
+    }
+}
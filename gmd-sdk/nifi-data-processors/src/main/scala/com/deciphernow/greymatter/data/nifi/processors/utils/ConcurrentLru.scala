@@ -0,0 +1,50 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.ReentrantLock
+
+import scala.collection.JavaConverters._
+
+/**
+  * Up to `maxEntries` values kept in approximately least recently used order without a lock shared by every reader.
+  * Entries live in a ConcurrentHashMap and are stamped with the time of their last use. Once the map holds more than
+  * `maxEntries` entries, a single writer evicts the least recently used tenth of them, so that the cost of evicting is
+  * spread across the writes that filled the map.
+  */
+class ConcurrentLru[K, V](maxEntries: Int) {
+
+  private final class Entry(val value: V, @volatile var lastUsed: Long)
+
+  private val entries = new ConcurrentHashMap[K, Entry]()
+
+  private val evicting = new ReentrantLock()
+
+  def get(key: K): Option[V] = Option(entries.get(key)).map { entry =>
+    entry.lastUsed = System.nanoTime
+    entry.value
+  }
+
+  def put(key: K, value: V): Unit = {
+    entries.put(key, new Entry(value, System.nanoTime))
+    evictIfFull()
+  }
+
+  /** The value of the key, derived from the key and kept when it is missing. Concurrent callers share a single value. */
+  def getOrElseUpdate(key: K)(derive: K => V): V = {
+    val entry = entries.computeIfAbsent(key, new java.util.function.Function[K, Entry] { def apply(key: K) = new Entry(derive(key), System.nanoTime) })
+    entry.lastUsed = System.nanoTime
+    evictIfFull()
+    entry.value
+  }
+
+  def remove(key: K): Unit = entries.remove(key)
+
+  def size = entries.size
+
+  private def evictIfFull() = if (entries.size > maxEntries && evicting.tryLock()) {
+    try {
+      val excess = entries.size - maxEntries + maxEntries / 10
+      if (excess > 0) entries.entrySet.asScala.toArray.sortBy(_.getValue.lastUsed).take(excess).foreach(entry => entries.remove(entry.getKey, entry.getValue))
+    } finally evicting.unlock()
+  }
+}
@@ -13,7 +13,7 @@ trait ErrorHandling {
     case Left(throwable) => throw new Throwable(s"$description: $throwable")
   }
 
-  protected def handleErrorAndContinue[X](description: String)(either: Either[Throwable, X]) = either.leftMap(err => new Throwable(s"$description: $err"))
+  protected def handleErrorAndContinue[X](description: String)(either: Either[Throwable, X]) = either.leftMap(err => new Throwable(s"$description: $err", err))
 
   protected def removeFlowfile(session: ProcessSession)(flowFile: FlowFile)(implicit cs: ContextShift[IO]) = IO.delay(session.remove(flowFile))
 
@@ -0,0 +1,79 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import com.deciphernow.greymatter.data.nifi.http.Metadata
+
+import scala.annotation.tailrec
+import scala.util.hashing.MurmurHash3
+
+/**
+  * The change marker of every folder whose subtree was completely listed, keyed by the hash of the folder's oid. A
+  * marker is a 32-bit hash of the `tstamp` and `childCount` that the parent's listing reported for the folder, so a
+  * folder whose marker matches has not changed since its subtree was last listed.
+  *
+  * In cluster state the entries are sorted by oid hash and stored as varint deltas followed by the marker, deflated and
+  * base64 encoded, then split across keys named `listing.folders.0`, `listing.folders.1`, and so on. When the index
+  * does not fit `maxEncodedLength`, only the folders with the lowest oid hashes are saved, and the others are listed
+  * again by the next walk.
+  */
+case class FolderIndex(markers: Map[Long, Int]) {
+
+  def isUnchanged(folder: Metadata) = folder.oid.exists(oid => markers.get(ListedIdentifiers.hash(oid)).contains(FolderIndex.marker(folder)))
+
+  def +(entry: (String, Int)) = FolderIndex(markers + (ListedIdentifiers.hash(entry._1) -> entry._2))
+
+  /** Adds the entries of `other`, which replace the entries of this index for the same folders. */
+  def ++(other: FolderIndex) = FolderIndex(markers ++ other.markers)
+
+  def size = markers.size
+
+  def toStateMap: Map[String, String] = toStateMap(FolderIndex.stateKeyPrefix)
+
+  def toStateMap(keyPrefix: String, maxStateSize: Int = StateEncoding.maxStateSize): Map[String, String] =
+    if (markers.isEmpty) Map() else StateEncoding.toStateMap(keyPrefix, FolderIndex.encodeWithin(markers, FolderIndex.maxEncodedLength(maxStateSize)))
+}
+
+object FolderIndex {
+
+  val stateKeyPrefix = "listing.folders."
+
+  val empty = FolderIndex(Map[Long, Int]())
+
+  /** The share of the state that the folder index may take. */
+  def maxEncodedLength(maxStateSize: Int) = maxStateSize / 2
+
+  def marker(folder: Metadata): Int = MurmurHash3.stringHash(s"${folder.tstamp.getOrElse("")}/${folder.childCount.map(_.toString).getOrElse("")}")
+
+  def fromStateMap(state: Map[String, String], keyPrefix: String = stateKeyPrefix) =
+    StateEncoding.fromStateMap(keyPrefix, state).map(decode).map(FolderIndex(_)).getOrElse(empty)
+
+  /** Encodes the markers, dropping the entries with the highest oid hashes until the encoding fits `maxLength`. */
+  private def encodeWithin(markers: Map[Long, Int], maxLength: Int) = {
+    val sorted = markers.toArray.sortWith((a, b) => java.lang.Long.compareUnsigned(a._1, b._1) < 0)
+    @tailrec def fit(kept: Int): String = {
+      val encoded = encode(sorted.take(kept))
+      if (encoded.length <= maxLength) encoded else fit((kept.toLong * maxLength / encoded.length * 9 / 10).toInt)
+    }
+    fit(sorted.length)
+  }
+
+  private def encode(sorted: Array[(Long, Int)]) = StateEncoding.compress { out =>
+    sorted.foldLeft(0L) { case (previous, (hash, marker)) =>
+      StateEncoding.writeVarLong(out, hash - previous)
+      StateEncoding.writeVarLong(out, marker & 0xffffffffL)
+      hash
+    }
+  }
+
+  private def decode(encoded: String) = StateEncoding.decompress(encoded) { in =>
+    val markers = Map.newBuilder[Long, Int]
+    var previous = 0L
+    var delta = StateEncoding.readVarLong(in)
+    while (delta.nonEmpty) {
+      previous += delta.get
+      val marker = StateEncoding.readVarLong(in).getOrElse(throw new Throwable("A folder in the processor state has no marker"))
+      markers += previous -> marker.toInt
+      delta = StateEncoding.readVarLong(in)
+    }
+    markers.result()
+  }
+}
@@ -0,0 +1,132 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+
+import cats.effect.IO
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient
+import org.http4s.{Headers, Uri}
+
+/**
+  * The oids of the folders that GetOidForPath resolved, kept in memory by the processor until they expire, and the
+  * folders that are being resolved. Up to `maxEntries` folders are kept, and the least recently used folders are
+  * evicted to make room for new ones. When it is opened with a log, the cached folders are also kept in the log and the
+  * folders still live in the log are cached again.
+  */
+class FolderOidCache(maxEntries: Int = FolderOidCache.maxEntries) {
+
+  private val entries = new ConcurrentLru[String, CachedOid](maxEntries)
+
+  @volatile private var log: Option[FolderOidLog] = None
+
+  /** The folders being resolved, by Remote Url, headers, parent oid and name. */
+  val resolving = new SingleFlight[IO, (Uri, Headers, String, String), Either[Throwable, String]]
+
+  /** The missing folders being created together, by Remote Url, headers, parent oid and name of the first of them. */
+  val creating = new SingleFlight[IO, (Uri, Headers, String, String), Either[Throwable, List[(String, String)]]]
+
+  def get(key: String, now: Long) = entries.get(key).filter { entry =>
+    if (entry.expires > now) true else { entries.remove(key); false }
+  }.map(_.oid)
+
+  def put(key: String, oid: String, expires: Long) = {
+    entries.put(key, CachedOid(oid, expires))
+    log.foreach(_.append(key, CachedOid(oid, expires)))
+  }
+
+  def remove(key: String) = {
+    entries.remove(key)
+    log.foreach(_.remove(key))
+  }
+
+  /** Starts keeping the cached folders in the log, or stops keeping them in a log, after loading the folders of the log. */
+  def open(folderLog: Option[FolderOidLog], now: Long) = synchronized {
+    flush()
+    log = folderLog
+    folderLog.foreach(_.load(now).take(maxEntries).foreach { case (key, entry) => entries.put(key, entry) })
+  }
+
+  def flush() = log.foreach(_.flush())
+}
+
+object FolderOidCache {
+
+  /** The number of folders kept in memory by a processor. */
+  val maxEntries = 10000
+
+  val sharedKeyPrefix = "gmdata.folderoid."
+
+  /** The key of a folder: the SHA-256 of the Remote Url, the headers sent to GM Data and the names of the folders from the user folder down. */
+  def key(rootUrl: Uri, headers: Headers, path: List[String]) = {
+    val identity = headers.toList.map(header => s"${header.name}: ${header.value}").sorted.mkString("\n")
+    val digest = MessageDigest.getInstance("SHA-256").digest(s"$rootUrl\n$identity\n\n${path.mkString("/")}".getBytes(StandardCharsets.UTF_8))
+    digest.map("%02x".format(_)).mkString
+  }
+}
+
+case class CachedOid(oid: String, expires: Long)
+
+/**
+  * The cached folders that a FlowFile can use, which are those resolved with the same Remote Url and headers. A folder
+  * is only cached once it was found with read and create access or created with these headers, so a cached folder also
+  * stands for the permission check. With a shared cache, folders are also kept in the Distributed Map Cache Client
+  * together with their expiration, so that the nodes of a cluster resolve each folder once between them.
+  */
+case class CachedFolders(cache: FolderOidCache, rootUrl: Uri, headers: Headers, ttlMillis: Long, shared: Option[DistributedMapCacheClient]) {
+
+  def enabled = ttlMillis > 0
+
+  /** The deepest of the user folder (depth 0) and the folders in the path that is cached, with its depth. */
+  def deepest(path: List[String]): IO[Option[(Int, String)]] = if (!enabled) IO.pure(None) else {
+    def lookup(depth: Int): IO[Option[(Int, String)]] =
+      if (depth < 0) IO.pure(None)
+      else get(path.take(depth)).flatMap {
+        case Some(oid) => IO.pure(Some(depth -> oid))
+        case None => lookup(depth - 1)
+      }
+    lookup(path.length)
+  }
+
+  /**
+    * Resolves the folder in the parent, unless the same folder is already being resolved with the same Remote Url and
+    * headers, in which case the result of that resolution is shared. Concurrent FlowFiles for a new folder then create
+    * it once instead of each missing it and writing it.
+    */
+  def resolveOnce(parentOid: String, name: String)(resolve: IO[Either[Throwable, String]]) = cache.resolving((rootUrl, headers, parentOid, name))(resolve)
+
+  /**
+    * Like [[resolveOnce]], for the resolution of a folder that can also create the missing folders below it, which
+    * returns the names and oids of the folders it resolved from that folder down.
+    */
+  def createOnce(parentOid: String, name: String)(resolve: IO[Either[Throwable, List[(String, String)]]]) = cache.creating((rootUrl, headers, parentOid, name))(resolve)
+
+  /** Caches the oid of the folder at the path when it was resolved, and returns the result as is. */
+  def store(path: List[String])(oid: Either[Throwable, String]): IO[Either[Throwable, String]] = oid match {
+    case Right(resolved) if enabled => IO.delay {
+      val key = FolderOidCache.key(rootUrl, headers, path)
+      val expires = System.currentTimeMillis + ttlMillis
+      cache.put(key, resolved, expires)
+      shared.foreach(_.put(s"${FolderOidCache.sharedKeyPrefix}$key", s"$expires $resolved", PolicyReferences.stringSerializer, PolicyReferences.stringSerializer))
+    }.map(_ => oid)
+    case _ => IO.pure(oid)
+  }
+
+  /** Drops the folder at the path from the cache, after the folder it stands for turned out not to exist. */
+  def invalidate(path: List[String]) = IO.delay {
+    val key = FolderOidCache.key(rootUrl, headers, path)
+    cache.remove(key)
+    shared.foreach(_.remove(s"${FolderOidCache.sharedKeyPrefix}$key", PolicyReferences.stringSerializer))
+  }
+
+  private def get(path: List[String]) = IO.delay {
+    val key = FolderOidCache.key(rootUrl, headers, path)
+    val now = System.currentTimeMillis
+    cache.get(key, now).orElse(shared.flatMap { sharedCache =>
+      Option(sharedCache.get(s"${FolderOidCache.sharedKeyPrefix}$key", PolicyReferences.stringSerializer, PolicyReferences.stringDeserializer)).map(_.split(" ", 2)).collect {
+        case Array(expires, oid) if expires.toLong > now =>
+          cache.put(key, oid, expires.toLong)
+          oid
+      }
+    })
+  }
+}
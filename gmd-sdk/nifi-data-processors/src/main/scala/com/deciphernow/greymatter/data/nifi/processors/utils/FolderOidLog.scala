@@ -0,0 +1,65 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path, StandardCopyOption, StandardOpenOption}
+import java.util.concurrent.ConcurrentLinkedQueue
+
+import scala.util.Try
+
+/**
+  * The folder oids of a [[FolderOidCache]] kept in a local file, so that the cache starts warm after a restart. The
+  * file is a log of lines `<key> <expiration> <oid>` in which a later line for a key replaces the earlier ones and an
+  * oid of `-` removes the key. Lines are queued as folders are cached and appended in batches, and the file is
+  * rewritten with only its live entries whenever it is loaded, and whenever it has grown to more than
+  * [[FolderOidLog.compactionFactor]] lines for each entry that was live when it was last rewritten.
+  */
+case class FolderOidLog(file: Path) {
+
+  private val pending = new ConcurrentLinkedQueue[String]()
+
+  private var lines = 0L
+
+  private var liveEntries = 0L
+
+  def append(key: String, entry: CachedOid) = pending.add(s"$key ${entry.expires} ${entry.oid}")
+
+  def remove(key: String) = pending.add(s"$key 0 ${FolderOidLog.removed}")
+
+  /** Appends the queued lines to the file with a single write, and compacts the file once it has grown too large. */
+  def flush(): Unit = synchronized {
+    val queued = Iterator.continually(pending.poll()).takeWhile(_ != null).toList
+    if (queued.nonEmpty) {
+      Files.write(file, queued.map(_ + "\n").mkString.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+      lines += queued.length
+      if (lines > math.max(FolderOidLog.compactionFactor * liveEntries, FolderOidLog.minLinesToCompact)) load(System.currentTimeMillis)
+    }
+  }
+
+  /** Reads the entries of the log that have not expired, and compacts the file to those entries. */
+  def load(now: Long): Map[String, CachedOid] = synchronized {
+    val entries = if (!Files.exists(file)) Map[String, CachedOid]() else {
+      val reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)
+      try Iterator.continually(reader.readLine()).takeWhile(_ != null).map(_.split(" ")).foldLeft(Map[String, CachedOid]()) {
+        case (loaded, Array(key, _, FolderOidLog.removed)) => loaded - key
+        case (loaded, Array(key, expires, oid)) => Try(expires.toLong).toOption.fold(loaded)(expiration => loaded + (key -> CachedOid(oid, expiration)))
+        case (loaded, _) => loaded
+      } finally reader.close()
+    }
+    val live = entries.filter(_._2.expires > now)
+    val compacted = file.resolveSibling(s"${file.getFileName}.tmp")
+    Files.write(compacted, live.map { case (key, entry) => s"$key ${entry.expires} ${entry.oid}\n" }.mkString.getBytes(StandardCharsets.UTF_8))
+    Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    lines = live.size
+    liveEntries = live.size
+    live
+  }
+}
+
+object FolderOidLog {
+
+  val removed = "-"
+
+  val compactionFactor = 4
+
+  val minLinesToCompact = 1000L
+}
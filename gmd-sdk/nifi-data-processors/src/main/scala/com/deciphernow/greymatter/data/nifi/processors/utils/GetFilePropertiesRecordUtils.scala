@@ -0,0 +1,83 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.io.{InputStream, OutputStream}
+
+import cats.effect.concurrent.Ref
+import cats.effect.{ContextShift, IO}
+import cats.implicits._
+import com.deciphernow.greymatter.data.nifi.http.{GmDataResponse, Metadata}
+import com.deciphernow.greymatter.data.nifi.properties.GetFilePropertiesRecordProperties
+import fs2.Stream
+import io.circe.generic.auto._
+import org.apache.nifi.flowfile.FlowFile
+import org.apache.nifi.flowfile.attributes.CoreAttributes
+import org.apache.nifi.logging.ComponentLog
+import org.apache.nifi.processor.io.StreamCallback
+import org.apache.nifi.processor.{ProcessContext, ProcessSession}
+import org.apache.nifi.serialization.record.Record
+import org.apache.nifi.serialization.{RecordReaderFactory, RecordSetWriterFactory}
+import org.http4s.client.Client
+import org.http4s.{Headers, Uri}
+
+trait GetFilePropertiesRecordUtils extends GetFilePropertiesUtils with GetFilePropertiesRecordProperties {
+
+  import scala.collection.JavaConverters._
+
+  /**
+    * Replaces the records of the FlowFile with the records enriched with the properties of the files they name. The user
+    * folder is resolved once for the whole FlowFile, and the properties are requested concurrently while the records
+    * are read, so that only the records being looked up are held in memory.
+    */
+  def lookupRecords(implicit context: ProcessContext, session: ProcessSession, flowFile: FlowFile, logger: ComponentLog, clientRef: Ref[IO, ClientResource], cs: ContextShift[IO]) = for {
+    attributesToSendRegex <- IO.delay(parseAttributesToSend(context, Some(flowFile)).map(_.r))
+    headers <- IO.delay(getHeaders(attributesToSendRegex)(context, Some(flowFile)))
+    rootUrl <- IO.delay(parseRootUrl(rootUrlProperty)(context, Some(flowFile)))
+    intermediatePrefix <- IO.delay(parseIntermediatePrefix)
+    identityCacheTtl <- IO.delay(parseIdentityCacheTtl)
+    concurrency <- IO.delay(parseLookupConcurrency)
+    readerFactory <- IO.delay(parseRecordReader)
+    writerFactory <- IO.delay(parseRecordWriter)
+    client <- clientRef.get.map(_.client)
+    configEither <- getCachedConfig(rootUrl, client, headers, identityCacheTtl).attempt map handleErrorAndContinue("There was an error hitting the /config endpoint of GM Data")
+    userFolderEither <- configEither flatTraverse validUserFolderName(headers, client, rootUrl, identityCacheTtl)
+    written <- userFolderEither.flatTraverse { userFolder =>
+      IO.delay(writeRecords(readerFactory, writerFactory, concurrency)(lookupProps(headers, rootUrl, client, intermediatePrefix, userFolder))).attempt
+    }
+  } yield written
+
+  private def lookupProps(headers: Headers, rootUrl: Uri, client: Client[IO], intermediatePrefix: Option[String], userFolder: String)(record: Record) = (for {
+    fileName <- Option(record.getAsString(PropsRecords.filenameField)).toRight(new Throwable(s"The record has no ${PropsRecords.filenameField}"))
+    filePath = Option(record.getAsString(PropsRecords.pathField)).getOrElse("").stripPrefix("/").stripSuffix("/")
+  } yield validatePath(intermediatePrefix, filePath, fileName)(userFolder)).flatTraverse(getPropsAndStatus(_, headers, rootUrl, client).attempt)
+
+  private def writeRecords(readerFactory: RecordReaderFactory, writerFactory: RecordSetWriterFactory, concurrency: Int)(lookup: Record => IO[Either[Throwable, GmDataResponse[String]]])(implicit session: ProcessSession, flowFile: FlowFile, logger: ComponentLog, cs: ContextShift[IO]) = {
+    var attributes = Map[String, String]()
+    val written = session.write(flowFile, new StreamCallback {
+      override def process(in: InputStream, out: OutputStream): Unit = {
+        val reader = readerFactory.createRecordReader(flowFile, in, logger)
+        try {
+          val schema = PropsRecords.schema(reader.getSchema)
+          val writer = writerFactory.createWriter(logger, writerFactory.getSchema(flowFile.getAttributes, schema), out, flowFile)
+          try {
+            writer.beginRecordSet()
+            Stream.repeatEval(IO.delay(reader.nextRecord())).takeWhile(_ != null)
+              .parEvalMap(concurrency)(record => lookup(record).map(PropsRecords.toRecord(schema, record, _)))
+              .evalMap(record => IO.delay(writer.write(record)))
+              .compile.drain.unsafeRunSync()
+            val result = writer.finishRecordSet()
+            attributes = result.getAttributes.asScala.toMap ++ Map("record.count" -> result.getRecordCount.toString, CoreAttributes.MIME_TYPE.key -> writer.getMimeType)
+          } finally writer.close()
+        } finally reader.close()
+      }
+    })
+    session.putAllAttributes(written, attributes.asJava)
+  }
+
+  def getRecordProps(implicit context: ProcessContext, session: ProcessSession, flowFile: FlowFile, logger: ComponentLog, clientRef: Ref[IO, ClientResource], cs: ContextShift[IO]) = for {
+    writtenEither <- lookupRecords
+    errors = logErrors(logger, (written: FlowFile) => s"Looked up the properties of ${written.getAttribute("record.count")} records", "There was a problem with the processor")(_)
+    logged <- errors(writtenEither)
+    finalFlowFile <- sendErrorsAsAttributes("getfilepropertiesrecord", logged.getOrElse(flowFile), session, logged)
+    result <- transferResult(logger)(finalFlowFile, transferFlowfile(session))(logged)
+  } yield result
+}
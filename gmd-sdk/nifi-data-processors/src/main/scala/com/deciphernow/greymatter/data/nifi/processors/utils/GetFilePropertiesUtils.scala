@@ -1,52 +1,145 @@
 package com.deciphernow.greymatter.data.nifi.processors.utils
 
+import java.io.InputStream
+import java.nio.charset.StandardCharsets
+import java.util.{List => JList, Map => JMap}
+
 import cats.effect.{ContextShift, IO}
 import cats.implicits._
 import cats.effect.concurrent.Ref
 import com.deciphernow.greymatter.data.nifi.http.{Config, GmDataClient, GmDataResponse}
 import com.deciphernow.greymatter.data.nifi.properties.GetFilePropertiesProperties
 import com.deciphernow.greymatter.data.nifi.relationships.ProcessorRelationships
+import fs2.io.toInputStream
+import org.apache.commons.io.IOUtils
 import org.apache.nifi.flowfile.FlowFile
 import org.apache.nifi.logging.ComponentLog
+import org.apache.nifi.processor.io.InputStreamCallback
 import org.apache.nifi.processor.{ProcessContext, ProcessSession}
 import org.http4s.{Headers, Uri}
 import org.http4s.client.Client
 
+import scala.concurrent.duration.FiniteDuration
+
 trait GetFilePropertiesUtils extends GmDataClient[IO] with GetFilePropertiesProperties with ProcessorRelationships with ProcessorUtils {
 
+  import scala.collection.JavaConverters._
+
   def updateFlowfileAttributes(properties: GmDataResponse[String])(implicit flowFile: FlowFile, session: ProcessSession) = updateAttribute("gmdata.status.code", properties.statusCode.toString).attempt.flatMap {
     _.flatTraverse { newFlowfile =>
       updateAttribute("gmdata.file.props", properties.response)(newFlowfile, session).attempt
     }
   }.map(_.map(_ => properties))
 
-  def validUserFolderName(headers: Headers, client: Client[IO], rootUrl: Uri)(config: Config) = getUserFolder(rootUrl, headers, config, client).map(_.map(config.GMDATA_NAMESPACE_OID + "/" + _))
+  def validUserFolderName(headers: Headers, client: Client[IO], rootUrl: Uri, identityCacheTtl: FiniteDuration)(config: Config) = getCachedUserFolder(rootUrl, headers, config, client, identityCacheTtl).map(_.map(config.GMDATA_NAMESPACE_OID + "/" + _))
 
   def validatePath(prefix: Option[String], filePath: String, fileName: String)(userFolder: String) = {
       val path = Uri.removeDotSegments(prefix.map(intermediate => s"$userFolder/$intermediate/$filePath/$fileName").getOrElse(s"$userFolder/$filePath/$fileName"))
       Uri.pathEncode(path)
   }
 
-  def getPropertiesAndStatusFromConfiguredPath(implicit context: ProcessContext, session: ProcessSession, flowFile: FlowFile, logger: ComponentLog, clientRef: Ref[IO, Client[IO]], cs: ContextShift[IO]) = for {
+  /** The Remote Url, headers and client for the FlowFile, and the path of its file in GM Data. */
+  private def getConfiguredPath(implicit context: ProcessContext, flowFile: FlowFile, clientRef: Ref[IO, ClientResource]) = for {
     attributesToSendRegex <- IO.delay(parseAttributesToSend(context, Some(flowFile)).map(_.r))
     headers <- IO.delay(getHeaders(attributesToSendRegex)(context, Some(flowFile)))
     rootUrl <- IO.delay(parseRootUrl(rootUrlProperty)(context, Some(flowFile)))
     filePath <- IO.delay(parseFilePath)
     fileName <- IO.delay(parseFileName)
     intermediatePrefix <- IO.delay(parseIntermediatePrefix)
-    client <- clientRef.get
-    configEither <- getConfig(rootUrl, client, headers).attempt map handleErrorAndContinue("There was an error hitting the /config endpoint of GM Data")
-    userFolderEither <- configEither flatTraverse validUserFolderName(headers, client, rootUrl)
-    pathEither = userFolderEither map validatePath(intermediatePrefix, filePath, fileName)
-    propertiesEither <- pathEither.flatTraverse(getPropsAndStatus(_, headers, rootUrl, client).attempt)
+    identityCacheTtl <- IO.delay(parseIdentityCacheTtl)
+    client <- clientRef.get.map(_.client)
+    configEither <- getCachedConfig(rootUrl, client, headers, identityCacheTtl).attempt map handleErrorAndContinue("There was an error hitting the /config endpoint of GM Data")
+    userFolderEither <- configEither flatTraverse validUserFolderName(headers, client, rootUrl, identityCacheTtl)
+  } yield (rootUrl, headers, client, userFolderEither map validatePath(intermediatePrefix, filePath, fileName))
+
+  def getPropertiesAndStatusFromConfiguredPath(implicit context: ProcessContext, session: ProcessSession, flowFile: FlowFile, logger: ComponentLog, clientRef: Ref[IO, ClientResource], propsCacheRef: Ref[IO, PropsCache], cs: ContextShift[IO]) = for {
+    configured <- getConfiguredPath
+    (rootUrl, headers, client, pathEither) = configured
+    propsCache <- propsCacheRef.get
+    propertiesEither <- pathEither.flatTraverse(getCachedPropsAndStatus(_, headers, rootUrl, client, propsCache).attempt)
   } yield propertiesEither
 
-  def getFileProps(implicit context: ProcessContext, session: ProcessSession, flowFile: FlowFile, logger: ComponentLog, clientRef: Ref[IO, Client[IO]], cs: ContextShift[IO]) = for {
-    propertiesEither <- getPropertiesAndStatusFromConfiguredPath
-    updateAttributes <- propertiesEither flatTraverse updateFlowfileAttributes
-    errors = logErrors(logger, (response: GmDataResponse[String]) => s"gmdata.status.code attribute updated with status code: ${response.statusCode}. gmdata.file.props attribute updated with response: ${response.response}", "There was a problem with the processor")(_)
-    logged <- errors(updateAttributes)
-    finalFlowFile <- sendErrorsAsAttributes("getfileproperties", flowFile, session, logged)
-    result <- transferResult(logger)(finalFlowFile, transferFlowfile(session))(logged)
-  } yield result
+  /**
+    * Streams a successful answer of /props into the content of a child of the FlowFile, which is routed to response,
+    * or, when the content is not kept, only reads the Extracted Fields out of it as it streams in. Either way the
+    * Extracted Fields of a successful answer are put in attributes of the FlowFile, whose content is left as it was, and
+    * the answer is never read into a string unless it is an error.
+    */
+  def getStreamedProps(destination: String)(implicit context: ProcessContext, session: ProcessSession, flowFile: FlowFile, clientRef: Ref[IO, ClientResource], cs: ContextShift[IO]) = for {
+    configured <- getConfiguredPath
+    (rootUrl, headers, client, pathEither) = configured
+    fields <- IO.delay(parseExtractedFields)
+    written <- pathEither.flatTraverse(streamPropsAndStatus(_, headers, rootUrl, client) { (status, body) =>
+      body.through(toInputStream[IO]).evalMap(in => IO.delay(putProps(destination, fields, status, in))).compile.lastOrError
+    }.attempt)
+  } yield written
+
+  /**
+    * Puts the answer in the FlowFile once it has been read completely, so that an answer that fails to stream in or to
+    * parse leaves the FlowFile as it was.
+    */
+  private def putProps(destination: String, fields: JList[String], status: Int, in: InputStream)(implicit flowFile: FlowFile, session: ProcessSession) = {
+    val statusAttribute = Map("gmdata.status.code" -> status.toString)
+    if (destination == ResponseOutput.content && status == 200) {
+      var response = session.create(flowFile)
+      val extracted = try {
+        response = session.importFrom(in, response)
+        var found: JMap[String, String] = null
+        session.read(response, new InputStreamCallback {
+          override def process(content: InputStream): Unit = found = ResponseOutput.extractFields(content, fields)
+        })
+        response = session.putAllAttributes(response, (statusAttribute ++ propsAttributes(found)).asJava)
+        found
+      } catch {
+        case err: Throwable =>
+          session.remove(response)
+          throw err
+      }
+      val withProps = session.putAllAttributes(flowFile, (statusAttribute ++ propsAttributes(extracted)).asJava)
+      session.transfer(response, RelResponse)
+      withProps
+    }
+    else if (status == 200) session.putAllAttributes(flowFile, (statusAttribute ++ propsAttributes(ResponseOutput.extractFields(in, fields))).asJava)
+    else session.putAllAttributes(flowFile, (statusAttribute + ("gmdata.file.props" -> IOUtils.toString(in, StandardCharsets.UTF_8))).asJava)
+  }
+
+  private def propsAttributes(extracted: JMap[String, String]) = extracted.asScala.map { case (field, value) => s"gmdata.file.props.$field" -> value }.toMap
+
+  /**
+    * The answer of /props for the path, from the props cache while it is fresh and from GM Data otherwise, which can
+    * confirm a stale answer with a 304 response. The hits, revalidations and misses of the cache are counted.
+    */
+  def getCachedPropsAndStatus(path: Uri.Path, headers: Headers, rootUrl: Uri, client: Client[IO], propsCache: PropsCache)(implicit session: ProcessSession): IO[GmDataResponse[String]] =
+    if (!propsCache.enabled) getPropsAndStatus(path, headers, rootUrl, client)
+    else IO.delay(propsCache.get(rootUrl, headers, path)).flatMap {
+      case Some(cached) if cached.fresh(System.currentTimeMillis) => countProps(PropsCache.hitsCounter).map(_ => cached.response)
+      case cached => getPropsStatusAndValidators(path, headers, cached.fold(Headers.empty)(_.conditionalHeaders), rootUrl, client).flatMap {
+        case (response, validators) => cached.filter(_ => response.statusCode == 304) match {
+          case Some(revalidated) =>
+            IO.delay(propsCache.put(rootUrl, headers, path, revalidated.response, revalidated.validators)) *> countProps(PropsCache.revalidationsCounter).map(_ => revalidated.response)
+          case None =>
+            IO.delay(if (response.statusCode == 200) propsCache.put(rootUrl, headers, path, response, validators)) *> countProps(PropsCache.missesCounter).map(_ => response)
+        }
+      }
+    }
+
+  private def countProps(counter: String)(implicit session: ProcessSession) = IO.delay(session.adjustCounter(counter, 1, false))
+
+  def getFileProps(implicit context: ProcessContext, session: ProcessSession, flowFile: FlowFile, logger: ComponentLog, clientRef: Ref[IO, ClientResource], propsCacheRef: Ref[IO, PropsCache], cs: ContextShift[IO]) = IO.delay(parseOutputDestination).flatMap {
+    case ResponseOutput.attribute => for {
+      propertiesEither <- getPropertiesAndStatusFromConfiguredPath
+      updateAttributes <- propertiesEither flatTraverse updateFlowfileAttributes
+      errors = logErrors(logger, (response: GmDataResponse[String]) => s"gmdata.status.code attribute updated with status code: ${response.statusCode}. gmdata.file.props attribute updated with response: ${response.response}", "There was a problem with the processor")(_)
+      logged <- errors(updateAttributes)
+      finalFlowFile <- sendErrorsAsAttributes("getfileproperties", flowFile, session, logged)
+      result <- transferResult(logger)(finalFlowFile, transferFlowfile(session))(logged)
+    } yield result
+    case destination => for {
+      writtenEither <- getStreamedProps(destination)
+      errors = logErrors(logger, (written: FlowFile) => s"gmdata.status.code attribute updated with status code: ${written.getAttribute("gmdata.status.code")}. The response was put in the $destination", "There was a problem with the processor")(_)
+      logged <- errors(writtenEither)
+      finalFlowFile <- sendErrorsAsAttributes("getfileproperties", logged.getOrElse(flowFile), session, logged)
+      result <- transferResult(logger)(finalFlowFile, transferFlowfile(session))(logged)
+    } yield result
+  }
 }
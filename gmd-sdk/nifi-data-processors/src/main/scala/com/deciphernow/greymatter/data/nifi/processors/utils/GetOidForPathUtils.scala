@@ -1,9 +1,11 @@
 package com.deciphernow.greymatter.data.nifi.processors.utils
 
+import java.util.concurrent.ThreadLocalRandom
+
 import cats.effect.concurrent.Ref
 import cats.effect.{ ContextShift, IO }
 import cats.implicits._
-import com.deciphernow.greymatter.data.nifi.http.{ Metadata, GmDataClient }
+import com.deciphernow.greymatter.data.nifi.http.{ GmDataError, Metadata, GmDataClient }
 import com.deciphernow.greymatter.data.nifi.properties.{ GetOidForPathConfig, GetOidForPathProperties }
 import com.deciphernow.greymatter.data.nifi.relationships.ProcessorRelationships
 import org.apache.nifi.flowfile.FlowFile
@@ -14,62 +16,178 @@ import org.http4s.{ Headers, Uri }
 
 trait GetOidForPathUtils extends GetOidForPathProperties with ProcessorRelationships with GmDataClient[IO] with ErrorHandling with ProcessorUtils {
 
-  private def createFolders(implicit context: ProcessContext, flowFile: FlowFile, client: Client[IO]) = for {
-    config <- getPropertyConfig
-    userFolderOid <- getUserFolderOid(config)
-    intermediateOid <- config.intermediateFolders.traverse(getFinalFolderOid(userFolderOid, _, config.intermediateMetadata, config)).map(_.getOrElse(userFolderOid))
-    finalOid <- config.folders.flatTraverse(getFinalFolderOid(intermediateOid, _, config.metadata(_, _), config))
+  private def createFolders(config: GetOidForPathConfig)(implicit context: ProcessContext, client: Client[IO], folderOidCache: FolderOidCache) = for {
+    cachedFolders <- IO.delay(CachedFolders(folderOidCache, config.rootUrl, config.headers, parseFolderCacheTtl, parseFolderCacheService))
+    deepestFirst <- IO.delay(parseResolveDeepestFirst)
+    finalOid <- config.folders.flatTraverse { folders =>
+      val folderMetadata: (String, String) => Metadata = config.metadata(_, _)
+      val levels = config.intermediateFolders.getOrElse(List()).map(name => name -> config.intermediateMetadata) ++ folders.map(name => name -> folderMetadata)
+      val names = levels.map(_._1)
+      val resolveFolders: (Either[Throwable, String], Int) => IO[Either[Throwable, String]] =
+        if (parseCreateFoldersTogether) getFinalFolderOidTogether(_, levels, _, config, cachedFolders)
+        else getFinalFolderOid(_, levels, _, config, cachedFolders)
+      val findDeepest = (baseOid: String, below: List[String]) => if (deepestFirst) findDeepestFolder(baseOid, below, config) else IO.pure(None)
+      val resolveFromUserFolder = getUserFolderName(config).flatMap(_.flatTraverse { case (namespaceOid, userFolder) =>
+        findDeepest(namespaceOid, userFolder :: names).flatMap {
+          case Some((found, foundOid)) => cachedFolders.store(names.take(found - 1))(Right(foundOid)).flatMap(resolveFolders(_, found - 1))
+          case None => getFolderOid(userFolder, config.userMetadata, config.copy(createFirst = false), cachedFolders)(namespaceOid).flatMap(cachedFolders.store(List())).flatMap(resolveFolders(_, 0))
+        }
+      })
+      cachedFolders.deepest(names).flatMap {
+        case Some((depth, oid)) => findDeepest(oid, names.drop(depth)).flatMap {
+          case Some((found, foundOid)) => cachedFolders.store(names.take(depth + found))(Right(foundOid)).flatMap(resolveFolders(_, depth + found))
+          case None => resolveFolders(Right(oid), depth)
+        }.flatMap {
+          case Left(_) => (0 to names.length).toList.traverse(cached => cachedFolders.invalidate(names.take(cached))).flatMap(_ => resolveFromUserFolder)
+          case resolved => IO.pure(resolved)
+        }
+        case None => resolveFromUserFolder
+      }
+    }
   } yield finalOid
 
-  private def getFinalFolderOid(defaultOid: Either[Throwable, String], folderList: List[String], getMetadata: (String, String) => Metadata, config: GetOidForPathConfig)(implicit client: Client[IO]) = folderList.foldLeft(IO(defaultOid)) { (getLastOid, folderName) =>
-    getLastOid.flatMap(_.flatTraverse(getFolderOid(folderName, getMetadata, config)))
+  /**
+    * Finds the deepest of the folders below the base folder that exists with read and create access. The whole path is
+    * tried first, as it is found with a single request when the path already exists, then the depth is searched for by
+    * bisection. Returns the number of folders below the base folder down to the one found, with its oid.
+    */
+  private def findDeepestFolder(baseOid: String, below: List[String], config: GetOidForPathConfig)(implicit client: Client[IO]): IO[Option[(Int, String)]] = {
+    def find(depth: Int) = getValidFolderProps((baseOid :: below.take(depth)).mkString("/"), config.headers)(config.rootUrl, client).map(_.toOption.flatMap(_.oid).map(depth -> _))
+    def bisect(found: Option[(Int, String)], existing: Int, missing: Int): IO[Option[(Int, String)]] =
+      if (missing - existing <= 1) IO.pure(found)
+      else {
+        val depth = (existing + missing) / 2
+        find(depth).flatMap {
+          case Some(folder) => bisect(Some(folder), depth, missing)
+          case None => bisect(found, existing, depth)
+        }
+      }
+    if (below.isEmpty) IO.pure(None)
+    else find(below.length).flatMap {
+      case Some(folder) => IO.pure(Some(folder))
+      case None => bisect(None, 0, below.length)
+    }
+  }
+
+  /** Resolves the folders below the given depth, starting from the oid of the folder at that depth, and caches each of them. */
+  private def getFinalFolderOid(defaultOid: Either[Throwable, String], levels: List[(String, (String, String) => Metadata)], depth: Int, config: GetOidForPathConfig, cachedFolders: CachedFolders)(implicit client: Client[IO]) =
+    levels.zipWithIndex.drop(depth).foldLeft(IO(defaultOid)) { case (getLastOid, ((folderName, getMetadata), index)) =>
+      getLastOid.flatMap(_.flatTraverse(getFolderOid(folderName, getMetadata, config, cachedFolders))).flatMap(cachedFolders.store(levels.take(index + 1).map(_._1)))
+    }
+
+  /**
+    * Resolves the folders below the given depth from the top down until the first one that is missing, then creates it
+    * and every folder below it with a single write. The created folders are given oids generated by the processor, so
+    * that each of them can name the one above it as its parent within the same request.
+    */
+  private def getFinalFolderOidTogether(defaultOid: Either[Throwable, String], levels: List[(String, (String, String) => Metadata)], depth: Int, config: GetOidForPathConfig, cachedFolders: CachedFolders)(implicit client: Client[IO]): IO[Either[Throwable, String]] =
+    defaultOid.flatTraverse { parentOid =>
+      levels.drop(depth) match {
+        case List() => IO.pure(Right(parentOid))
+        case (folderName, _) :: _ => cachedFolders.createOnce(parentOid, folderName)(getOrWriteFolderChain(parentOid, levels.drop(depth), config)).flatMap(_.flatTraverse { resolved =>
+          val matched = resolved.zip(levels.drop(depth).map(_._1)).takeWhile { case ((name, _), levelName) => name == levelName }.map(_._1)
+          matched.zipWithIndex.traverse { case ((_, oid), index) => cachedFolders.store(levels.take(depth + index + 1).map(_._1))(Right(oid)) }
+            .flatMap(_ => getFinalFolderOidTogether(Right(matched.last._2), levels, depth + matched.length, config, cachedFolders))
+        })
+      }
+    }
+
+  private def getOrWriteFolderChain(parentOid: String, missing: List[(String, (String, String) => Metadata)], config: GetOidForPathConfig)(implicit client: Client[IO]) = {
+    val (folderName, _) = missing.head
+    val lookup = checkForOid(folderName, parentOid, config.headers)(config.rootUrl, client).map(_.map(oid => List(folderName -> oid)))
+    val write = IO.delay(missing.map(_ => f"${ThreadLocalRandom.current.nextLong}%016x")).flatMap { oids =>
+      val metadata = missing.zip(parentOid :: oids).zip(oids).map { case (((name, getMetadata), parent), oid) => getMetadata(parent, name).copy(oid = Some(oid)) }
+      writeFolders(metadata, config.rootUrl, config.headers).attempt.map(handleErrorAndContinue("There was an error hitting the /write endpoint of GM Data:")).map(_.flatMap { written =>
+        metadata.traverse(folder => written.find(w => w.parentoid == folder.parentoid && w.name == folder.name).flatMap(_.oid).map(folder.name -> _)
+          .toRight(new Throwable(s"The /write endpoint of GM Data did not return the folder ${folder.name}")))
+      })
+    }
+    lookupOrWrite(lookup, write, config)
   }
 
-  private def getFolderOid(folderName: String, getMetadata: (String, String) => Metadata, config: GetOidForPathConfig)(parentOid: String)(implicit client: Client[IO]) = {
+  private def getFolderOid(folderName: String, getMetadata: (String, String) => Metadata, config: GetOidForPathConfig, cachedFolders: CachedFolders)(parentOid: String)(implicit client: Client[IO]) = {
     val metadata = List(getMetadata(parentOid, folderName))
-    getOrWriteFolderOid(parentOid, metadata, folderName, config)
+    cachedFolders.resolveOnce(parentOid, folderName)(getOrWriteFolderOid(parentOid, metadata, folderName, config))
   }
 
   private def getValidFolderProps(path: Uri.Path, headers: Headers)(implicit rootUrl: Uri, client: Client[IO]) = getFolderProps(path, headers).attempt.map(_.flatMap(getValidProps))
 
-  private def getUserFolderOid(propertyConfig: GetOidForPathConfig)(implicit client: Client[IO]): IO[Either[Throwable, String]] = for {
-    configEither <- propertyConfig.folders.flatTraverse(_ => getConfig(propertyConfig.rootUrl, client, propertyConfig.headers).attempt map handleErrorAndContinue("There was an error hitting the /config endpoint of GM Data"))
-    userFolderOid <- configEither.flatTraverse{ config =>
-      for{
-        userFolder <- getUserFolder(propertyConfig.rootUrl, propertyConfig.headers, config, client)
-        oid <- userFolder.flatTraverse(getFolderOid(_, propertyConfig.userMetadata, propertyConfig)(config.GMDATA_NAMESPACE_OID))
-      } yield oid
+  /** The oid of the namespace and the name of the user folder in it, from the /config and /self endpoints or their cached answers. */
+  private def getUserFolderName(propertyConfig: GetOidForPathConfig)(implicit client: Client[IO]): IO[Either[Throwable, (String, String)]] = for {
+    configEither <- getCachedConfig(propertyConfig.rootUrl, client, propertyConfig.headers, propertyConfig.identityCacheTtl).attempt map handleErrorAndContinue("There was an error hitting the /config endpoint of GM Data")
+    userFolder <- configEither.flatTraverse(config => getCachedUserFolder(propertyConfig.rootUrl, propertyConfig.headers, config, client, propertyConfig.identityCacheTtl).map(_.map(config.GMDATA_NAMESPACE_OID -> _)))
+  } yield userFolder
+
+  private def getOrWriteFolderOid(parentOidAsPath: Uri.Path, metadata: List[Metadata], nameOfFolder: String, config: GetOidForPathConfig)(implicit client: Client[IO]) = lookupOrWrite(
+    checkForOid(nameOfFolder, parentOidAsPath, config.headers)(config.rootUrl, client),
+    writeFolder(metadata, config.rootUrl, config.headers).attempt map handleErrorAndContinue("There was an error hitting the /write endpoint of GM Data:") map (_.flatMap(oidInParent(parentOidAsPath))),
+    config)
+
+  /**
+    * Looks a folder up and writes it when it is missing or, when folders are created first, writes the folder and only
+    * looks it up when GM Data refuses the write because the name is taken, in which case the error of the write is kept
+    * if the folder is not found. Any other error of the write is returned as is. The user folder is always looked up
+    * first, as it exists for every user but the first FlowFile of each.
+    */
+  private def lookupOrWrite[X](lookup: IO[Either[Throwable, X]], write: IO[Either[Throwable, X]], config: GetOidForPathConfig) =
+    if (config.createFirst) write.flatMap {
+      case Left(err) if isDuplicateName(err) => lookup.map(_.leftMap(_ => err))
+      case written => IO.pure(written)
+    }
+    else lookup.flatMap {
+      case Left(_) => write
+      case found => IO.pure(found)
     }
-  } yield userFolderOid
 
-  private def getOrWriteFolderOid(parentOidAsPath: Uri.Path, metadata: List[Metadata], nameOfFolder: String, config: GetOidForPathConfig)(implicit client: Client[IO]) = checkForOid(nameOfFolder, parentOidAsPath, config.headers)(config.rootUrl, client).flatMap {
-    case Right(oid) => IO(Right(oid))
-    case Left(err) => writeFolder(metadata, config.rootUrl, config.headers).attempt map handleErrorAndContinue("There was an error hitting the /write endpoint of GM Data:") map (_.map(_.oid.get))
+  private def isDuplicateName(err: Throwable): Boolean = err match {
+    case refused: GmDataError => refused.isDuplicateName
+    case _ => Option(err.getCause).exists(isDuplicateName)
   }
 
   protected def checkForOid(nameOfFolder: String, parentOidAsPath: Uri.Path, headers: Headers)(implicit rootUrl: Uri, client: Client[IO]) = getValidFolderProps(s"$parentOidAsPath/$nameOfFolder", headers).flatMap {
     case Right(props) => IO(Right(props))
-    case _ => getFileList(parentOidAsPath + "/", headers).attempt.map(handleErrorAndContinue("There was an error hitting the /list endpoint of GM Data")).map(_.flatMap(filterByName(nameOfFolder)))
-  } map (_.map(_.oid.get))
+    case _ => findByName(parentOidAsPath, nameOfFolder, headers)
+  } map (_.flatMap(oidInParent(parentOidAsPath)))
 
-  private def filterByName(userField: String)(metadatas: List[Metadata]) = {
-    val list = metadatas.filter(metadata => metadata.isfile.isEmpty && metadata.name == userField)
-    if (list.nonEmpty) Right(list.head) else Left(new Throwable("No folders could be found"))
-  }
+  /**
+    * The oid of a folder that GM Data found or wrote below the given parent. An answer that places the folder below
+    * another parent contradicts the cached oid of the parent, so it is an error, which drops the cached folders of the
+    * path and resolves it again.
+    */
+  private def oidInParent(parentOid: String)(folder: Metadata) =
+    if (folder.parentoid != parentOid) Left(new Throwable(s"GM Data placed the folder ${folder.name} in ${folder.parentoid} rather than in $parentOid"))
+    else folder.oid.toRight(new Throwable(s"GM Data did not return the oid of the folder ${folder.name}"))
+
+  /** Streams the listing of the parent folder until a folder with the name is found. */
+  private def findByName(parentOidAsPath: Uri.Path, userField: String, headers: Headers)(implicit rootUrl: Uri, client: Client[IO]) =
+    streamFileList(parentOidAsPath + "/", headers).find(metadata => metadata.isfile.isEmpty && metadata.name == userField).compile.last.attempt
+      .map(handleErrorAndContinue("There was an error hitting the /list endpoint of GM Data"))
+      .map(_.flatMap(_.toRight(new Throwable("No folders could be found"))))
 
   private def getValidProps(metadata: Metadata) = {
-    if (Set("C", "R").subsetOf(metadata.policy.get.policy.toSet)) Right(metadata)
+    if (metadata.action == "D") Left(new Throwable(s"The folder ${metadata.name} was deleted"))
+    else if (Set("C", "R").subsetOf(metadata.policy.get.policy.toSet)) Right(metadata)
     else Left(new Throwable(s"Insufficient create/read access for folder ${metadata.name}"))
   }
 
   private def updateOidAttribute(oid: String)(implicit flowFile: FlowFile, session: ProcessSession) = updateAttribute("gmdata.parentoid", oid)
 
-  protected def startProcessing(logger: ComponentLog)(implicit context: ProcessContext, session: ProcessSession, flowFile: FlowFile, clientRef: Ref[IO, Client[IO]], ctxShift: ContextShift[IO]) = for {
-    client <- clientRef.get
-    oidEither <- createFolders(context, flowFile, client)
-    errors = logErrors(logger, (oid: String) => s"gmdata.parentoid attribute updated with parent oid: $oid", "There was a problem with the processor")(_)
+  /**
+    * Resolves the path of every FlowFile and writes its oid on the FlowFile. FlowFiles with the same Remote Url, headers
+    * and folders share a single resolution, and the resolutions of different folders run concurrently.
+    */
+  protected def startProcessing(logger: ComponentLog)(implicit context: ProcessContext, session: ProcessSession, flowFiles: List[FlowFile], clientRef: Ref[IO, ClientResource], folderOidCache: FolderOidCache, ctxShift: ContextShift[IO]) = for {
+    client <- clientRef.get.map(_.client)
+    configs <- flowFiles.traverse(getPropertyConfig(context, _))
+    groups = configs.zipWithIndex.groupBy(_._1.resolutionKey).values.toList
+    resolved <- groups.parTraverse(group => createFolders(group.head._1)(context, client, folderOidCache).map(oidEither => group.map(_._2 -> oidEither)))
+    oids = resolved.flatten.sortBy(_._1).map(_._2)
+    results <- flowFiles.zip(oids).traverse { case (flowFile, oidEither) => transferOid(logger, oidEither)(session, flowFile, ctxShift) }
+  } yield results.sequence
+
+  private def transferOid(logger: ComponentLog, oidEither: Either[Throwable, String])(implicit session: ProcessSession, flowFile: FlowFile, ctxShift: ContextShift[IO]) = for {
     updateOid <- oidEither.flatTraverse(oid => updateOidAttribute(oid)(flowFile, session).map(_ => oid).attempt)
-    logged <- errors(updateOid)
+    logged <- logErrors(logger, (oid: String) => s"gmdata.parentoid attribute updated with parent oid: $oid", "There was a problem with the processor")(updateOid)
     finalFlowFile <- sendErrorsAsAttributes("getoidforpath", flowFile, session, logged)
     result <- transferResult(logger)(finalFlowFile, transferFlowfile(session))(logged)
   } yield result
@@ -1,5 +1,7 @@
 package com.deciphernow.greymatter.data.nifi.processors.utils
 
+import java.io.OutputStream
+
 import cats.effect.concurrent.Ref
 import cats.effect.{ContextShift, IO}
 import cats.implicits._
@@ -10,9 +12,13 @@ import org.apache.nifi.processor.{ProcessContext, ProcessSession}
 import org.http4s.client.Client
 import org.http4s.{Headers, Uri}
 import fs2.Stream
-import org.apache.nifi.components.state.{Scope, StateManager}
+import fs2.concurrent.{NoneTerminatedQueue, Queue, SignallingRef}
+import org.apache.nifi.components.state.Scope
 import org.apache.nifi.context.PropertyContext
 import org.apache.nifi.flowfile.FlowFile
+import org.apache.nifi.flowfile.attributes.CoreAttributes
+import org.apache.nifi.processor.io.OutputStreamCallback
+import org.apache.nifi.serialization.RecordSetWriterFactory
 import org.apache.nifi.logging.ComponentLog
 
 import scala.util.matching.Regex
@@ -20,141 +26,321 @@ import scala.util.matching.Regex
 trait ListFilesStreamingFunctions extends ListFilesProperties with ProcessorRelationships with GmDataClient[IO] with ErrorHandling with ProcessorUtils {
   import scala.collection.JavaConverters._
 
-  private def throwListFilesError[X](path: String)(either: Either[Throwable, X]) = either.leftMap(err => new Throwable(s"There was a problem listing files from ${path}: $err"))
+  /**
+    * Walks the folder tree from the given folders with up to `maxConcurrent` /list calls in flight. Folders waiting to
+    * be listed are kept in a queue and their events are emitted as soon as their listing arrives, so the order of
+    * events across folders is not fixed. A discovered folder is only queued once its [[FolderDiscovered]] event has been
+    * taken downstream, so every folder is reported before anything inside it. The walk ends once every queued folder
+    * has been listed, or once one of them failed. Folder entries without an oid cannot be listed and are skipped.
+    *
+    * With `unchangedFolders`, folders are listed with their child counts and a discovered folder whose marker is in
+    * the index is not descended into, since its subtree was completely listed before and has not changed since.
+    */
+  def walkFolders(roots: List[FolderToList], recurse: Boolean, pathFilter: Option[Regex], maxConcurrent: Int, pageSize: Option[Int] = None, skipFolders: ListedIdentifiers = ListedIdentifiers.empty, unchangedFolders: Option[FolderIndex] = None)
+                 (implicit rootUrl: Uri, client: Client[IO], headers: Headers, cs: ContextShift[IO]): Stream[IO, ListingEvent] = Stream.emit(WalkStarted(roots)) ++ (for {
+    queue <- Stream.eval(Queue.noneTerminated[IO, FolderToList])
+    pending <- Stream.eval(Ref[IO].of(roots.length))
+    _ <- Stream.eval(if (roots.isEmpty) queue.enqueue1(None) else roots.traverse_(folder => queue.enqueue1(Some(folder))))
+    event <- queue.dequeue.map(listFolder(queue, pending, recurse, pathFilter, pageSize, skipFolders, unchangedFolders)).parJoin(maxConcurrent)
+  } yield event)
 
-  def streamFilesRecursively(path: Uri.Path, pathFilter: Option[Regex], relativePath: Uri.Path = "/")(implicit rootUrl: Uri, client: Client[IO], headers: Headers, cs: ContextShift[IO]): Stream[IO, Stream[IO, Either[Throwable, Metadata]]] = {
-    streamFileList(path, headers).attempt.fold(Stream.emits(List[Metadata]()).attempt.covary[IO]) { (last, curr) =>
-      curr.flatTraverse { metadata =>
-        val newRelativePath = s"$relativePath${metadata.name}/"
-        if (metadata.folder) {
-          if (pathFilter.forall(_.findFirstMatchIn(newRelativePath).nonEmpty)) last ++ streamFilesRecursively(metadata.oid.get, pathFilter, newRelativePath).flatten
-          else last
-        }
-        else last ++ Stream.eval(IO(metadata.copy(relativePath = Some(relativePath)))).attempt
+  private def listFolder(queue: NoneTerminatedQueue[IO, FolderToList], pending: Ref[IO, Int], recurse: Boolean, pathFilter: Option[Regex], pageSize: Option[Int], skipFolders: ListedIdentifiers, unchangedFolders: Option[FolderIndex])
+                        (folder: FolderToList)(implicit rootUrl: Uri, client: Client[IO], headers: Headers, cs: ContextShift[IO]): Stream[IO, ListingEvent] = {
+    val finished = pending.modify(count => (count - 1, count - 1)).flatMap(remaining => if (remaining == 0) queue.enqueue1(None) else IO.unit)
+    val listPath = if (unchangedFolders.nonEmpty) withChildCount(folder.path) else folder.path
+    (streamFileList(listPath, headers, pageSize).flatMap[IO, ListingEvent] {
+      case metadata if metadata.folder => metadata.oid.fold[Stream[IO, ListingEvent]](Stream.empty) { oid =>
+        val child = FolderToList(oid, s"${folder.relativePath}${metadata.name}/", unchangedFolders.map(_ => FolderIndex.marker(metadata)))
+        if (recurse && !skipFolders.contains(child.path) && pathFilter.forall(_.findFirstMatchIn(child.relativePath).nonEmpty) && !unchangedFolders.exists(_.isUnchanged(metadata)))
+          Stream.emit(FolderDiscovered(folder.path, child)) ++ Stream.eval_(pending.update(_ + 1).flatMap(_ => queue.enqueue1(Some(child))))
+        else Stream.empty
       }
-    }
+      case metadata => Stream.emit(FileListed(folder.path, metadata.copy(relativePath = Some(folder.relativePath), rootUrlOption = Some(rootUrl.renderString))))
+    }.handleErrorWith(err => Stream.raiseError[IO](new Throwable(s"There was a problem listing files from $rootUrl/list/${folder.path}: $err"))) ++
+      Stream.emit(FolderListed(folder.path))).onFinalize(finished)
   }
 
-  def streamFilesFromGMData(recurse: Boolean, pathFilter: Option[Regex])(path: String)(implicit rootUrl: Uri, client: Client[IO], headers: Headers, cs: ContextShift[IO]) = {
-    if (recurse) streamFilesRecursively(path, pathFilter).flatten
-    else streamFileList(path, headers).filterNot(_.folder).map(e => e.copy(relativePath = Some("/"))).attempt
-  }.map(throwListFilesError(s"$rootUrl/list/$path")(_).map(_.copy(rootUrlOption = Some(rootUrl.renderString))))
+  def withChildCount(path: Uri.Path) = if (path.split("[?&]").exists(_.startsWith("childCount="))) path else path + (if (path.contains("?")) "&" else "?") + "childCount=true"
 
-  def getMetadataStream(clientRef: Ref[IO, Client[IO]], inputDirectory: String)(implicit context: ProcessContext, cs: ContextShift[IO]) = for {
-    client <- Stream.eval(clientRef.get)
+  def getListingEvents(clientRef: Ref[IO, ClientResource], inputDirectory: String, checkpoint: Option[ListingCheckpoint], unchangedFolders: Option[FolderIndex], shard: Option[ListingShard])(implicit context: ProcessContext, cs: ContextShift[IO]) = for {
+    client <- Stream.eval(clientRef.get.map(_.client))
     propertiesEither <- Stream.eval(getProperties(inputDirectory)).attempt
-    filesEither <- propertiesEither.flatTraverse{ properties =>
+    eventsEither <- propertiesEither.flatTraverse{ properties =>
+      val roots = checkpoint.map(_.frontier).getOrElse(List(shard.map(_.root).getOrElse(FolderToList(properties.path, "/"))))
+      val recurse = properties.recurse && shard.forall(_.recurse)
+      val skipFolders = checkpoint.map(_.discoveredFolders).getOrElse(ListedIdentifiers.empty)
       val filter = filterFiles(properties.fileFilter, properties.minFileAge, properties.minFileSize, properties.maxFileAge, properties.maxFileSize)(_)
-      streamFilesFromGMData(properties.recurse, properties.pathFilter)(properties.path)(properties.rootUrl, client, properties.headers, cs).through(filter)
+      walkFolders(roots, recurse, properties.pathFilter, properties.listingConcurrency, properties.pageSize, skipFolders, unchangedFolders)(properties.rootUrl, client, properties.headers, cs).through(filter).attempt
     }
-  } yield filesEither
+  } yield eventsEither
 
   def getProperties(inputDirectory: String)(implicit context: ProcessContext) = for {
     recurse <- IO.delay(parseRecurse)
     rootUrl <- IO.delay(parseRootUrl(rootUrlProperty))
-    path <- IO.delay(parseUrlFilter).map(pathWithUrlFilter(_, inputDirectory))
+    urlFilter <- IO.delay(parseUrlFilter)
+    path = pathWithUrlFilter(urlFilter, inputDirectory)
     fileFilter <- IO.delay(parseFileFilter)
     pathFilter <- IO.delay(if (recurse) parsePathFilter else None)
     minFileAge <- IO.delay(parseMinFileAge)
     maxFileAge <- IO.delay(parseMaxFileAge)
     minFileSize <- IO.delay(parseMinFileSize)
     maxFileSize <- IO.delay(parseMaxFileSize)
+    listingConcurrency <- IO.delay(parseListingConcurrency)
+    pageSize <- IO.delay(if (urlFilter.exists(setsCount)) None else Some(parseListPageSize))
     headers <- IO.delay(getHeaders(None))
-  } yield ListFilesConfig(recurse, rootUrl, path, fileFilter, pathFilter, minFileAge, maxFileAge, minFileSize, maxFileSize, headers)
+  } yield ListFilesConfig(recurse, rootUrl, path, fileFilter, pathFilter, minFileAge, maxFileAge, minFileSize, maxFileSize, headers, listingConcurrency, pageSize)
+
+  def setsCount(urlFilter: String) = urlFilter.stripPrefix("?").split("&").exists(_.takeWhile(_ != '=') == "count")
 
   def pathWithUrlFilter(filterOpt: Option[String], path: String) = filterOpt.map(filter => path + s"?${filter.stripPrefix("?")}").getOrElse(path)
 
-  def filterFiles(fileFilter: Regex, minFileAge: Long, minFileSize: Long, maxFileAge: Option[Long], maxFileSize: Option[Long])(list: Stream[IO, Either[Throwable, Metadata]]) = list.filter { metadataEither =>
-    metadataEither.nonEmpty && {
-      val metadata = metadataEither.right.get
+  def filterFiles(fileFilter: Regex, minFileAge: Long, minFileSize: Long, maxFileAge: Option[Long], maxFileSize: Option[Long])(events: Stream[IO, ListingEvent]) = events.filter {
+    case FileListed(_, metadata) =>
       (metadata.action == "C" || metadata.action == "U") &&
         fileFilter.findFirstMatchIn(metadata.name).nonEmpty &&
         metadata.getTimestamp >= minFileAge &&
         maxFileAge.forall(metadata.getTimestamp < _) &&
         metadata.getSize >= minFileSize &&
         maxFileSize.forall(metadata.getSize < _)
-    }
+    case _ => true
   }
 
-  def createAndTransferFlowFile(session: ProcessSession, logger: ComponentLog, metadata: Metadata)(implicit cs: ContextShift[IO]) = createFlowFile(session, metadata).flatMap(transferFlowfile(session)(RelSuccess, _)).attempt flatMap logTransferResult(logger)
+  def createAndTransferFlowFile(session: ProcessSession, logger: ComponentLog, metadata: Metadata, attributes: ListedAttributes = ListedAttributes.all)(implicit cs: ContextShift[IO]) = createFlowFile(session, metadata, attributes).flatMap(transferFlowfile(session)(RelSuccess, _)).attempt flatMap logTransferResult(logger)
 
-  def createFlowFile(session: ProcessSession, metadata: Metadata) = IO.delay(session.create).flatMap(setAttributes(metadata, _, session))
+  def writeRecordFlowFile(session: ProcessSession, logger: ComponentLog, writerFactory: RecordSetWriterFactory)(listed: Vector[Metadata])(implicit cs: ContextShift[IO]) = IO.delay {
+    val flowFile = session.create
+    val schema = writerFactory.getSchema(flowFile.getAttributes, ListingRecords.schema)
+    var attributes = Map[String, String]()
+    val written = session.write(flowFile, new OutputStreamCallback {
+      override def process(out: OutputStream): Unit = {
+        val writer = writerFactory.createWriter(logger, schema, out, flowFile)
+        try {
+          writer.beginRecordSet()
+          listed.foreach(metadata => writer.write(ListingRecords.toRecord(metadata)))
+          val result = writer.finishRecordSet()
+          attributes = result.getAttributes.asScala.toMap ++ Map("record.count" -> result.getRecordCount.toString, CoreAttributes.MIME_TYPE.key -> writer.getMimeType)
+        } finally writer.close()
+      }
+    })
+    session.putAllAttributes(written, attributes.asJava)
+  }.flatMap(transferFlowfile(session)(RelSuccess, _)).attempt flatMap logTransferResult(logger)
+
+  /** Sends a listed object to the output, returning the objects that are still waiting to be written as records. */
+  def writeListed(session: ProcessSession, logger: ComponentLog, output: ListingOutput)(unwritten: Vector[Metadata], metadata: Metadata)(implicit cs: ContextShift[IO]): IO[(Vector[Metadata], Either[Throwable, Unit])] = output match {
+    case FlowFilePerObject(attributes) => createAndTransferFlowFile(session, logger, metadata, attributes).map(either => (unwritten, either.map(_ => ())))
+    case RecordOutput(writerFactory, recordsPerFlowFile) =>
+      val buffered = unwritten :+ metadata
+      if (buffered.length >= recordsPerFlowFile) writeRecordFlowFile(session, logger, writerFactory)(buffered).map(either => (Vector(), either.map(_ => ())))
+      else IO.pure((buffered, Right(())))
+  }
+
+  def flushListed(session: ProcessSession, logger: ComponentLog, output: ListingOutput)(progress: ListingProgress)(implicit cs: ContextShift[IO]) = output match {
+    case RecordOutput(writerFactory, _) if progress.unwritten.nonEmpty => writeRecordFlowFile(session, logger, writerFactory)(progress.unwritten)
+      .map(handleErrorAndShutdown("There was a problem writing the listing records")).map(_ => progress.copy(unwritten = Vector()))
+    case _ => IO.pure(progress)
+  }
 
-  def setAttributes(metadata: Metadata, flowFile: FlowFile, session: ProcessSession) = IO.delay(session.putAllAttributes(flowFile, metadata.attributeMap.asJava))
+  def createFlowFile(session: ProcessSession, metadata: Metadata, attributes: ListedAttributes = ListedAttributes.all) = IO.delay(session.create).flatMap(setAttributes(metadata, _, session, attributes))
+
+  def setAttributes(metadata: Metadata, flowFile: FlowFile, session: ProcessSession, attributes: ListedAttributes = ListedAttributes.all) = IO.delay(session.putAllAttributes(flowFile, attributes.of(metadata).asJava))
 
   def getPath(context: ProcessContext): String = parseInputDirectory(context).stripPrefix("/").stripSuffix("/")
 
-  def getMetadataStreamOrThrowError(clientRef: Ref[IO, Client[IO]])(implicit context: ProcessContext, cs: ContextShift[IO]) = for {
+  def getListingEventsOrThrowError(clientRef: Ref[IO, ClientResource], shard: Option[ListingShard] = None)(checkpoint: Option[ListingCheckpoint], unchangedFolders: Option[FolderIndex])(implicit context: ProcessContext, cs: ContextShift[IO]) = for {
     inputDirectory <- Stream.eval(IO.delay(getPath(context)))
-    eitherFiles = getMetadataStream(clientRef, inputDirectory)
-    eitherStream <- eitherFiles.flatMap{
-      case Right(metadata) => Stream.emit(metadata)
+    eitherEvents = getListingEvents(clientRef, inputDirectory, checkpoint, unchangedFolders, shard)
+    event <- eitherEvents.flatMap{
+      case Right(event) => Stream.emit(event)
       case Left(err) => Stream.raiseError[IO](new Throwable(s"There was a problem processing metadata: $err"))
     }
-  } yield eitherStream
+  } yield event
+
+  /** The shards of a distributed listing: the files directly in the input directory and, when recursing, each folder in it. */
+  def getListingShards(clientRef: Ref[IO, ClientResource])(implicit context: ProcessContext, cs: ContextShift[IO]) = for {
+    client <- clientRef.get.map(_.client)
+    properties <- IO.delay(getPath(context)).flatMap(getProperties(_))
+    folders <- if (properties.recurse) streamFileList(properties.path, properties.headers, properties.pageSize)(properties.rootUrl, client, implicitly).filter(_.folder).compile.toList
+      .attempt.map(handleErrorAndShutdown(s"There was a problem listing the shards from ${properties.rootUrl}/list/${properties.path}"))
+    else IO.pure(List())
+  } yield ListingShard(ListingShards.rootShardId, FolderToList(properties.path, "/"), recurse = false) :: folders.flatMap { folder =>
+    folder.oid.map(oid => ListingShard(oid, FolderToList(oid, s"/${folder.name}/"), recurse = true))
+  }.filter(shard => properties.pathFilter.forall(_.findFirstMatchIn(shard.root.relativePath).nonEmpty))
+
+  /**
+    * Lists the shards of the input directory that are owned by this node, each with the state kept for it in the shared
+    * cluster state. Shards are listed one after the other, and the returned state counts the files of every shard. The
+    * heartbeat of the node is renewed as the shards are listed, and a shard that another node took over in the meantime
+    * is left to it.
+    */
+  def listOwnedShards(context: ProcessContext, session: ProcessSession, logger: ComponentLog)
+                     (nodeId: String, shards: IO[List[ListingShard]], listing: ListingShard => (Option[ListingCheckpoint], Option[FolderIndex]) => Stream[IO, ListingEvent], latestTimestampKey: String, idPrefix: String)(implicit cs: ContextShift[IO]) = for {
+    stateManager <- Stream.eval(IO.delay(context.getStateManager))
+    scope <- Stream.eval(IO.delay(getStateScope(context)))
+    now <- Stream.eval(IO.delay(System.currentTimeMillis))
+    expiration <- Stream.eval(IO.delay(parseNodeExpiration(context)))
+    nodes <- Stream.eval(ListingShards.heartbeat(stateManager, scope, nodeId, now, expiration))
+    lastHeartbeat <- Stream.eval(Ref[IO].of(now))
+    stillOwned = (shardId: String) => ListingShards.stillOwned(stateManager, scope, nodeId, expiration, lastHeartbeat)(shardId)
+    all <- Stream.eval(shards)
+    owned = all.filter(shard => ListingShards.owner(shard.id, nodes) == nodeId)
+    _ <- Stream.eval(IO.delay(logger.debug(s"Listing ${owned.length} shards owned by this node out of ${nodes.length} nodes")))
+    count <- Stream.emits(owned).evalFilter(shard => stillOwned(shard.id)).flatMap { shard =>
+      Stream.eval((Ref[IO].of(0L), Ref[IO].of(ListedIdentifiers.empty), Ref[IO].of(false)).tupled).flatMap { case (lastTimestampListed, lastIds, justElectedPrimaryNode) =>
+        listFlowfiles(context, session, logger, ListingShards.stateStore(stateManager, scope, shard, all.length), stillOwned(shard.id))(listing(shard), lastTimestampListed, lastIds, justElectedPrimaryNode, latestTimestampKey, idPrefix)
+      }
+    }.fold(0)(_ + _.count)
+  } yield SaveState(ListedIdentifiers.empty, now, count)
+
+  def interruptWhenStopped[X](stopRequested: SignallingRef[IO, Boolean])(stream: Stream[IO, X])(implicit cs: ContextShift[IO]) =
+    stream.interruptWhen(stopRequested.discrete.find(identity).compile.drain.map[Either[Throwable, Unit]](_ => Left(new Throwable("The listing was interrupted because the processor was stopped"))))
+
+  /** Rolls back the FlowFiles transferred since the last checkpoint when the listing failed or was interrupted, so that they are listed again when the walk resumes. */
+  def rollbackIfFailed[X](session: ProcessSession)(either: Either[Throwable, X]) = either match {
+    case Left(_) => IO.delay(session.rollback())
+    case Right(_) => IO.unit
+  }
 
   def getStateScope(context: PropertyContext): Scope = Scope.CLUSTER
 
-  def getState(lastListedTimestamp: Long, stateManager: StateManager, scope: Scope, lastIdentifiers: List[String])
+  def getState(lastListedTimestamp: Long, store: ListingStateStore, lastIdentifiers: ListedIdentifiers)
               (latestTimestampKey: String, idPrefix: String, justElectedPrimaryNode: Ref[IO, Boolean]) = justElectedPrimaryNode.get.flatMap { justElectedPrimary =>
     if (lastListedTimestamp == 0 || justElectedPrimary) {
-      IO.delay(stateManager.getState(scope)).map {
-        _.toMap.asScala.foldLeft((List[String](), 0L)) { (last, state) =>
-          state match {
-            case (_, value) if (Option(value).isEmpty || value.isEmpty) => last
-            case (key, value) if latestTimestampKey == key => last.copy(_2 = value.toLong)
-            case (key, value) if key startsWith idPrefix => last.copy(_1 = last._1 :+ value)
-          }
-        }
+      store.get.map { stateMap =>
+        val state = stateMap.filterNot { case (_, value) => Option(value).isEmpty || value.isEmpty }
+        val legacyIdentifiers = state.collect { case (key, value) if key startsWith s"$idPrefix." => value }
+        val identifiers = legacyIdentifiers.foldLeft(ListedIdentifiers.fromStateMap(state))(_ + _)
+        (identifiers, state.get(latestTimestampKey).map(_.toLong).getOrElse(0L))
       }.flatMap { tuple => justElectedPrimaryNode.modify(old => (false, old)).map(_ => tuple) }
     }
     else IO((lastIdentifiers, lastListedTimestamp))
   }
 
-  def saveState(latestTimestamp: Long, stateManager: StateManager, scope: Scope, timestampKey: String, identifierPrefix: String, newState: SaveState)
-               (lastTimestampListed: Ref[IO, Long], lastIds: Ref[IO, List[String]]) = {
-    val stateMap = Map(timestampKey -> latestTimestamp.toString) ++ newState.ids.map( identifier => identifierPrefix + "." + identifier -> identifier)
+  def saveState(store: ListingStateStore, timestampKey: String, newState: SaveState, folderIndex: FolderIndex = FolderIndex.empty)
+               (lastTimestampListed: Ref[IO, Long], lastIds: Ref[IO, ListedIdentifiers]) = {
+    val saved = newState.bounded(store.maxSize)
+    val stateMap = Map(timestampKey -> saved.timestamp.toString) ++ saved.ids.toStateMap ++ folderIndex.toStateMap(FolderIndex.stateKeyPrefix, store.maxSize)
     for {
-      _ <- IO.delay(stateManager.setState(stateMap.asJava, scope))
-      _ <- lastTimestampListed.modify(old => (newState.timestamp, old))
-      modify <- lastIds.modify(old => (newState.ids, old))
+      _ <- store.set(stateMap)
+      _ <- lastTimestampListed.modify(old => (saved.timestamp, old))
+      modify <- lastIds.modify(old => (saved.ids, old))
     } yield modify
   }
 
   def createNewSaveState[X](newTimestamp: Long, last: SaveState, id: String, count: Int)(either: Either[Throwable, X]) = either match {
     case Right(_) =>
-      if (newTimestamp > last.timestamp) SaveState(List(id), newTimestamp, count)
-      else if (newTimestamp == last.timestamp) last.copy(ids = last.ids :+ id, count = count)
+      if (newTimestamp > last.timestamp) SaveState(ListedIdentifiers.empty + id, newTimestamp, count)
+      else if (newTimestamp == last.timestamp) last.copy(ids = last.ids + id, count = count)
       else last.copy(count = count)
     case Left(err) => throw new Throwable(err)
   }
 
-  def transferAllFlowfiles(ids: List[String], timestamp: Long, session: ProcessSession, logger: ComponentLog)(stream: Stream[IO, Metadata])
-                          (implicit cs: ContextShift[IO]) = stream.fold(IO(SaveState(ids, timestamp, 0))) { (lastIO, metadata) =>
-    lastIO.flatMap { last =>
-      val newCount = last.count + 1
-      val newTimestamp = metadata.getTimestamp
-      createAndTransferFlowFile(session, logger, metadata) map createNewSaveState(newTimestamp, last, metadata.getIdentifier, newCount)
-    }
+  /** Reads the checkpoint of an unfinished walk and, when unchanged folders are skipped, the folder index of the last completed walk. */
+  def getWalkState(store: ListingStateStore, skipUnchangedFolders: Boolean) = store.get.map { state =>
+    (ListingCheckpoint.fromStateMap(state), if (skipUnchangedFolders) Some(FolderIndex.fromStateMap(state)) else None)
   }
 
-  def listFlowfiles(context: ProcessContext, session: ProcessSession, logger: ComponentLog)
-                   (stream: Stream[IO, Metadata], lastTimestampListed: Ref[IO, Long], lastIds: Ref[IO, List[String]], justElectedPrimaryNode: Ref[IO, Boolean], latestTimestampKey: String, idPrefix: String)(implicit cs: ContextShift[IO]) = for {
+  /**
+    * Saves the walk so far alongside the listing state it started from, with the folders listed so far added to the
+    * folder index, then commits every FlowFile transferred since the last checkpoint. A walk whose checkpoint does not
+    * fit the cluster state is not checkpointed again, and commits everything at its end.
+    */
+  def saveCheckpoint(store: ListingStateStore, logger: ComponentLog, timestampKey: String, lastTimestamp: Long, lastIdentifiers: ListedIdentifiers, folderIndex: FolderIndex, session: ProcessSession, flush: ListingProgress => IO[ListingProgress])(unflushed: ListingProgress) = for {
+    progress <- flush(unflushed)
+    stateMap = Map(timestampKey -> lastTimestamp.toString) ++ lastIdentifiers.toStateMap ++ progress.folderIndex(folderIndex).toStateMap(FolderIndex.stateKeyPrefix, store.maxSize) ++ progress.checkpoint(store.maxSize).toStateMap
+    checkpointed <- if (StateEncoding.stateSize(stateMap) > store.maxSize)
+      IO.delay(logger.warn(s"The listing checkpoint takes ${StateEncoding.stateSize(stateMap)} bytes, more than the cluster state holds; the listing is committed once it completes")).map(_ => progress.copy(checkpointTooLarge = true))
+    else for {
+      _ <- store.set(stateMap)
+      _ <- IO.delay(session.commit())
+      now <- IO.delay(System.currentTimeMillis)
+    } yield progress.committed(now)
+  } yield checkpointed
+
+  /**
+    * Transfers the listed files, saving a checkpoint whenever the commit policy is due. The listing pauses at a
+    * checkpoint once the budget of this run is spent or when the success relationship is no longer available, so that
+    * the next run resumes from there. It stops without a checkpoint as soon as `stillOwned` answers that the shard being
+    * listed belongs to another node.
+    */
+  def transferAllFlowfiles(session: ProcessSession, logger: ComponentLog, output: ListingOutput, commitPolicy: CommitPolicy, budget: ListingBudget, downstreamAvailable: IO[Boolean], checkpoint: ListingProgress => IO[ListingProgress], stillOwned: IO[Boolean] = IO.pure(true))
+                          (initial: ListingProgress)(events: Stream[IO, ListingEvent])(implicit cs: ContextShift[IO]) = events.evalScan(initial) { (progress, event) =>
+    val updated = event match {
+      case WalkStarted(roots) => IO.pure(progress.walkStarted(roots))
+      case FolderDiscovered(parent, folder) => IO.pure(progress.folderDiscovered(parent, folder))
+      case FileListed(folder, metadata) =>
+        val last = progress.state
+        writeListed(session, logger, output)(progress.unwritten, metadata).map { case (unwritten, either) =>
+          progress.copy(unwritten = unwritten).fileListed(folder, metadata.getIdentifier, createNewSaveState(metadata.getTimestamp, last, metadata.getIdentifier, last.count + 1)(either))
+        }
+      case FolderListed(folder) => IO.pure(progress.folderListed(folder))
+    }
+    updated.flatMap(current => stillOwned.map(owned => if (owned) current else current.copy(paused = true, shardLost = true))).flatMap { current =>
+      IO.delay(System.currentTimeMillis).flatMap { now =>
+        if (current.shardLost || current.checkpointTooLarge) IO.pure(current)
+        else if (budget.isSpent(current, now)) checkpoint(current).map(saved => saved.copy(paused = !saved.checkpointTooLarge))
+        else if (commitPolicy.isDue(current, now)) checkpoint(current).flatMap(saved => if (saved.checkpointTooLarge) IO.pure(saved) else downstreamAvailable.map(available => saved.copy(paused = !available)))
+        else IO.pure(current)
+      }
+    }
+  }.takeThrough(!_.paused).last.map(_.getOrElse(initial))
+
+  def listFlowfiles(context: ProcessContext, session: ProcessSession, logger: ComponentLog, store: ListingStateStore, stillOwned: IO[Boolean] = IO.pure(true))
+                   (listing: (Option[ListingCheckpoint], Option[FolderIndex]) => Stream[IO, ListingEvent], lastTimestampListed: Ref[IO, Long], lastIds: Ref[IO, ListedIdentifiers], justElectedPrimaryNode: Ref[IO, Boolean], latestTimestampKey: String, idPrefix: String)(implicit cs: ContextShift[IO]) = for {
     lastListedTimestamp <- Stream.eval(lastTimestampListed.get)
     lastIdentifiers <- Stream.eval(lastIds.get)
-    stateManager <- Stream.eval(IO.delay(context.getStateManager))
-    scope <- Stream.eval(IO.delay(getStateScope(context)))
-    stateTuple <- Stream.eval(getState(lastListedTimestamp, stateManager, scope, lastIdentifiers)(latestTimestampKey, idPrefix, justElectedPrimaryNode))
+    stateTuple <- Stream.eval(getState(lastListedTimestamp, store, lastIdentifiers)(latestTimestampKey, idPrefix, justElectedPrimaryNode))
     (lastIdsProcessed, lastTimestamp) = stateTuple
-    filteredStream = stream.filter(metadata => metadata.getTimestamp >= lastTimestamp && !lastIdsProcessed.contains(metadata.getIdentifier))
-    newStateIO <- filteredStream.through(transferAllFlowfiles(lastIdentifiers, lastTimestamp, session, logger))
-    newState <- Stream.eval(newStateIO)
-    _ <- Stream.eval(saveState(lastTimestamp, stateManager, scope, latestTimestampKey, idPrefix, newState)(lastTimestampListed, lastIds))
-    _ <- Stream.eval(IO.delay(logger.info(s"Successfully created listing with ${newState.count} new objects")))
-    _ <- Stream.eval(IO.delay(session.commit()))
+    skipUnchangedFolders <- Stream.eval(IO.delay(parseSkipUnchangedFolders(context)))
+    walkState <- Stream.eval(getWalkState(store, skipUnchangedFolders))
+    (checkpoint, folderIndex) = walkState
+    previousIndex = folderIndex.getOrElse(FolderIndex.empty)
+    commitPolicy <- Stream.eval(IO.delay(CommitPolicy(parseCommitBatchSize(context), parseCommitInterval(context))))
+    budget <- Stream.eval(IO.delay(ListingBudget(parseMaxObjectsPerRun(context), parseMaxRunTime(context), System.currentTimeMillis)))
+    downstreamAvailable = IO.delay(context.getAvailableRelationships.contains(RelSuccess))
+    output <- Stream.eval(IO.delay(parseRecordWriter(context).map(RecordOutput(_, parseRecordsPerFlowFile(context))).getOrElse(FlowFilePerObject(ListedAttributes(parseAttributeGroups(context), parsePolicyCacheService(context))))))
+    flush = flushListed(session, logger, output)(_)
+    now <- Stream.eval(IO.delay(System.currentTimeMillis))
+    initial = checkpoint match {
+      case Some(resumed) => ListingProgress.start(resumed.progress, checkpoint, now)
+      case None => ListingProgress.start(SaveState(lastIdsProcessed, lastTimestamp, 0), None, now)
+    }
+    alreadyListed = checkpoint.map(_.listedFiles).getOrElse(ListedIdentifiers.empty)
+    filteredStream = listing(checkpoint, folderIndex).filter {
+      case FileListed(_, metadata) => metadata.getTimestamp >= lastTimestamp && !lastIdsProcessed.contains(metadata.getIdentifier) && !alreadyListed.contains(metadata.getIdentifier)
+      case _ => true
+    }
+    unflushed <- filteredStream.through(transferAllFlowfiles(session, logger, output, commitPolicy, budget, downstreamAvailable, saveCheckpoint(store, logger, latestTimestampKey, lastTimestamp, lastIdsProcessed, previousIndex, session, flush), stillOwned)(initial))
+    newState = unflushed.state
+    _ <- Stream.eval(if (unflushed.shardLost) IO.delay(session.rollback()).flatMap(_ => IO.delay(logger.info("Stopped listing a shard that another node took over; the objects listed since its last checkpoint are left to that node")))
+      else if (unflushed.paused) IO.delay(logger.info(s"Paused the listing after ${newState.count} new objects; it resumes on the next run")) else for {
+      progress <- flush(unflushed)
+      _ <- saveState(store, latestTimestampKey, progress.state, progress.folderIndex(previousIndex))(lastTimestampListed, lastIds)
+      _ <- IO.delay(logger.info(s"Successfully created listing with ${newState.count} new objects"))
+      _ <- IO.delay(session.commit())
+    } yield ())
   } yield newState
 }
 
-case class ListFilesConfig(recurse: Boolean, rootUrl: Uri, path: String, fileFilter: Regex, pathFilter: Option[Regex], minFileAge: Long, maxFileAge: Option[Long], minFileSize: Long, maxFileSize: Option[Long], headers: Headers)
+case class ListFilesConfig(recurse: Boolean, rootUrl: Uri, path: String, fileFilter: Regex, pathFilter: Option[Regex], minFileAge: Long, maxFileAge: Option[Long], minFileSize: Long, maxFileSize: Option[Long], headers: Headers, listingConcurrency: Int = 1, pageSize: Option[Int] = None)
+
+/** A folder waiting to be listed. `marker` is its change marker when unchanged folders are skipped. */
+case class FolderToList(path: Uri.Path, relativePath: String, marker: Option[Int] = None)
+
+case class SaveState(ids: ListedIdentifiers, timestamp: Long, count: Int) {
+
+  /**
+    * The state to save. When the identifiers at the latest timestamp do not fit their share of the cluster state, every
+    * object at that timestamp is taken as listed and the state moves past the timestamp instead of holding them.
+    */
+  def bounded(maxStateSize: Int = StateEncoding.maxStateSize) =
+    if (ids.encoded.length <= ListedIdentifiers.maxEncodedLength(maxStateSize)) this else SaveState(ListedIdentifiers.empty, timestamp + 1, count)
+}
+
+case class CommitPolicy(batchSize: Int, intervalMillis: Long) {
+  def isDue(progress: ListingProgress, now: Long) = progress.uncommitted >= batchSize || (progress.uncommitted > 0 && now - progress.lastCommit >= intervalMillis)
+}
 
-case class SaveState(ids: List[String], timestamp: Long, count: Int)
\ No newline at end of file
+/** How much a single run may list before it pauses, counted from `started`. */
+case class ListingBudget(maxObjects: Option[Int], maxRunMillis: Option[Long], started: Long) {
+  def isSpent(progress: ListingProgress, now: Long) = maxObjects.exists(progress.state.count >= _) || maxRunMillis.exists(now - started >= _)
+}
\ No newline at end of file
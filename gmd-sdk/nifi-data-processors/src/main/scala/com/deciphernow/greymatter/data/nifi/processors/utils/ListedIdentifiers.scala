@@ -0,0 +1,91 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.io.{InputStream, OutputStream}
+
+import scala.util.hashing.MurmurHash3
+
+/**
+  * The identifiers that have already been listed at the latest timestamp, held as a hash set of 64-bit hashes so that
+  * lookups and inserts take constant time. GM Data oids are 16 hex digits and are stored as their exact value; any
+  * other identifier is reduced to a 64-bit MurmurHash3.
+  *
+  * In cluster state the hashes are sorted, delta and varint encoded, deflated and base64 encoded, then split across
+  * keys named `listing.ids.0`, `listing.ids.1`, and so on. The listing only saves them while they fit
+  * `maxEncodedLength`, see [[SaveState.bounded]].
+  */
+case class ListedIdentifiers(hashes: Set[Long]) {
+
+  def contains(identifier: String) = hashes.contains(ListedIdentifiers.hash(identifier))
+
+  def +(identifier: String) = ListedIdentifiers(hashes + ListedIdentifiers.hash(identifier))
+
+  def ++(other: ListedIdentifiers) = ListedIdentifiers(hashes ++ other.hashes)
+
+  def size = hashes.size
+
+  lazy val encoded = ListedIdentifiers.encode(hashes)
+
+  def toStateMap: Map[String, String] = toStateMap(ListedIdentifiers.stateKeyPrefix)
+
+  def toStateMap(keyPrefix: String): Map[String, String] = StateEncoding.toStateMap(keyPrefix, encoded)
+}
+
+object ListedIdentifiers {
+
+  val stateKeyPrefix = "listing.ids."
+
+  val empty = ListedIdentifiers(Set[Long]())
+
+  /** The share of the state that the identifiers at the latest timestamp may take. */
+  def maxEncodedLength(maxStateSize: Int) = maxStateSize / 4
+
+  /** Only the canonical form of an oid is stored as its value, so that identifiers differing in case or leading zeros stay apart. */
+  private val oidPattern = "[0-9a-f]{16}".r
+
+  def fromIdentifiers(identifiers: Iterable[String]) = ListedIdentifiers(identifiers.map(hash).toSet)
+
+  def hash(identifier: String): Long = identifier match {
+    case oidPattern() => java.lang.Long.parseUnsignedLong(identifier, 16)
+    case _ => (MurmurHash3.stringHash(identifier, 0x6a09e667).toLong << 32) | (MurmurHash3.stringHash(identifier, 0x3c6ef372) & 0xffffffffL)
+  }
+
+  /** Rebuilds the identifiers from the values of the state keys, in any order. */
+  def fromStateMap(state: Map[String, String], keyPrefix: String = stateKeyPrefix) =
+    StateEncoding.fromStateMap(keyPrefix, state).map(decode).map(ListedIdentifiers(_)).getOrElse(empty)
+
+  /** Writes the identifiers preceded by their number, so that other values can follow them in the same stream. */
+  def write(out: OutputStream, identifiers: ListedIdentifiers): Unit = {
+    StateEncoding.writeVarLong(out, identifiers.size)
+    writeSorted(out, identifiers.hashes)
+  }
+
+  /** Reads identifiers written by [[write]]. */
+  def read(in: InputStream) = {
+    def next = StateEncoding.readVarLong(in).getOrElse(throw new Throwable("A value in the processor state is truncated"))
+    var previous = 0L
+    ListedIdentifiers(List.fill(next.toInt) {
+      previous += next
+      previous
+    }.toSet)
+  }
+
+  private def encode(hashes: Set[Long]) = StateEncoding.compress(writeSorted(_, hashes))
+
+  private def writeSorted(out: OutputStream, hashes: Set[Long]) =
+    hashes.toArray.sortWith(java.lang.Long.compareUnsigned(_, _) < 0).foldLeft(0L) { (previous, current) =>
+      StateEncoding.writeVarLong(out, current - previous)
+      current
+    }
+
+  private def decode(encoded: String) = StateEncoding.decompress(encoded) { in =>
+    val hashes = Set.newBuilder[Long]
+    var previous = 0L
+    var delta = StateEncoding.readVarLong(in)
+    while (delta.nonEmpty) {
+      previous += delta.get
+      hashes += previous
+      delta = StateEncoding.readVarLong(in)
+    }
+    hashes.result()
+  }
+}
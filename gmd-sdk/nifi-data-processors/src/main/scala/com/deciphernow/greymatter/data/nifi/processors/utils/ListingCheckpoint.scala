@@ -0,0 +1,152 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.io.DataInputStream
+import java.nio.charset.StandardCharsets
+
+import com.deciphernow.greymatter.data.nifi.http.Metadata
+import io.circe.generic.auto._
+import io.circe.parser.{decode => decodeJson}
+import io.circe.syntax._
+import org.http4s.Uri
+
+/** What a folder walk reports, in the order it happens for each folder. */
+sealed trait ListingEvent
+
+/** The walk is about to list these folders, either the input directory or the frontier of a resumed walk. */
+case class WalkStarted(roots: List[FolderToList]) extends ListingEvent
+
+/** A folder was found under `parent` and will be listed. It is reported before any event from the folder itself. */
+case class FolderDiscovered(parent: Uri.Path, folder: FolderToList) extends ListingEvent
+
+case class FileListed(folder: Uri.Path, metadata: Metadata) extends ListingEvent
+
+/** Every object of the folder has been reported, including the folders discovered in it. */
+case class FolderListed(folder: Uri.Path) extends ListingEvent
+
+/** A folder of the frontier, with the folders it has reported and the files that were committed from it so far. */
+case class FolderProgress(folder: FolderToList, discoveredFolders: ListedIdentifiers, listedFiles: ListedIdentifiers)
+
+/**
+  * The part of an unfinished walk that is saved with each intermediate commit so that a restarted walk can resume.
+  *
+  * `frontier` holds the folders that have not been completely listed. When one of them is listed again, the folders
+  * it already reported are skipped, and so are the files that were already committed from it. Nothing is kept for
+  * the folders that were completely listed. `progress` is the newest timestamp and its identifiers among the files
+  * committed so far.
+  *
+  * In cluster state the frontier is written as the number of folders followed, for each folder, by its JSON and its
+  * two sets of identifiers, then deflated and base64 encoded and split across keys named `listing.walk.frontier.0`,
+  * `listing.walk.frontier.1`, and so on.
+  */
+case class ListingCheckpoint(frontier: List[FolderProgress], progress: SaveState) {
+  import ListingCheckpoint._
+
+  def discoveredFolders = frontier.foldLeft(ListedIdentifiers.empty)(_ ++ _.discoveredFolders)
+
+  def listedFiles = frontier.foldLeft(ListedIdentifiers.empty)(_ ++ _.listedFiles)
+
+  def toStateMap: Map[String, String] =
+    StateEncoding.toStateMap(frontierKeyPrefix, encode(frontier)) ++
+      progress.ids.toStateMap(progressIdsKeyPrefix) +
+      (progressTimestampKey -> progress.timestamp.toString)
+}
+
+object ListingCheckpoint {
+
+  val frontierKeyPrefix = "listing.walk.frontier."
+
+  val progressIdsKeyPrefix = "listing.walk.ids."
+
+  val progressTimestampKey = "listing.walk.timestamp"
+
+  def fromStateMap(state: Map[String, String]): Option[ListingCheckpoint] = StateEncoding.fromStateMap(frontierKeyPrefix, state).map { encoded =>
+    ListingCheckpoint(
+      decode(encoded),
+      SaveState(ListedIdentifiers.fromStateMap(state, progressIdsKeyPrefix), state.get(progressTimestampKey).map(_.toLong).getOrElse(0L), 0))
+  }
+
+  private def encode(frontier: List[FolderProgress]) = StateEncoding.compress { out =>
+    StateEncoding.writeVarLong(out, frontier.length)
+    frontier.foreach { folder =>
+      val json = folder.folder.asJson.noSpaces.getBytes(StandardCharsets.UTF_8)
+      StateEncoding.writeVarLong(out, json.length)
+      out.write(json)
+      ListedIdentifiers.write(out, folder.discoveredFolders)
+      ListedIdentifiers.write(out, folder.listedFiles)
+    }
+  }
+
+  private def decode(encoded: String) = StateEncoding.decompress(encoded) { in =>
+    def next = StateEncoding.readVarLong(in).getOrElse(throw new Throwable("The listing checkpoint in the processor state is truncated"))
+    List.fill(next.toInt) {
+      val json = new Array[Byte](next.toInt)
+      new DataInputStream(in).readFully(json)
+      val folder = decodeJson[FolderToList](new String(json, StandardCharsets.UTF_8)) match {
+        case Right(decoded) => decoded
+        case Left(err) => throw new Throwable(s"There was a problem reading the listing checkpoint from the processor state: $err")
+      }
+      FolderProgress(folder, ListedIdentifiers.read(in), ListedIdentifiers.read(in))
+    }
+  }
+}
+
+/**
+  * The bookkeeping of a walk in progress, updated from the [[ListingEvent]]s in the order they are handled. Folders in
+  * the frontier are keyed by path along with the folders they have reported and the files that were transferred from
+  * them, which are only needed until the folder is completely listed. With a [[RecordOutput]], `unwritten` holds the
+  * listed objects that have not been written to a FlowFile yet. `indexedFolders` collects the markers of the folders
+  * listed in this run. `paused` is set when the run stopped at a checkpoint before the walk was complete, and
+  * `checkpointTooLarge` once a checkpoint of the walk did not fit the cluster state. `shardLost` is set when the
+  * walk stopped because another node took its shard over.
+  */
+case class ListingProgress(state: SaveState,
+                           frontier: Map[Uri.Path, FolderToList],
+                           discoveredFolders: Map[Uri.Path, ListedIdentifiers],
+                           listedFiles: Map[Uri.Path, ListedIdentifiers],
+                           uncommitted: Int,
+                           lastCommit: Long,
+                           unwritten: Vector[Metadata] = Vector(),
+                           indexedFolders: FolderIndex = FolderIndex.empty,
+                           paused: Boolean = false,
+                           checkpointTooLarge: Boolean = false,
+                           shardLost: Boolean = false) {
+
+  def walkStarted(roots: List[FolderToList]) = copy(frontier = frontier ++ roots.map(folder => folder.path -> folder))
+
+  def folderDiscovered(parent: Uri.Path, folder: FolderToList) = copy(
+    frontier = frontier + (folder.path -> folder),
+    discoveredFolders = discoveredFolders + (parent -> (discoveredFolders.getOrElse(parent, ListedIdentifiers.empty) + folder.path)))
+
+  def fileListed(folder: Uri.Path, identifier: String, newState: SaveState) = copy(
+    state = newState,
+    listedFiles = listedFiles + (folder -> (listedFiles.getOrElse(folder, ListedIdentifiers.empty) + identifier)),
+    uncommitted = uncommitted + 1)
+
+  def folderListed(folder: Uri.Path) = copy(
+    frontier = frontier - folder,
+    discoveredFolders = discoveredFolders - folder,
+    listedFiles = listedFiles - folder,
+    indexedFolders = frontier.get(folder).flatMap(_.marker).map(marker => indexedFolders + (folder -> marker)).getOrElse(indexedFolders))
+
+  /** The folder index updated with every folder listed in this run. */
+  def folderIndex(previous: FolderIndex) = previous ++ indexedFolders
+
+  def committed(now: Long) = copy(uncommitted = 0, lastCommit = now)
+
+  def checkpoint(maxStateSize: Int = StateEncoding.maxStateSize) = ListingCheckpoint(
+    frontier.values.toList.map(folder => FolderProgress(folder, discoveredFolders.getOrElse(folder.path, ListedIdentifiers.empty), listedFiles.getOrElse(folder.path, ListedIdentifiers.empty))),
+    state.bounded(maxStateSize))
+}
+
+object ListingProgress {
+
+  /** Starts a run, resuming the per-folder progress of the frontier when a checkpoint was saved. */
+  def start(state: SaveState, resumedFrom: Option[ListingCheckpoint], now: Long) = {
+    val resumed = resumedFrom.map(_.frontier).getOrElse(List())
+    ListingProgress(state,
+      resumed.map(folder => folder.folder.path -> folder.folder).toMap,
+      resumed.map(folder => folder.folder.path -> folder.discoveredFolders).toMap,
+      resumed.map(folder => folder.folder.path -> folder.listedFiles).toMap,
+      0, now)
+  }
+}
@@ -0,0 +1,46 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import com.deciphernow.greymatter.data.nifi.http.Metadata
+import org.apache.nifi.serialization.SimpleRecordSchema
+import org.apache.nifi.serialization.record.{MapRecord, Record, RecordField, RecordFieldType, RecordSchema}
+import org.apache.nifi.serialization.RecordSetWriterFactory
+
+/** How ListFiles emits what it lists: one FlowFile per object, or records written by a Record Writer. */
+sealed trait ListingOutput
+
+case class FlowFilePerObject(attributes: ListedAttributes = ListedAttributes.all) extends ListingOutput
+
+case class RecordOutput(writerFactory: RecordSetWriterFactory, recordsPerFlowFile: Int) extends ListingOutput
+
+/** The record schema of a listed object. Its fields carry the same values as the attributes of a FlowFile per object. */
+object ListingRecords {
+  import scala.collection.JavaConverters._
+
+  private val stringFields = List(
+    "oid" -> "gmdata.oid",
+    "parentoid" -> "gmdata.parentoid",
+    "name" -> "filename",
+    "path" -> "path",
+    "tstamp" -> "file.lastModifiedTime",
+    "mimetype" -> "mime.type",
+    "sha256" -> "gmdata.sha256",
+    "fileurl" -> "gmdata.fileurl",
+    "owner" -> "file.owner",
+    "objectpolicy" -> "gmdata.objectpolicy",
+    "originalobjectpolicy" -> "gmdata.originalobjectpolicy",
+    "security" -> "gmdata.security",
+    "custom" -> "gmdata.custom")
+
+  val schema: RecordSchema = new SimpleRecordSchema((
+    stringFields.map { case (field, _) => new RecordField(field, RecordFieldType.STRING.getDataType) } ++ List(
+      new RecordField("size", RecordFieldType.LONG.getDataType),
+      new RecordField("policy", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.STRING.getDataType)))).asJava)
+
+  def toRecord(metadata: Metadata): Record = {
+    val attributes = metadata.attributeMap
+    val values = stringFields.map { case (field, attribute) => field -> (attributes.get(attribute).orNull: AnyRef) }.toMap ++ Map(
+      "size" -> metadata.size.map(Long.box).orNull,
+      "policy" -> metadata.policy.map(_.policy.toArray[AnyRef]).orNull)
+    new MapRecord(schema, values.asJava)
+  }
+}
@@ -0,0 +1,121 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.util.UUID
+
+import cats.effect.concurrent.Ref
+import cats.effect.{ContextShift, IO}
+import org.apache.nifi.components.state.{Scope, StateManager}
+
+import scala.util.hashing.MurmurHash3
+
+/**
+  * Where a listing keeps its state: the whole state of the processor, or the part of it that belongs to one shard.
+  * `maxSize` is the size, as counted by [[StateEncoding.stateSize]], that the state written by `set` may take.
+  */
+sealed trait ListingStateStore {
+
+  def get: IO[Map[String, String]]
+
+  def set(state: Map[String, String]): IO[Unit]
+
+  def maxSize: Int
+}
+
+case class ProcessorStateStore(stateManager: StateManager, scope: Scope) extends ListingStateStore {
+  import scala.collection.JavaConverters._
+
+  def get = IO.delay(stateManager.getState(scope).toMap.asScala.toMap)
+
+  def set(state: Map[String, String]) = IO.delay(stateManager.setState(state.asJava, scope))
+
+  val maxSize = StateEncoding.maxStateSize
+}
+
+/**
+  * The keys under `keyPrefix` of a state that is shared by every node of the cluster. The prefix is stripped from the
+  * keys that are read and added to the keys that are written, and a write only replaces the keys under the prefix.
+  */
+case class SharedStateStore(stateManager: StateManager, scope: Scope, keyPrefix: String, maxSize: Int)(implicit cs: ContextShift[IO]) extends ListingStateStore {
+
+  def get = ListingShards.getSharedState(stateManager, scope).map(_.collect { case (key, value) if key startsWith keyPrefix => key.stripPrefix(keyPrefix) -> value })
+
+  def set(state: Map[String, String]) = ListingShards.updateSharedState(stateManager, scope) { shared =>
+    shared.filterKeys(!_.startsWith(keyPrefix)) ++ state.map { case (key, value) => s"$keyPrefix$key" -> value }
+  }.map(_ => ())
+}
+
+/** A subtree of the input directory that is listed by a single cluster node. */
+case class ListingShard(id: String, root: FolderToList, recurse: Boolean)
+
+/**
+  * Splits a distributed listing across the cluster. Every node records a heartbeat in the shared state, and each shard
+  * is listed by the live node that ranks highest for it by rendezvous hashing, so that a node joining or leaving only
+  * moves the shards it gains or loses. The state of each shard is kept under its own prefix, so the node that takes a
+  * shard over continues from where the previous owner left off. Since the whole cluster state of the processor is
+  * kept in a single ZooKeeper znode, the shards share its size evenly, after some room for the heartbeats.
+  */
+object ListingShards {
+  import scala.collection.JavaConverters._
+
+  val nodeKeyPrefix = "listing.nodes."
+
+  val shardKeyPrefix = "listing.shards."
+
+  /** The shard holding the files directly in the input directory. The other shards are named by the oid of their folder. */
+  val rootShardId = "root"
+
+  /** The key of the local state that holds the id of this node, so that a node keeps its id and its shards across restarts. */
+  val localNodeIdKey = "listing.node"
+
+  val maxUpdateAttempts = 10
+
+  def stateStore(stateManager: StateManager, scope: Scope, shard: ListingShard, shards: Int)(implicit cs: ContextShift[IO]) =
+    SharedStateStore(stateManager, scope, s"$shardKeyPrefix${shard.id}.", StateEncoding.maxStateSize * 9 / 10 / shards)
+
+  /** The id of this node, which is created the first time and then read from the local state of the node. */
+  def nodeId(stateManager: StateManager) = IO.delay {
+    val local = stateManager.getState(Scope.LOCAL).toMap.asScala.toMap
+    local.getOrElse(localNodeIdKey, {
+      val created = UUID.randomUUID.toString
+      stateManager.setState((local + (localNodeIdKey -> created)).asJava, Scope.LOCAL)
+      created
+    })
+  }
+
+  def owner(shardId: String, nodes: List[String]) = nodes.maxBy(node => (MurmurHash3.stringHash(s"$node/$shardId"), node))
+
+  /** Records a heartbeat for the node, drops the nodes whose heartbeat expired and returns the nodes that are left. */
+  def heartbeat(stateManager: StateManager, scope: Scope, nodeId: String, now: Long, expirationMillis: Long)(implicit cs: ContextShift[IO]) = updateSharedState(stateManager, scope) { state =>
+    state.filterNot { case (key, value) => key.startsWith(nodeKeyPrefix) && now - value.toLong >= expirationMillis } + (s"$nodeKeyPrefix$nodeId" -> now.toString)
+  }.map(_.keys.collect { case key if key startsWith nodeKeyPrefix => key.stripPrefix(nodeKeyPrefix) }.toList.sorted)
+
+  /**
+    * Whether this node still owns the shard. The heartbeat of the node is renewed once a quarter of the expiration has
+    * passed since `lastHeartbeat`, so that a walk that runs longer than the expiration keeps its shards, and the owner
+    * of the shard is decided again from the nodes that are left. In between, the shard is taken to still be owned.
+    */
+  def stillOwned(stateManager: StateManager, scope: Scope, nodeId: String, expirationMillis: Long, lastHeartbeat: Ref[IO, Long])(shardId: String)(implicit cs: ContextShift[IO]) = for {
+    now <- IO.delay(System.currentTimeMillis)
+    last <- lastHeartbeat.get
+    owned <- if (now - last < expirationMillis / 4) IO.pure(true)
+      else heartbeat(stateManager, scope, nodeId, now, expirationMillis).flatMap(nodes => lastHeartbeat.set(now).map(_ => owner(shardId, nodes) == nodeId))
+  } yield owned
+
+  def leave(stateManager: StateManager, scope: Scope, nodeId: String)(implicit cs: ContextShift[IO]) = updateSharedState(stateManager, scope)(_ - s"$nodeKeyPrefix$nodeId")
+
+  def getSharedState(stateManager: StateManager, scope: Scope) = IO.delay(stateManager.getState(scope).toMap.asScala.toMap)
+
+  /**
+    * Applies the update to the shared state, starting over whenever another node changed the state in the meantime.
+    * The thread is yielded before each new attempt, and the update fails after `maxUpdateAttempts` attempts.
+    */
+  def updateSharedState(stateManager: StateManager, scope: Scope, attempt: Int = 1)(update: Map[String, String] => Map[String, String])(implicit cs: ContextShift[IO]): IO[Map[String, String]] = IO.delay {
+    val current = stateManager.getState(scope)
+    val updated = update(current.toMap.asScala.toMap)
+    if (stateManager.replace(current, updated.asJava, scope)) Some(updated) else None
+  }.flatMap {
+    case Some(updated) => IO.pure(updated)
+    case None if attempt >= maxUpdateAttempts => IO.raiseError(new Throwable(s"Could not update the shared listing state after $attempt attempts because other nodes kept changing it"))
+    case None => cs.shift.flatMap(_ => updateSharedState(stateManager, scope, attempt + 1)(update))
+  }
+}
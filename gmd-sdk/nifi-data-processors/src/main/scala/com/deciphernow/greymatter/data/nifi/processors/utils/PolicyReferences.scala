@@ -0,0 +1,72 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.io.OutputStream
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+
+import com.deciphernow.greymatter.data.nifi.http.Metadata
+import org.apache.nifi.distributed.cache.client.{Deserializer, DistributedMapCacheClient, Serializer}
+
+/**
+  * Object policies kept once in a distributed map cache under the SHA-256 of their rendering, so that a FlowFile only
+  * needs to carry the short `gmdata.objectpolicy.hash` reference instead of the policy itself.
+  */
+object PolicyReferences {
+
+  val policyAttribute = "gmdata.objectpolicy"
+
+  val hashAttribute = "gmdata.objectpolicy.hash"
+
+  def cacheKey(hash: String) = s"$policyAttribute.$hash"
+
+  def store(cache: DistributedMapCacheClient, hash: String, policy: String) = cache.putIfAbsent(cacheKey(hash), policy, stringSerializer, stringSerializer)
+
+  def resolve(cache: DistributedMapCacheClient, hash: String) = Option(cache.get(cacheKey(hash), stringSerializer, stringDeserializer))
+
+  private[utils] val stringSerializer = new Serializer[String] {
+    override def serialize(value: String, output: OutputStream): Unit = output.write(value.getBytes(StandardCharsets.UTF_8))
+  }
+
+  private[utils] val stringDeserializer = new Deserializer[String] {
+    override def deserialize(input: Array[Byte]): String = Option(input).map(new String(_, StandardCharsets.UTF_8)).orNull
+  }
+}
+
+/**
+  * The attributes that ListFiles writes on a FlowFile per object, limited to the selected groups. With a policy cache,
+  * the object policy is stored in the cache and replaced by its hash; each distinct policy is stored once per run, and
+  * again by the next FlowFile that has it when storing it failed.
+  */
+case class ListedAttributes(groups: Set[String], policyCache: Option[DistributedMapCacheClient]) {
+
+  private val storedPolicies = ConcurrentHashMap.newKeySet[String]()
+
+  private val names = groups.flatMap(ListedAttributes.groups)
+
+  def of(metadata: Metadata): Map[String, String] = {
+    val attributes = metadata.attributeMap.filter { case (key, _) => names.contains(key) }
+    policyCache match {
+      case Some(cache) => attributes.get(PolicyReferences.policyAttribute).map { policy =>
+        val hash = Metadata.internPolicy(metadata.objectpolicy).hash
+        if (!storedPolicies.contains(hash)) {
+          PolicyReferences.store(cache, hash, policy)
+          storedPolicies.add(hash)
+        }
+        attributes - PolicyReferences.policyAttribute + (PolicyReferences.hashAttribute -> hash)
+      }.getOrElse(attributes)
+      case None => attributes
+    }
+  }
+}
+
+object ListedAttributes {
+
+  val groups = Map(
+    "file" -> Set("filename", "path", "file.owner", "file.size", "file.lastModifiedTime", "file.creationTime", "mime.type"),
+    "gmdata" -> Set("gmdata.fileurl", "gmdata.oid", "gmdata.parentoid", "gmdata.sha256"),
+    "policy" -> Set(PolicyReferences.policyAttribute, "gmdata.originalobjectpolicy"),
+    "security" -> Set("gmdata.security"),
+    "custom" -> Set("gmdata.custom"))
+
+  val all = ListedAttributes(groups.keySet, None)
+}
@@ -88,7 +88,7 @@ trait PrepareWriteRequestUtils extends PrepareWriteRequestProperties with Proces
     secondMeta(fileName, boundary)
 
   private def getMetadata(implicit flowFile: FlowFile, context: ProcessContext, boundary: String) = for {
-    objectPolicy <- IO.fromEither(parseObjectPolicy).attempt.map(handleErrorAndShutdown("The Object Policy property was not correctly set"))
+    objectPolicy <- IO.delay(parseReferencedObjectPolicy).flatMap(IO.fromEither).attempt.map(handleErrorAndShutdown("The Object Policy property was not correctly set"))
     oid <- IO.delay(parseParentOid).attempt map handleErrorAndShutdown("The oid property was not correctly set")
     actionEither <- IO.delay(parseAction).attempt map handleErrorAndContinue("The action attribute was not able to be parsed from the flowfile")
     fileNameEither <- IO.delay(parseFilename).attempt map handleErrorAndContinue("The filename attribute was not able to be parsed from the flowfile")
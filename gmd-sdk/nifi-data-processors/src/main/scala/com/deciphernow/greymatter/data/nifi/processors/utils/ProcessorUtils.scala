@@ -1,16 +1,19 @@
 package com.deciphernow.greymatter.data.nifi.processors.utils
 
 import cats.effect.concurrent.Ref
-import cats.effect.{ Blocker, ContextShift, IO }
+import cats.effect.{ Blocker, ContextShift, IO, Resource }
 import cats.implicits._
 import com.deciphernow.greymatter.data.nifi.properties.CommonProperties
 import com.deciphernow.greymatter.data.nifi.relationships.ProcessorRelationships
+import com.deciphernow.greymatter.data.nifi.services.GmDataClientService
 import javax.net.ssl.SSLContext
 import org.apache.nifi.flowfile.FlowFile
 import org.apache.nifi.logging.ComponentLog
 import org.apache.nifi.processor.{ ProcessContext, ProcessSession, Relationship }
+import org.http4s.Response
 import org.http4s.client.Client
 import org.http4s.client.blaze.BlazeClientBuilder
+import scala.collection.JavaConverters._
 import scala.concurrent.duration._
 
 import scala.concurrent.ExecutionContext
@@ -22,15 +25,31 @@ trait ProcessorUtils extends CommonProperties with ProcessorRelationships with E
 
   protected def updateAttributeWithPrefix(prefix: String)(key: String, value: String)(implicit flowFile: FlowFile, session: ProcessSession) = updateAttribute(prefix + key, value)
 
-  protected def initializeClient(context: ProcessContext, blocker: Blocker, clientRef: Ref[IO, Client[IO]])(implicit ctxShift: ContextShift[IO], ec: ExecutionContext) = {
+  protected def initializeClient(context: ProcessContext, clientRef: Ref[IO, ClientResource])(implicit ctxShift: ContextShift[IO], ec: ExecutionContext) = {
     for {
-      sslContext <- blocker.delay[IO, Option[SSLContext]](parseSSLContext(context))
-      httpTimeout <- blocker.delay[IO, FiniteDuration](parseHttpTimeout(context).getOrElse(5.seconds))
-      client <- BlazeClientBuilder[IO](ec, sslContext).withConnectTimeout(httpTimeout).withRequestTimeout(httpTimeout).withCheckEndpointAuthentication(false).allocated.map(_._1)
-      updateClient <- clientRef.modify(old => (client, old))
-    } yield updateClient
+      allocated <- Blocker[IO].use(allocateClient(context, _))
+      (client, release) = allocated
+      old <- clientRef.getAndSet(ClientResource(client, release))
+      released <- old.release
+    } yield released
   }.unsafeRunSync()
 
+  protected def releaseClient(clientRef: Ref[IO, ClientResource]) = clientRef.getAndSet(ClientResource.unavailable).flatMap(_.release).unsafeRunSync()
+
+  private def allocateClient(context: ProcessContext, blocker: Blocker)(implicit ctxShift: ContextShift[IO], ec: ExecutionContext) = for {
+    httpTimeout <- blocker.delay[IO, FiniteDuration](parseHttpTimeout(context).getOrElse(5.seconds))
+    clientService <- blocker.delay[IO, Option[GmDataClientService]](parseGmDataClientService(context))
+    client <- clientService match {
+      case Some(service) => blocker.delay[IO, Client[IO]](service.getClient(parseSSLContextService(context), httpTimeout)).map(client => (client, IO.unit))
+      case None => buildClient(context, blocker, httpTimeout)
+    }
+  } yield client
+
+  private def buildClient(context: ProcessContext, blocker: Blocker, httpTimeout: FiniteDuration)(implicit ctxShift: ContextShift[IO], ec: ExecutionContext) = for {
+    sslContext <- blocker.delay[IO, Option[SSLContext]](parseSSLContext(context))
+    client <- BlazeClientBuilder[IO](ec, sslContext).withConnectTimeout(httpTimeout).withRequestTimeout(httpTimeout).withCheckEndpointAuthentication(false).allocated
+  } yield client
+
   def transferResult[X](logger: ComponentLog)(flowFile: FlowFile, transfer: (Relationship, FlowFile) => IO[Unit])(either: Either[Throwable, X]) = (either match {
     case Right(success) => transfer(RelSuccess, flowFile).attempt
     case Left(err) => IO.delay(logger.error(err.getMessage)).flatMap(_ => transfer(RelFailure, flowFile)).attempt
@@ -46,5 +65,21 @@ trait ProcessorUtils extends CommonProperties with ProcessorRelationships with E
     new Throwable(err)
   })
 
+  def getFlowFiles(session: ProcessSession, logger: ComponentLog, maxResults: Int) = IO(session.get(maxResults).asScala.toList).map { flowFiles =>
+    Either.cond(flowFiles.nonEmpty, flowFiles, "No flowfile was received but processor was triggered.").leftMap { err =>
+      logger.error(err)
+      new Throwable(err)
+    }
+  }
+
 }
 
+/**
+  * A client together with the finalizer that releases its connections and threads. Clients borrowed from a
+  * [[com.deciphernow.greymatter.data.nifi.services.GmDataClientService]] are owned by the service and release nothing.
+  */
+case class ClientResource(client: Client[IO], release: IO[Unit])
+
+object ClientResource {
+  val unavailable = ClientResource(Client[IO](_ => Resource.liftF(IO.raiseError[Response[IO]](new Throwable("The GM Data client is not available because the processor is not scheduled")))), IO.unit)
+}
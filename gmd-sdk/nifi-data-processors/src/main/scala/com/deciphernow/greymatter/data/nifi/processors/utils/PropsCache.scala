@@ -0,0 +1,45 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import com.deciphernow.greymatter.data.nifi.http.GmDataResponse
+import org.http4s.{Header, Headers, Uri}
+
+/**
+  * The successful answers of /props that GetFileProperties received, by Remote Url, headers and path, kept up to a
+  * number of entries in approximately least recently used order. An entry is served without any request to GM Data
+  * until it is stale, even if the file was updated or deleted in the meantime, and is then revalidated with the ETag
+  * and Last-Modified that GM Data sent with it, if any, so that GM Data can confirm it with a 304 response instead of
+  * sending the properties again.
+  */
+class PropsCache(maxEntries: Int, ttlMillis: Long) {
+
+  private val entries = new ConcurrentLru[(Uri, Headers, String), CachedProps](maxEntries)
+
+  def enabled = maxEntries > 0
+
+  def get(rootUrl: Uri, headers: Headers, path: Uri.Path) = entries.get((rootUrl, headers, path))
+
+  def put(rootUrl: Uri, headers: Headers, path: Uri.Path, response: GmDataResponse[String], validators: Headers) =
+    entries.put((rootUrl, headers, path), CachedProps(response, validators, System.currentTimeMillis + ttlMillis))
+}
+
+object PropsCache {
+
+  val disabled = new PropsCache(0, 0)
+
+  val hitsCounter = "Props Cache Hits"
+
+  val revalidationsCounter = "Props Cache Revalidations"
+
+  val missesCounter = "Props Cache Misses"
+}
+
+case class CachedProps(response: GmDataResponse[String], validators: Headers, expires: Long) {
+
+  def fresh(now: Long) = expires > now
+
+  /** The headers that ask GM Data to answer with a 304 response if the properties have not changed. */
+  def conditionalHeaders = Headers(validators.toList.collect {
+    case header if header.name.value.equalsIgnoreCase("ETag") => Header("If-None-Match", header.value)
+    case header if header.name.value.equalsIgnoreCase("Last-Modified") => Header("If-Modified-Since", header.value)
+  })
+}
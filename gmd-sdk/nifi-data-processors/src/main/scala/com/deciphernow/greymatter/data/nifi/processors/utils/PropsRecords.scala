@@ -0,0 +1,51 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import com.deciphernow.greymatter.data.nifi.http.{GmDataResponse, Metadata}
+import io.circe.Decoder
+import io.circe.parser.decode
+import org.apache.nifi.serialization.SimpleRecordSchema
+import org.apache.nifi.serialization.record.{MapRecord, Record, RecordField, RecordFieldType, RecordSchema}
+
+/**
+  * The records written by GetFilePropertiesRecord: each record read, with the fields of the answer of /props for the
+  * file it names added. The status is that of the answer, and the error holds the answer of an unsuccessful request or
+  * why no request could be made, in which case the status is empty.
+  */
+object PropsRecords {
+  import scala.collection.JavaConverters._
+
+  val pathField = "path"
+
+  val filenameField = "filename"
+
+  private val fields = List(
+    new RecordField("status", RecordFieldType.INT.getDataType),
+    new RecordField("oid", RecordFieldType.STRING.getDataType),
+    new RecordField("tstamp", RecordFieldType.STRING.getDataType),
+    new RecordField("size", RecordFieldType.LONG.getDataType),
+    new RecordField("sha256", RecordFieldType.STRING.getDataType),
+    new RecordField("error", RecordFieldType.STRING.getDataType))
+
+  private val fieldNames = fields.map(_.getFieldName).toSet
+
+  /** The schema of the records read, with the fields of the answer in place of any fields of the same name. */
+  def schema(readSchema: RecordSchema): RecordSchema =
+    new SimpleRecordSchema((readSchema.getFields.asScala.filterNot(field => fieldNames.contains(field.getFieldName)) ++ fields).asJava)
+
+  def toRecord(schema: RecordSchema, read: Record, props: Either[Throwable, GmDataResponse[String]])(implicit decoder: Decoder[Metadata]): Record = {
+    val answer: Map[String, AnyRef] = props match {
+      case Right(GmDataResponse(body, status)) if status == 200 => decode[Metadata](body) match {
+        case Right(metadata) => Map(
+          "status" -> Int.box(status),
+          "oid" -> metadata.oid.orNull,
+          "tstamp" -> metadata.tstamp.orNull,
+          "size" -> metadata.size.map(Long.box).orNull,
+          "sha256" -> metadata.sha256plain.orNull)
+        case Left(err) => Map("status" -> Int.box(status), "error" -> s"There was a problem decoding $body: $err")
+      }
+      case Right(GmDataResponse(body, status)) => Map("status" -> Int.box(status), "error" -> body)
+      case Left(err) => Map("error" -> err.getMessage)
+    }
+    new MapRecord(schema, (read.toMap.asScala.toMap ++ fieldNames.map(_ -> null) ++ answer).asJava)
+  }
+}
@@ -0,0 +1,62 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.io.{InputStream, StringWriter}
+import java.util.{LinkedHashMap => JLinkedHashMap, List => JList, Map => JMap}
+
+import com.fasterxml.jackson.core.{JsonFactory, JsonParser, JsonToken}
+
+/**
+  * Where a processor puts the JSON body of a response: whole in an attribute, streamed into the content of the
+  * FlowFile, or parsed, in which case only selected fields of the body are kept, in attributes. The fields are read
+  * from the body as it streams in, so the body is never held in memory as a whole.
+  */
+object ResponseOutput {
+  import scala.collection.JavaConverters._
+
+  val attribute = "attribute"
+
+  val content = "content"
+
+  val parsed = "parsed"
+
+  val destinations = List(attribute, content, parsed)
+
+  private val factory = new JsonFactory()
+
+  /** The fields named in a comma separated list, where a nested field is named by its path, as in `policy.policy`. */
+  def fieldList(fields: String): JList[String] = fields.split(",").map(_.trim).filter(_.nonEmpty).toList.asJava
+
+  /**
+    * The selected fields of the JSON object read from the stream, by their path. A string is kept as is and any other
+    * value as its JSON rendering. Fields that are missing or null are left out, and arrays are not searched.
+    */
+  def extractFields(in: InputStream, fields: JList[String]): JMap[String, String] = {
+    val selected = fields.asScala.toSet
+    val enclosing = selected.flatMap(field => field.split('.').inits.drop(1).map(_.mkString(".")).filter(_.nonEmpty))
+    val found = new JLinkedHashMap[String, String]()
+    val parser = factory.createParser(in)
+    try if (selected.nonEmpty && parser.nextToken() == JsonToken.START_OBJECT) readObject(parser, None, selected, enclosing, found)
+    finally parser.close()
+    found
+  }
+
+  private def readObject(parser: JsonParser, prefix: Option[String], selected: Set[String], enclosing: Set[String], found: JMap[String, String]): Unit =
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      val path = prefix.fold(parser.getCurrentName)(enclosingPath => s"$enclosingPath.${parser.getCurrentName}")
+      val token = parser.nextToken()
+      if (selected.contains(path)) valueOf(parser, token).foreach(found.put(path, _))
+      else if (token == JsonToken.START_OBJECT && enclosing.contains(path)) readObject(parser, Some(path), selected, enclosing, found)
+      else parser.skipChildren()
+    }
+
+  private def valueOf(parser: JsonParser, token: JsonToken) = token match {
+    case JsonToken.VALUE_NULL => None
+    case JsonToken.VALUE_STRING => Some(parser.getText)
+    case JsonToken.START_OBJECT | JsonToken.START_ARRAY =>
+      val rendering = new StringWriter()
+      val generator = factory.createGenerator(rendering)
+      try generator.copyCurrentStructure(parser) finally generator.close()
+      Some(rendering.toString)
+    case _ => Some(parser.getText)
+  }
+}
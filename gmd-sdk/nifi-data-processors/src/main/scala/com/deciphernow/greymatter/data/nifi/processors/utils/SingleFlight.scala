@@ -0,0 +1,32 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.util.concurrent.{CancellationException, ConcurrentHashMap}
+
+import cats.effect.{Async, ExitCase}
+import cats.effect.concurrent.Deferred
+import cats.implicits._
+
+/**
+  * Runs at most one effect per key at a time. A caller that asks for a key while the effect of another caller runs for
+  * it waits for that effect and shares its result, including its failure, instead of running its own. When the caller
+  * running the effect is cancelled, the callers waiting for it fail with a CancellationException and the next caller
+  * runs the effect again.
+  */
+class SingleFlight[F[_], K, V] {
+
+  private val inFlight = new ConcurrentHashMap[K, Deferred[F, Either[Throwable, V]]]()
+
+  def apply(key: K)(run: F[V])(implicit F: Async[F]): F[V] = Deferred.uncancelable[F, Either[Throwable, V]].flatMap { flight =>
+    F.delay(Option(inFlight.putIfAbsent(key, flight))).flatMap {
+      case Some(running) => running.get.rethrow
+      case None => F.guaranteeCase(run.attempt.flatTap(result => finish(key, flight)(result))) {
+        case ExitCase.Completed => F.unit
+        case _ => finish(key, flight)(Left(new CancellationException(s"The effect running for $key was cancelled")))
+      }.rethrow
+    }
+  }
+
+  /** Shares the result with the waiting callers, unless it was already shared before the effect was cancelled. */
+  private def finish(key: K, flight: Deferred[F, Either[Throwable, V]])(result: Either[Throwable, V])(implicit F: Async[F]) =
+    F.delay(inFlight.remove(key, flight)) *> flight.complete(result).attempt.void
+}
@@ -0,0 +1,72 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, InputStream, OutputStream}
+import java.util.Base64
+import java.util.zip.{Deflater, DeflaterOutputStream, InflaterInputStream}
+
+/**
+  * Helpers for keeping large values in processor state: values are deflated and base64 encoded, then split across
+  * numbered keys sharing a prefix so that no single value grows without bound.
+  */
+object StateEncoding {
+
+  /** ZooKeeper writes each value of the cluster state with writeUTF, which holds at most 65535 bytes. */
+  val maxStateValueLength = 65535
+
+  /**
+    * ZooKeeper keeps the whole cluster state of a processor in a single znode, which holds at most 1 MB by default.
+    * This leaves room for the encoding of the keys and values around them.
+    */
+  val maxStateSize = 1000 * 1000
+
+  def stateSize(state: Map[String, String]) = state.iterator.map { case (key, value) => key.length + value.length }.sum
+
+  def compress(write: OutputStream => Unit) = {
+    val bytes = new ByteArrayOutputStream()
+    val deflater = new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_COMPRESSION))
+    write(deflater)
+    deflater.close()
+    Base64.getEncoder.encodeToString(bytes.toByteArray)
+  }
+
+  def decompress[X](encoded: String)(read: InputStream => X) = {
+    val inflater = new InflaterInputStream(new ByteArrayInputStream(Base64.getDecoder.decode(encoded)))
+    try read(inflater) finally inflater.close()
+  }
+
+  def toStateMap(keyPrefix: String, encoded: String): Map[String, String] = encoded.grouped(maxStateValueLength).zipWithIndex.map {
+    case (chunk, index) => s"$keyPrefix$index" -> chunk
+  }.toMap
+
+  /** Joins the chunks stored under the prefix, or returns None when there are none. */
+  def fromStateMap(keyPrefix: String, state: Map[String, String]) = {
+    val chunks = state.collect { case (key, value) if key startsWith keyPrefix => key.stripPrefix(keyPrefix).toInt -> value }.toList.sortBy(_._1).map(_._2)
+    if (chunks.isEmpty) None else Some(chunks.mkString)
+  }
+
+  def writeVarLong(out: OutputStream, value: Long): Unit = {
+    var remaining = value
+    while ((remaining & ~0x7fL) != 0) {
+      out.write(((remaining & 0x7f) | 0x80).toInt)
+      remaining >>>= 7
+    }
+    out.write(remaining.toInt)
+  }
+
+  /** Reads an unsigned varint, or returns None at the end of the stream. */
+  def readVarLong(in: InputStream): Option[Long] = {
+    var result = 0L
+    var shift = 0
+    var byte = in.read()
+    if (byte == -1) None
+    else {
+      while ((byte & 0x80) != 0) {
+        result |= (byte & 0x7fL) << shift
+        shift += 7
+        byte = in.read()
+        if (byte == -1) throw new Throwable("A value in the processor state is truncated")
+      }
+      Some(result | (byte.toLong << shift))
+    }
+  }
+}
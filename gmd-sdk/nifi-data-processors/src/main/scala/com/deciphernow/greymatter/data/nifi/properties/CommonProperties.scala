@@ -2,9 +2,11 @@ package com.deciphernow.greymatter.data.nifi.properties
 
 import com.deciphernow.greymatter.data.nifi.http.Security
 import com.deciphernow.greymatter.data.nifi.processors.utils.ErrorHandling
+import com.deciphernow.greymatter.data.nifi.services.GmDataClientService
 import io.circe.generic.auto._
 import io.circe.parser.decode
 import org.apache.nifi.components.{PropertyDescriptor, Validator}
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient
 import org.apache.nifi.expression.ExpressionLanguageScope
 import org.apache.nifi.flowfile.FlowFile
 import org.apache.nifi.processor.ProcessContext
@@ -35,19 +37,39 @@ trait CommonProperties extends PropertyUtils with ErrorHandling {
   protected lazy val sslContextServiceProperty = buildProperty("SSL Context Service", "The SSL Context Service used to provide client certificate information for TLS/SSL (https) connections. It is also used to connect to HTTPS Proxy.")
     .identifiesControllerService(classOf[SSLContextService]).build()
 
+  protected lazy val gmDataClientServiceProperty = buildProperty("GM Data Client Service", "The controller service that provides a shared, pooled HTTP client for Grey Matter Data. When set, connections are borrowed from the pool of the service instead of a client created by this processor. The SSL Context Service and Http Timeout of this processor still apply.")
+    .identifiesControllerService(classOf[GmDataClientService]).build()
+
+  protected lazy val policyCacheServiceProperty = buildProperty("Policy Cache Service", "The Distributed Map Cache Client that holds object policies by their hash, so that FlowFiles carry a gmdata.objectpolicy.hash attribute instead of the full gmdata.objectpolicy. ListFiles stores each distinct policy in the cache and PrepareWriteRequest resolves the hash back to the policy.")
+    .identifiesControllerService(classOf[DistributedMapCacheClient]).build()
+
   protected lazy val attributesToSendProperty = buildPropertyWithValidators(List(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR), "Attributes to Send", "Regular expression that defines which attributes to send as HTTP headers in the request. If not defined, no attributes are sent as headers. Also any dynamic properties set will be sent as headers. The dynamic property key will be the header key and the dynamic property value will be interpreted as expression language will be the header value.", scope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
     .defaultValue("${gmdata.attributestosend}").build()
 
   protected lazy val httpTimeoutProperty = buildPropertyWithValidators(List(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR),"Http Timeout", "The duration. in seconds, to wait before an http connection times out.", scope = ExpressionLanguageScope.VARIABLE_REGISTRY).defaultValue("5").build()
 
+  protected lazy val identityCacheTtlProperty = buildRequiredProperty("Identity Cache TTL", "How long the answers of the /config and /self endpoints of GM Data are reused for later FlowFiles with the same Remote Url and headers. Concurrent FlowFiles that need an answer that is not cached share a single request. A value of 0 asks GM Data for every FlowFile.", List(StandardValidators.TIME_PERIOD_VALIDATOR)).defaultValue("5 mins").build()
+
   protected lazy val intermediatePrefixProperty = buildPropertyWithValidators(List(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR),"Intermediate Folder Prefix", "When provided this path indicates intermediate folders that exist between the userfield folder and the path.", ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).defaultValue("${gmdata.intermediatefolderprefix}").build()
 
   protected def parseIntermediatePrefix(implicit context: ProcessContext, flowFile: FlowFile) = parseOptionalProperty(intermediatePrefixProperty, Some(flowFile)).map(_.stripSuffix("/"))
 
   protected def parseHttpTimeout(implicit context: ProcessContext) = parseOptionalProperty(httpTimeoutProperty, None).map(_.toInt.seconds)
 
-  protected def parseSSLContext(implicit context: ProcessContext) = Option(context.getProperty(sslContextServiceProperty)).flatMap { sslCont =>
-    Option(sslCont.getValue).map(_ => sslCont.asControllerService(classOf[SSLContextService]).createSSLContext(ClientAuth.NONE))
+  protected def parseIdentityCacheTtl(implicit context: ProcessContext) = context.getProperty(identityCacheTtlProperty).asTimePeriod(MILLISECONDS).longValue.millis
+
+  protected def parseSSLContextService(implicit context: ProcessContext) = Option(context.getProperty(sslContextServiceProperty)).flatMap { sslCont =>
+    Option(sslCont.getValue).map(_ => sslCont.asControllerService(classOf[SSLContextService]))
+  }
+
+  protected def parseSSLContext(implicit context: ProcessContext) = parseSSLContextService.map(_.createSSLContext(ClientAuth.NONE))
+
+  protected def parseGmDataClientService(implicit context: ProcessContext) = Option(context.getProperty(gmDataClientServiceProperty)).flatMap { service =>
+    Option(service.getValue).map(_ => service.asControllerService(classOf[GmDataClientService]))
+  }
+
+  protected def parsePolicyCacheService(implicit context: ProcessContext) = Option(context.getProperty(policyCacheServiceProperty)).flatMap { service =>
+    Option(service.getValue).map(_ => service.asControllerService(classOf[DistributedMapCacheClient]))
   }
 
   protected def parseObjectPolicy(implicit context: ProcessContext, flowFile: FlowFile) = parseJson(objectPolicyProperty.getName)(parseProperty(objectPolicyProperty, Some(flowFile)))
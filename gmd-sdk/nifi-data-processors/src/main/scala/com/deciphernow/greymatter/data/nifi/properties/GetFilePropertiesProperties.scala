@@ -1,16 +1,35 @@
 package com.deciphernow.greymatter.data.nifi.properties
 
-import com.deciphernow.greymatter.data.nifi.processors.utils.ErrorHandling
+import java.util.concurrent.TimeUnit
+
+import com.deciphernow.greymatter.data.nifi.processors.utils.{ErrorHandling, ResponseOutput}
 import org.apache.nifi.flowfile.FlowFile
 import org.apache.nifi.processor.ProcessContext
+import org.apache.nifi.processor.util.StandardValidators
 
 trait GetFilePropertiesProperties extends CommonProperties with ErrorHandling {
 
   lazy val rootUrlProperty = rootUrlProp()
 
-  lazy val getFilePropertiesProperties = List(rootUrlProperty, intermediatePrefixProperty, sslContextServiceProperty, httpTimeoutProperty, attributesToSendProperty)
+  protected lazy val propsCacheSizeProperty = buildRequiredProperty("Props Cache Size", "The largest number of /props answers kept by the processor, by Remote Url, headers and path, so that FlowFiles asking again for the same file are answered without a request to GM Data. Only successful answers are kept, and the least recently used answer is dropped first. A value of 0 disables the cache.", List(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)).defaultValue("0").build()
+
+  protected lazy val propsCacheTtlProperty = buildRequiredProperty("Props Cache TTL", "How long a cached /props answer is used without asking GM Data. After that, the answer is revalidated with its ETag or Last-Modified headers if GM Data sent them, and requested again otherwise. A cached answer is not checked against GM Data until it is stale, so it can be out of date for up to the TTL when the file is updated, moved or deleted in the meantime.", List(StandardValidators.TIME_PERIOD_VALIDATOR)).defaultValue("30 secs").build()
+
+  protected lazy val outputDestinationProperty = buildRequiredProperty("Output Destination", "Where the answer of /props is put. With attribute, the whole answer is put in the gmdata.file.props attribute. With content, a successful answer is streamed into the content of a child of the FlowFile, which is routed to response, and its Extracted Fields are put in attributes of both, while the FlowFile keeps its own content. An error answer is put in the gmdata.file.props attribute as with parsed. With parsed, only the Extracted Fields of the answer are put in attributes. The content and parsed destinations never hold the whole answer in memory, and are not served by the props cache.").allowableValues(ResponseOutput.destinations: _*).defaultValue(ResponseOutput.attribute).build()
+
+  protected lazy val extractedFieldsProperty = buildProperty("Extracted Fields", "A comma separated list of the fields of the answer of /props that are put in attributes named gmdata.file.props.<field> when the Output Destination is content or parsed. A nested field is named by its path, as in policy.policy, and an object or array is put as JSON.").defaultValue("oid,tstamp,size,sha256plain").build()
+
+  lazy val getFilePropertiesProperties = List(rootUrlProperty, intermediatePrefixProperty, sslContextServiceProperty, gmDataClientServiceProperty, identityCacheTtlProperty, propsCacheSizeProperty, propsCacheTtlProperty, outputDestinationProperty, extractedFieldsProperty, httpTimeoutProperty, attributesToSendProperty)
 
   def parseFilePath(implicit context: ProcessContext, flowFile: FlowFile) = parseRequiredAttribute("path").stripPrefix("/").stripSuffix("/")
 
+  protected def parsePropsCacheSize(implicit context: ProcessContext) = context.getProperty(propsCacheSizeProperty).asInteger.intValue
+
+  protected def parsePropsCacheTtl(implicit context: ProcessContext) = context.getProperty(propsCacheTtlProperty).asTimePeriod(TimeUnit.MILLISECONDS).longValue
+
+  protected def parseOutputDestination(implicit context: ProcessContext) = context.getProperty(outputDestinationProperty).getValue
+
+  protected def parseExtractedFields(implicit context: ProcessContext) = parseOptionalProperty(extractedFieldsProperty).map(ResponseOutput.fieldList).getOrElse(ResponseOutput.fieldList(""))
+
   def parseFileName(implicit context: ProcessContext, flowFile: FlowFile) = parseRequiredAttribute("filename")
 }
\ No newline at end of file
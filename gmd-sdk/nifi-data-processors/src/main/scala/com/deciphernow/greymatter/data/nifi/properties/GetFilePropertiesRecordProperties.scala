@@ -0,0 +1,24 @@
+package com.deciphernow.greymatter.data.nifi.properties
+
+import org.apache.nifi.processor.ProcessContext
+import org.apache.nifi.processor.util.StandardValidators
+import org.apache.nifi.serialization.{RecordReaderFactory, RecordSetWriterFactory}
+
+trait GetFilePropertiesRecordProperties extends GetFilePropertiesProperties {
+
+  protected lazy val recordReaderProperty = buildProperty("Record Reader", "The Record Reader for the incoming FlowFiles, whose records name the files to look up in their path and filename fields.", required = true)
+    .identifiesControllerService(classOf[RecordReaderFactory]).build()
+
+  protected lazy val recordWriterProperty = buildProperty("Record Writer", "The Record Writer for the outgoing FlowFiles, whose records are the incoming records with the status, oid, tstamp, size, sha256 and error fields added.", required = true)
+    .identifiesControllerService(classOf[RecordSetWriterFactory]).build()
+
+  protected lazy val lookupConcurrencyProperty = buildRequiredProperty("Lookup Concurrency", "The maximum number of files of a FlowFile whose properties are requested from GM Data at the same time. The records are written in the order they were read.", List(StandardValidators.POSITIVE_INTEGER_VALIDATOR)).defaultValue("10").build()
+
+  lazy val getFilePropertiesRecordProperties = List(rootUrlProperty, intermediatePrefixProperty, sslContextServiceProperty, gmDataClientServiceProperty, recordReaderProperty, recordWriterProperty, lookupConcurrencyProperty, identityCacheTtlProperty, httpTimeoutProperty, attributesToSendProperty)
+
+  protected def parseRecordReader(implicit context: ProcessContext) = context.getProperty(recordReaderProperty).asControllerService(classOf[RecordReaderFactory])
+
+  protected def parseRecordWriter(implicit context: ProcessContext) = context.getProperty(recordWriterProperty).asControllerService(classOf[RecordSetWriterFactory])
+
+  protected def parseLookupConcurrency(implicit context: ProcessContext) = context.getProperty(lookupConcurrencyProperty).asInteger.intValue
+}
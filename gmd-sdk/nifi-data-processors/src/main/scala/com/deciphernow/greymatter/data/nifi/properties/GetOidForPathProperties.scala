@@ -1,5 +1,7 @@
 package com.deciphernow.greymatter.data.nifi.properties
 
+import java.util.concurrent.TimeUnit
+
 import cats.effect.IO
 import org.apache.nifi.flowfile.FlowFile
 import org.apache.nifi.processor.ProcessContext
@@ -8,9 +10,12 @@ import cats.implicits._
 import com.deciphernow.greymatter.data.nifi.http.{ Metadata, Security }
 import com.deciphernow.greymatter.data.nifi.processors.utils.ErrorHandling
 import io.circe.Json
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient
 import org.apache.nifi.expression.ExpressionLanguageScope
 import org.apache.nifi.processor.util.StandardValidators
 
+import scala.concurrent.duration._
+
 trait GetOidForPathProperties extends CommonProperties with ErrorHandling {
 
   protected lazy val userfieldObjectPolicyProperty = buildPropertyWithValidators(List(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR),"Userfield Folder Object Policy", "When provided, this is an override object policy to be assigned to the created userfield folder if the folder does not yet exist.", ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).defaultValue("${gmdata.userfieldfolderdobjectpolicy}").build()
@@ -25,9 +30,24 @@ trait GetOidForPathProperties extends CommonProperties with ErrorHandling {
 
   protected lazy val intermediateSecurityProperty = buildPropertyWithValidators(List(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR), "Intermediate Folder Security", "An interface (JSON) representation of the security block used for user interfaces, consisting of a label, foreground, and background that should be applied when creating intermediate folders that prefix the provided filename path.", ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).defaultValue("${gmdata.intermediatefoldersecurity}").build()
 
+  protected lazy val folderCacheTtlProperty = buildRequiredProperty("Folder Cache TTL", "How long the oid of a folder that was found or created is reused for later FlowFiles with the same Remote Url, headers and path, without any request to GM Data. Only the first FlowFile for a folder then pays for the /config, /self, /props and /list requests that resolve it. A folder is only cached once it was found with read and create access or created with the same headers. Up to 10000 folders are kept in memory, and the least recently used folders are evicted to make room for new ones. A value of 0 disables the cache.", List(StandardValidators.TIME_PERIOD_VALIDATOR)).defaultValue("0 secs").build()
+
+  protected lazy val folderCacheServiceProperty = buildProperty("Folder Cache Service", "When set, the oids of the folders cached by Folder Cache TTL are also kept in this Distributed Map Cache Client under keys starting with `gmdata.folderoid.`, together with their expiration, so that the nodes of a cluster share them.")
+    .identifiesControllerService(classOf[DistributedMapCacheClient]).build()
+
+  protected lazy val folderIndexDirectoryProperty = buildPropertyWithValidators(List(StandardValidators.createDirectoryExistsValidator(false, true)), "Folder Index Directory", "When set, the folders cached by Folder Cache TTL are also kept in a file of this directory named after the identifier of the processor, so that the cache starts warm when the processor or NiFi is restarted. Folders are appended to the file in batches, and the file is rewritten with only the folders that have not expired whenever it is loaded, and whenever it has grown to more than 4 lines for each folder it held when it was last rewritten. A cached folder that turns out not to exist, because a lookup or write below it fails, or because GM Data answers that a folder below it was deleted or has another parent, is dropped from every cache tier and the path is resolved again from the user folder. A folder whose whole path is cached is reused without any request until it expires, even if it was deleted or moved.").build()
+
+  protected lazy val batchSizeProperty = buildRequiredProperty("Batch Size", "The largest number of FlowFiles taken from the queue by each run. The path of every FlowFile in a run is resolved once for each distinct Remote Url, headers and folders, the distinct paths are resolved concurrently, and gmdata.parentoid is written on every FlowFile that shares a path.", List(StandardValidators.POSITIVE_INTEGER_VALIDATOR)).defaultValue("1").build()
+
+  protected lazy val resolveDeepestFirstProperty = buildRequiredProperty("Resolve Deepest Folder First", "Whether to look up the whole path of folders with a single request before resolving the folders one at a time from the top down. When the path does not exist, the deepest existing folder is found by bisection and the folders below it are resolved from there.", List(StandardValidators.BOOLEAN_VALIDATOR)).defaultValue("false").allowableValues("true", "false").build()
+
+  protected lazy val createFoldersFirstProperty = buildRequiredProperty("Create Folders First", "Whether to write each folder before looking it up, and to look it up only when GM Data refuses the write because the name is already taken in its parent, with a 409 or with a 400 saying that the folder already exists. Any other error of the write fails the FlowFile. This saves the lookups of folders that do not exist yet, as when a new tree of folders is backfilled, at the cost of a refused write for each folder that already exists. The user folder is always looked up first. Requires a GM Data that refuses a folder whose name is already taken in its parent.", List(StandardValidators.BOOLEAN_VALIDATOR)).defaultValue("false").allowableValues("true", "false").build()
+
+  protected lazy val createFoldersTogetherProperty = buildRequiredProperty("Create Missing Folders Together", "Whether to create the first missing folder of a path and every folder below it with a single write to GM Data, instead of looking up and writing each folder in turn. The folders created together are given oids generated by the processor so that each of them can name the one above it as its parent.", List(StandardValidators.BOOLEAN_VALIDATOR)).defaultValue("false").allowableValues("true", "false").build()
+
   protected lazy val rootUrlProperty = rootUrlProp()
 
-  protected lazy val getOidForPathProperties = List(objectPolicyProperty, originalObjectPolicyProperty, securityProperty, rootUrlProperty, sslContextServiceProperty, userfieldObjectPolicyProperty, userfieldOriginalObjectPolicyProperty, userfieldSecurityProperty, intermediatePrefixProperty, intermediateObjectPolicyProperty, intermediateOriginalObjectPolicyProperty, intermediateSecurityProperty, attributesToSendProperty, httpTimeoutProperty)
+  protected lazy val getOidForPathProperties = List(objectPolicyProperty, originalObjectPolicyProperty, securityProperty, rootUrlProperty, sslContextServiceProperty, gmDataClientServiceProperty, userfieldObjectPolicyProperty, userfieldOriginalObjectPolicyProperty, userfieldSecurityProperty, intermediatePrefixProperty, intermediateObjectPolicyProperty, intermediateOriginalObjectPolicyProperty, intermediateSecurityProperty, attributesToSendProperty, resolveDeepestFirstProperty, createFoldersFirstProperty, createFoldersTogetherProperty, batchSizeProperty, folderCacheTtlProperty, folderCacheServiceProperty, folderIndexDirectoryProperty, identityCacheTtlProperty, httpTimeoutProperty)
 
   protected def parseUserfieldSecurity(implicit context: ProcessContext, flowFile: FlowFile) = parseSecurityObject(userfieldSecurityProperty)
 
@@ -41,6 +61,22 @@ trait GetOidForPathProperties extends CommonProperties with ErrorHandling {
 
   protected def parseIntermediateOriginalObjectPolicy(implicit context: ProcessContext, flowFile: FlowFile) = parseOptionalProperty(intermediateOriginalObjectPolicyProperty, Some(flowFile))
 
+  protected def parseResolveDeepestFirst(implicit context: ProcessContext) = context.getProperty(resolveDeepestFirstProperty).asBoolean.booleanValue
+
+  protected def parseCreateFoldersFirst(implicit context: ProcessContext) = context.getProperty(createFoldersFirstProperty).asBoolean.booleanValue
+
+  protected def parseCreateFoldersTogether(implicit context: ProcessContext) = context.getProperty(createFoldersTogetherProperty).asBoolean.booleanValue
+
+  protected def parseBatchSize(implicit context: ProcessContext) = context.getProperty(batchSizeProperty).asInteger.intValue
+
+  protected def parseFolderCacheTtl(implicit context: ProcessContext) = context.getProperty(folderCacheTtlProperty).asTimePeriod(TimeUnit.MILLISECONDS).longValue
+
+  protected def parseFolderCacheService(implicit context: ProcessContext) = Option(context.getProperty(folderCacheServiceProperty)).flatMap { service =>
+    Option(service.getValue).map(_ => service.asControllerService(classOf[DistributedMapCacheClient]))
+  }
+
+  protected def parseFolderIndexDirectory(implicit context: ProcessContext) = Option(context.getProperty(folderIndexDirectoryProperty).getValue)
+
   protected def parsePath(implicit flowFile: FlowFile) = parseRequiredAttribute("path")
 
   private def splitIntoFolders(path: String) = path.split("/").filter(name => name.nonEmpty && name != ".").toList
@@ -60,7 +96,9 @@ trait GetOidForPathProperties extends CommonProperties with ErrorHandling {
     intermediateOriginalObjectPolicy <- IO.delay(parseIntermediateOriginalObjectPolicy)
     attributesToSendRegex <- IO.delay(parseAttributesToSend(context, Some(flowFile)).map(_.r))
     headers <- IO.delay(getHeaders(attributesToSendRegex)(context, Some(flowFile)))
-    config = GetOidForPathConfig(rootUrl, folders, objectPolicy, security, originalObjectPolicy, userfieldObjectPolicy, userfieldSecurity, userfieldOriginalObjectPolicy, intermediatePrefix, intermediateSecurity: Option[Security], intermediateObjectPolicy, intermediateOriginalObjectPolicy, headers)
+    createFirst <- IO.delay(parseCreateFoldersFirst(context))
+    identityCacheTtl <- IO.delay(parseIdentityCacheTtl(context))
+    config = GetOidForPathConfig(rootUrl, folders, objectPolicy, security, originalObjectPolicy, userfieldObjectPolicy, userfieldSecurity, userfieldOriginalObjectPolicy, intermediatePrefix, intermediateSecurity: Option[Security], intermediateObjectPolicy, intermediateOriginalObjectPolicy, headers, createFirst, identityCacheTtl)
   } yield config
 
 }
@@ -77,11 +115,16 @@ case class GetOidForPathConfig(rootUrl: Uri,
     intermediateSecurity: Option[Security],
     intermediateObjectPolicy: Option[Json],
     intermediateOriginalObjectPolicy: Option[String],
-    headers: Headers) {
+    headers: Headers,
+    createFirst: Boolean = false,
+    identityCacheTtl: FiniteDuration = Duration.Zero) {
 
   def metadata(parentoid: String, name: String, objectPolicy: Json = objectPolicy, originalObjectPolicy: Option[String] = originalObjectPolicy, security: Option[Security] = security) =
     Metadata(parentoid, name, objectPolicy, None, None, "C", security, originalObjectPolicy, None, None, None, None, None, None, None)
 
+  /** The parts of the configuration that the resolved folder depends on. */
+  lazy val resolutionKey = (rootUrl, headers, intermediateFolders, folders)
+
   lazy val userMetadata = fillMetadata(userFieldObjectPolicy, userFieldOriginalObjectPolicy, userFieldSecurity)
 
   lazy val intermediateMetadata = fillMetadata(intermediateObjectPolicy, intermediateOriginalObjectPolicy, intermediateSecurity)
@@ -0,0 +1,29 @@
+package com.deciphernow.greymatter.data.nifi.properties
+
+import java.util.concurrent.TimeUnit
+
+import org.apache.nifi.context.PropertyContext
+import org.apache.nifi.processor.util.StandardValidators
+
+import scala.concurrent.duration._
+
+trait GmDataClientServiceProperties extends PropertyUtils {
+
+  protected lazy val maxConnectionsProperty = buildRequiredProperty("Max Connections", "The maximum number of connections open at once across all processors sharing this service. For the OkHttp client of GetPolicies, it caps the requests in flight through the dispatcher of the client, which only limits asynchronous requests (GetPolicies with a Batch Size above 1), and the number of idle connections kept in the pool.", List(StandardValidators.POSITIVE_INTEGER_VALIDATOR))
+    .defaultValue("50").build()
+
+  protected lazy val maxConnectionsPerHostProperty = buildRequiredProperty("Max Connections Per Host", "The maximum number of connections open at once to a single remote host and port. For the OkHttp client of GetPolicies, it caps the requests in flight to a host through the dispatcher of the client, which only limits asynchronous requests (GetPolicies with a Batch Size above 1).", List(StandardValidators.POSITIVE_INTEGER_VALIDATOR))
+    .defaultValue("10").build()
+
+  protected lazy val idleConnectionTimeoutProperty = buildRequiredProperty("Idle Connection Timeout", "The amount of time a pooled connection may stay idle before it is evicted from the pool.", List(StandardValidators.TIME_PERIOD_VALIDATOR))
+    .defaultValue("60 secs").build()
+
+  protected lazy val gmDataClientServiceProperties = List(maxConnectionsProperty, maxConnectionsPerHostProperty, idleConnectionTimeoutProperty)
+
+  protected def parsePoolSettings(context: PropertyContext) = PoolSettings(
+    context.getProperty(maxConnectionsProperty).asInteger,
+    context.getProperty(maxConnectionsPerHostProperty).asInteger,
+    context.getProperty(idleConnectionTimeoutProperty).asTimePeriod(TimeUnit.MILLISECONDS).longValue.millis)
+}
+
+case class PoolSettings(maxConnections: Int, maxConnectionsPerHost: Int, idleTimeout: FiniteDuration)
@@ -1,13 +1,19 @@
 package com.deciphernow.greymatter.data.nifi.properties
 
+import java.util.concurrent.TimeUnit
+import java.util.regex.Pattern
+
 import org.apache.nifi.flowfile.FlowFile
 import org.apache.nifi.processor.ProcessContext
-import com.deciphernow.greymatter.data.nifi.processors.utils.ErrorHandling
+import com.deciphernow.greymatter.data.nifi.processors.utils.{ErrorHandling, ListedAttributes}
 import org.apache.nifi.expression.ExpressionLanguageScope
 import org.apache.nifi.processor.util.StandardValidators
+import org.apache.nifi.serialization.RecordSetWriterFactory
 
 trait ListFilesProperties extends CommonProperties with ErrorHandling {
 
+  private val attributeGroupPattern = ListedAttributes.groups.keys.mkString("(", "|", ")")
+
   protected lazy val inputDirectoryProperty = buildRequiredProperty("Input Directory", "The input directory from which files are pulled.", List(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR), ExpressionLanguageScope.VARIABLE_REGISTRY).build()
 
   protected lazy val recurseProperty = buildRequiredProperty("Recurse Subdirectories", "Indicates whether to list files from subdirectories of the directory.", List(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR), ExpressionLanguageScope.VARIABLE_REGISTRY).defaultValue("true").allowableValues("true", "false").build()
@@ -26,9 +32,34 @@ trait ListFilesProperties extends CommonProperties with ErrorHandling {
 
   protected lazy val maxFileSizeProperty = buildPropertyWithValidators(List(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR),"Maximum File Size", "The maximum size, in bytes, that a file must be in order to be pulled.", ExpressionLanguageScope.VARIABLE_REGISTRY).build()
 
+  protected lazy val listingConcurrencyProperty = buildRequiredProperty("Listing Concurrency", "When Recurse Subdirectories is true, the maximum number of folders that are listed from GM Data at the same time. A value of 1 walks the folder tree sequentially.", List(StandardValidators.POSITIVE_INTEGER_VALIDATOR)).defaultValue("1").build()
+
+  protected lazy val listPageSizeProperty = buildRequiredProperty("List Page Size", "The maximum number of objects requested from a single /list call. Folders holding more objects are paged through with the last cursor, so memory use is bounded by this value rather than by the size of the folder. A page grows by the objects that share the tstamp at the end of the previous page, so that none of them are skipped. Paging is disabled when the URL Filter Argument sets count.", List(StandardValidators.POSITIVE_INTEGER_VALIDATOR)).defaultValue("1000").build()
+
+  protected lazy val skipUnchangedFoldersProperty = buildRequiredProperty("Skip Unchanged Folders", "Whether to skip listing a subfolder whose tstamp and child count are the same as when its subtree was last completely listed. The markers of the folders are kept in the processor state. This only finds new files in a folder that was not listed when GM Data changes the tstamp or child count of every folder above them.", List(StandardValidators.BOOLEAN_VALIDATOR)).defaultValue("false").allowableValues("true", "false").build()
+
+  protected lazy val commitBatchSizeProperty = buildRequiredProperty("Commit Batch Size", "The number of listed files after which the FlowFiles are committed and the progress of the listing is saved, so that they are sent downstream while a large listing is still running and an interrupted listing resumes from that point. A listing whose progress does not fit the cluster state is only committed once it completes.", List(StandardValidators.POSITIVE_INTEGER_VALIDATOR)).defaultValue("10000").build()
+
+  protected lazy val commitIntervalProperty = buildRequiredProperty("Commit Interval", "The longest time that listed files are held before the FlowFiles are committed and the progress of the listing is saved.", List(StandardValidators.TIME_PERIOD_VALIDATOR)).defaultValue("10 secs").build()
+
+  protected lazy val maxObjectsPerRunProperty = buildPropertyWithValidators(List(StandardValidators.POSITIVE_INTEGER_VALIDATOR), "Max Objects Per Run", "When set, a run pauses at a checkpoint once it has listed this many new files, and the next run resumes the listing from there.").build()
+
+  protected lazy val maxRunTimeProperty = buildPropertyWithValidators(List(StandardValidators.TIME_PERIOD_VALIDATOR), "Max Run Time", "When set, a run pauses at a checkpoint once it has been listing for this long, and the next run resumes the listing from there. A run also pauses at a checkpoint whenever the success relationship is no longer available because of back pressure.").build()
+
+  protected lazy val distributeListingProperty = buildRequiredProperty("Distribute Listing", "Whether to split the listing across every node of the cluster that runs the processor. The files directly in the input directory and each folder in it form shards that are assigned to the live nodes by rendezvous hashing, and each node lists its own shards and keeps their state in the cluster state. Shards move to other nodes when nodes join or leave. When true, the processor should be scheduled on all nodes rather than on the primary node only.", List(StandardValidators.BOOLEAN_VALIDATOR)).defaultValue("false").allowableValues("true", "false").build()
+
+  protected lazy val nodeExpirationProperty = buildRequiredProperty("Node Expiration", "When Distribute Listing is true, the time after its last listing when a node is considered to have left the cluster and its shards are assigned to the other nodes. It should be well above the run schedule of the processor.", List(StandardValidators.TIME_PERIOD_VALIDATOR)).defaultValue("5 mins").build()
+
+  protected lazy val attributeGroupsProperty = buildRequiredProperty("Attribute Groups", "A comma separated list of the groups of attributes written on each FlowFile when there is no Record Writer: file (filename, path, file.owner, file.size, file.lastModifiedTime, file.creationTime, mime.type), gmdata (gmdata.fileurl, gmdata.oid, gmdata.parentoid, gmdata.sha256), policy (gmdata.objectpolicy, gmdata.originalobjectpolicy), security (gmdata.security) and custom (gmdata.custom).", List(StandardValidators.createRegexMatchingValidator(Pattern.compile(s"\\s*$attributeGroupPattern(\\s*,\\s*$attributeGroupPattern)*\\s*")))).defaultValue("file,gmdata,policy,security,custom").build()
+
+  protected lazy val recordWriterProperty = buildProperty("Record Writer", "When set, the listing is written as records with this Record Writer into FlowFiles holding up to Records Per FlowFile objects each, instead of one FlowFile per object.")
+    .identifiesControllerService(classOf[RecordSetWriterFactory]).build()
+
+  protected lazy val recordsPerFlowFileProperty = buildRequiredProperty("Records Per FlowFile", "When a Record Writer is set, the maximum number of listed objects written to a single FlowFile.", List(StandardValidators.POSITIVE_INTEGER_VALIDATOR)).defaultValue("10000").build()
+
   protected lazy val rootUrlProperty = rootUrlProp(scope = ExpressionLanguageScope.VARIABLE_REGISTRY)
 
-  protected lazy val listFilesProperties = List(rootUrlProperty, sslContextServiceProperty, inputDirectoryProperty, recurseProperty, urlFilterProperty, fileFilterProperty, pathFilterProperty, minFileAgeProperty, maxFileAgeProperty, minFileSizeProperty, maxFileSizeProperty, httpTimeoutProperty)
+  protected lazy val listFilesProperties = List(rootUrlProperty, sslContextServiceProperty, gmDataClientServiceProperty, inputDirectoryProperty, recurseProperty, urlFilterProperty, fileFilterProperty, pathFilterProperty, minFileAgeProperty, maxFileAgeProperty, minFileSizeProperty, maxFileSizeProperty, listingConcurrencyProperty, listPageSizeProperty, skipUnchangedFoldersProperty, commitBatchSizeProperty, commitIntervalProperty, maxObjectsPerRunProperty, maxRunTimeProperty, distributeListingProperty, nodeExpirationProperty, attributeGroupsProperty, policyCacheServiceProperty, recordWriterProperty, recordsPerFlowFileProperty, httpTimeoutProperty)
 
   protected def parseInputDirectory(implicit context: ProcessContext, flowFile: Option[FlowFile] = None) = parseProperty(inputDirectoryProperty)
 
@@ -47,4 +78,30 @@ trait ListFilesProperties extends CommonProperties with ErrorHandling {
   protected def parseMinFileSize(implicit context: ProcessContext, flowFile: Option[FlowFile] = None) = parseProperty(minFileSizeProperty).toLong
 
   protected def parseMaxFileSize(implicit context: ProcessContext, flowFile: Option[FlowFile] = None) = parseOptionalProperty(maxFileSizeProperty).map(_.toLong)
-}
\ No newline at end of file
+
+  protected def parseListingConcurrency(implicit context: ProcessContext, flowFile: Option[FlowFile] = None) = parseProperty(listingConcurrencyProperty).toInt
+
+  protected def parseListPageSize(implicit context: ProcessContext, flowFile: Option[FlowFile] = None) = parseProperty(listPageSizeProperty).toInt
+
+  protected def parseSkipUnchangedFolders(implicit context: ProcessContext, flowFile: Option[FlowFile] = None) = parseProperty(skipUnchangedFoldersProperty).toBoolean
+
+  protected def parseCommitBatchSize(implicit context: ProcessContext, flowFile: Option[FlowFile] = None) = parseProperty(commitBatchSizeProperty).toInt
+
+  protected def parseCommitInterval(implicit context: ProcessContext) = context.getProperty(commitIntervalProperty).asTimePeriod(TimeUnit.MILLISECONDS).longValue
+
+  protected def parseMaxObjectsPerRun(implicit context: ProcessContext, flowFile: Option[FlowFile] = None) = parseOptionalProperty(maxObjectsPerRunProperty).map(_.toInt)
+
+  protected def parseMaxRunTime(implicit context: ProcessContext) = Option(context.getProperty(maxRunTimeProperty).getValue).map(_ => context.getProperty(maxRunTimeProperty).asTimePeriod(TimeUnit.MILLISECONDS).longValue)
+
+  protected def parseDistributeListing(implicit context: ProcessContext, flowFile: Option[FlowFile] = None) = parseProperty(distributeListingProperty).toBoolean
+
+  protected def parseNodeExpiration(implicit context: ProcessContext) = context.getProperty(nodeExpirationProperty).asTimePeriod(TimeUnit.MILLISECONDS).longValue
+
+  protected def parseAttributeGroups(implicit context: ProcessContext, flowFile: Option[FlowFile] = None) = parseProperty(attributeGroupsProperty).split(",").map(_.trim).toSet
+
+  protected def parseRecordWriter(implicit context: ProcessContext) = Option(context.getProperty(recordWriterProperty)).flatMap { writer =>
+    Option(writer.getValue).map(_ => writer.asControllerService(classOf[RecordSetWriterFactory]))
+  }
+
+  protected def parseRecordsPerFlowFile(implicit context: ProcessContext, flowFile: Option[FlowFile] = None) = parseProperty(recordsPerFlowFileProperty).toInt
+}
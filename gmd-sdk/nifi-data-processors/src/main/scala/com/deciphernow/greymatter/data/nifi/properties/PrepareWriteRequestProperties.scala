@@ -1,6 +1,7 @@
 package com.deciphernow.greymatter.data.nifi.properties
 
 import com.deciphernow.greymatter.data.{ Action, ParentOid, Size }
+import com.deciphernow.greymatter.data.nifi.processors.utils.PolicyReferences
 import io.circe.Json
 import org.apache.nifi.components.AllowableValue
 import org.apache.nifi.expression.ExpressionLanguageScope
@@ -8,6 +9,7 @@ import org.apache.nifi.flowfile.FlowFile
 import org.apache.nifi.processor.ProcessContext
 import org.apache.nifi.processor.util.StandardValidators
 
+import scala.collection.JavaConverters._
 import scala.util.Try
 
 trait PrepareWriteRequestProperties extends CommonProperties {
@@ -25,12 +27,28 @@ trait PrepareWriteRequestProperties extends CommonProperties {
 
   protected lazy val customProperty = buildProperty("Custom", "A JSON structure containing custom fields.").build()
 
-  protected lazy val prepareWriteRequestProperties = List(objectPolicyProperty, oidProperty, originalObjectPolicyProperty, securityProperty, actionProperty, customProperty)
+  protected lazy val prepareWriteRequestProperties = List(objectPolicyProperty, oidProperty, originalObjectPolicyProperty, securityProperty, actionProperty, customProperty, policyCacheServiceProperty)
 
   protected def parseParentOid(implicit context: ProcessContext, flowFile: FlowFile) = ParentOid.unsafeFrom {
     parseProperty(oidProperty, Some(flowFile))
   }
 
+  /**
+    * Parses the Object Policy property. When a Policy Cache Service is set and the FlowFile carries a
+    * gmdata.objectpolicy.hash reference instead of gmdata.objectpolicy, the policy is read from the cache and made
+    * available to the property as gmdata.objectpolicy.
+    */
+  protected def parseReferencedObjectPolicy(implicit context: ProcessContext, flowFile: FlowFile) = {
+    val referenced = for {
+      cache <- parsePolicyCacheService
+      hash <- Option(flowFile.getAttribute(PolicyReferences.hashAttribute)) if Option(flowFile.getAttribute(PolicyReferences.policyAttribute)).isEmpty
+    } yield PolicyReferences.resolve(cache, hash).getOrElse(throw new Throwable(s"The object policy with hash $hash was not found in the Policy Cache Service"))
+    referenced match {
+      case Some(policy) => parseJson(objectPolicyProperty.getName)(context.getProperty(objectPolicyProperty).evaluateAttributeExpressions(flowFile, Map(PolicyReferences.policyAttribute -> policy).asJava).getValue)
+      case None => parseObjectPolicy
+    }
+  }
+
   protected def parseAction(implicit context: ProcessContext, flowFile: FlowFile) = Try {
     Action.unsafeFrom {
       parseProperty(actionProperty)
@@ -36,5 +36,13 @@ trait ProcessorRelationships {
       """.trim)
       .build
 
+  lazy protected val RelResponse =
+    new Relationship.Builder()
+      .name("response")
+      .description("""
+        A child of the FlowFile holding the response of GM Data is routed to this relationship when the response is put in content
+      """.trim)
+      .build
+
   lazy protected val relationships = Set(RelSuccess, RelFailure)
 }
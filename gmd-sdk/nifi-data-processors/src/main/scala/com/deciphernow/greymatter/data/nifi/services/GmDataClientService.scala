@@ -0,0 +1,22 @@
+package com.deciphernow.greymatter.data.nifi.services
+
+import cats.effect.IO
+import okhttp3.OkHttpClient
+import org.apache.nifi.controller.ControllerService
+import org.apache.nifi.ssl.SSLContextService
+import org.http4s.client.Client
+
+import scala.concurrent.duration.FiniteDuration
+
+/**
+  * Hands out HTTP clients whose connections are pooled and kept alive across every processor referencing the service.
+  * Clients are owned by the service and must not be shut down by the borrowing processor.
+  */
+trait GmDataClientService extends ControllerService {
+
+  /** A Blaze client for the given SSL Context Service (or plain http when empty) and request timeout. */
+  def getClient(sslContextService: Option[SSLContextService], timeout: FiniteDuration): Client[IO]
+
+  /** An OkHttp client for the given SSL Context Service, which may be null. Derive per-processor settings with `newBuilder` so the pool is kept. */
+  def getOkHttpClient(sslContextService: SSLContextService): OkHttpClient
+}
@@ -0,0 +1,84 @@
+package com.deciphernow.greymatter.data.nifi.services
+
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+import cats.effect.{ContextShift, IO}
+import cats.implicits._
+import com.deciphernow.greymatter.data.nifi.properties.{GmDataClientServiceProperties, PoolSettings}
+import okhttp3.{ConnectionPool, Dispatcher, OkHttpClient}
+import org.apache.nifi.annotation.documentation.{CapabilityDescription, Tags}
+import org.apache.nifi.annotation.lifecycle.{OnDisabled, OnEnabled}
+import org.apache.nifi.components.PropertyDescriptor
+import org.apache.nifi.controller.{AbstractControllerService, ConfigurationContext}
+import org.apache.nifi.security.util.{ClientAuth, OkHttpClientUtils}
+import org.apache.nifi.ssl.SSLContextService
+import org.http4s.client.Client
+import org.http4s.client.blaze.BlazeClientBuilder
+
+import scala.concurrent.duration.FiniteDuration
+import scala.concurrent.{ExecutionContext, ExecutionContextExecutor}
+
+@Tags(Array("gmdata", "http", "client", "pool"))
+@CapabilityDescription("Provides pooled HTTP clients for Grey Matter Data processors. One client is kept per SSL Context Service, so connections are kept alive and TLS sessions are resumed across every processor that references this service.")
+class StandardGmDataClientService extends AbstractControllerService with GmDataClientService with GmDataClientServiceProperties {
+  import scala.collection.JavaConverters._
+
+  private lazy implicit val ec: ExecutionContextExecutor = ExecutionContext.global
+  private lazy implicit val ctxShift: ContextShift[IO] = IO.contextShift(ec)
+
+  private val clients = new ConcurrentHashMap[(Option[String], FiniteDuration), (Client[IO], IO[Unit])]()
+  private val okHttpClients = new ConcurrentHashMap[Option[String], OkHttpClient]()
+  @volatile private var poolSettings: Option[PoolSettings] = None
+
+  override def getSupportedPropertyDescriptors: java.util.List[PropertyDescriptor] = gmDataClientServiceProperties.asJava
+
+  @OnEnabled
+  def onEnabled(context: ConfigurationContext): Unit = poolSettings = Some(parsePoolSettings(context))
+
+  @OnDisabled
+  def onDisabled(): Unit = {
+    poolSettings = None
+    clients.values.asScala.toList.traverse(_._2.attempt).unsafeRunSync()
+    clients.clear()
+    okHttpClients.values.asScala.foreach { client =>
+      client.dispatcher.executorService.shutdown()
+      client.connectionPool.evictAll()
+    }
+    okHttpClients.clear()
+  }
+
+  override def getClient(sslContextService: Option[SSLContextService], timeout: FiniteDuration): Client[IO] =
+    clients.computeIfAbsent((sslContextService.map(_.getIdentifier), timeout), _ => createClient(sslContextService, timeout, settings))._1
+
+  override def getOkHttpClient(sslContextService: SSLContextService): OkHttpClient = {
+    val service = Option(sslContextService)
+    okHttpClients.computeIfAbsent(service.map(_.getIdentifier), _ => createOkHttpClient(service, settings))
+  }
+
+  private def settings = poolSettings.getOrElse(throw new IllegalStateException("The GM Data Client Service has not been enabled"))
+
+  private def createClient(sslContextService: Option[SSLContextService], timeout: FiniteDuration, settings: PoolSettings) =
+    BlazeClientBuilder[IO](ec, sslContextService.map(_.createSSLContext(ClientAuth.NONE)))
+      .withMaxTotalConnections(settings.maxConnections)
+      .withMaxConnectionsPerRequestKey(_ => settings.maxConnectionsPerHost)
+      .withIdleTimeout(settings.idleTimeout)
+      .withConnectTimeout(timeout)
+      .withRequestTimeout(timeout)
+      .withCheckEndpointAuthentication(false)
+      .allocated.unsafeRunSync()
+
+  /**
+    * OkHttp has no cap on open connections: the pool only bounds the connections it keeps idle. The caps are enforced on
+    * the requests in flight by the dispatcher instead, which applies to asynchronous calls only.
+    */
+  private def createOkHttpClient(sslContextService: Option[SSLContextService], settings: PoolSettings) = {
+    val dispatcher = new Dispatcher()
+    dispatcher.setMaxRequests(settings.maxConnections)
+    dispatcher.setMaxRequestsPerHost(settings.maxConnectionsPerHost)
+    val builder = new OkHttpClient.Builder()
+      .connectionPool(new ConnectionPool(settings.maxConnections, settings.idleTimeout.toMillis, TimeUnit.MILLISECONDS))
+      .dispatcher(dispatcher)
+    sslContextService.foreach(service => OkHttpClientUtils.applyTlsToOkHttpClientBuilder(service.createTlsConfiguration(), builder))
+    builder.build()
+  }
+}
@@ -0,0 +1,6 @@
+package com.deciphernow.greymatter.data
+
+import org.scalatest.Tag
+
+/** Tests that allocate or time millions of elements, which `mvn test` skips unless the benchmark profile is active. */
+object Benchmark extends Tag("com.deciphernow.greymatter.data.Benchmark")
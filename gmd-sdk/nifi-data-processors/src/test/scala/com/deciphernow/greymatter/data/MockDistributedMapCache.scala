@@ -0,0 +1,49 @@
+package com.deciphernow.greymatter.data
+
+import java.io.ByteArrayOutputStream
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+
+import org.apache.nifi.controller.AbstractControllerService
+import org.apache.nifi.distributed.cache.client.{Deserializer, DistributedMapCacheClient, Serializer}
+
+import scala.collection.JavaConverters._
+
+/**
+  * An in-memory stand-in for a Distributed Map Cache Client, for tests of the processors that share values through one.
+  */
+class MockDistributedMapCache extends AbstractControllerService with DistributedMapCacheClient {
+
+  val values = new ConcurrentHashMap[String, Array[Byte]]()
+
+  /** Stores a string the way the processors serialize the strings they keep in the cache. */
+  def putString(key: String, value: String): Unit = values.put(key, value.getBytes(StandardCharsets.UTF_8))
+
+  private def serialize[X](value: X, serializer: Serializer[X]) = {
+    val bytes = new ByteArrayOutputStream()
+    serializer.serialize(value, bytes)
+    bytes.toByteArray
+  }
+
+  private def keyOf[K](key: K, serializer: Serializer[K]) = new String(serialize(key, serializer), StandardCharsets.UTF_8)
+
+  override def putIfAbsent[K, V](key: K, value: V, keySerializer: Serializer[K], valueSerializer: Serializer[V]): Boolean =
+    values.putIfAbsent(keyOf(key, keySerializer), serialize(value, valueSerializer)) == null
+
+  override def getAndPutIfAbsent[K, V](key: K, value: V, keySerializer: Serializer[K], valueSerializer: Serializer[V], valueDeserializer: Deserializer[V]): V =
+    Option(values.putIfAbsent(keyOf(key, keySerializer), serialize(value, valueSerializer))).map(valueDeserializer.deserialize).getOrElse(null.asInstanceOf[V])
+
+  override def containsKey[K](key: K, keySerializer: Serializer[K]): Boolean = values.containsKey(keyOf(key, keySerializer))
+
+  override def put[K, V](key: K, value: V, keySerializer: Serializer[K], valueSerializer: Serializer[V]): Unit =
+    values.put(keyOf(key, keySerializer), serialize(value, valueSerializer))
+
+  override def get[K, V](key: K, keySerializer: Serializer[K], valueDeserializer: Deserializer[V]): V =
+    Option(values.get(keyOf(key, keySerializer))).map(valueDeserializer.deserialize).getOrElse(null.asInstanceOf[V])
+
+  override def close(): Unit = ()
+
+  override def remove[K](key: K, serializer: Serializer[K]): Boolean = values.remove(keyOf(key, serializer)) != null
+
+  override def removeByPattern(regex: String): Long = values.keySet.asScala.filter(_.matches(regex)).count(values.remove(_) != null).toLong
+}
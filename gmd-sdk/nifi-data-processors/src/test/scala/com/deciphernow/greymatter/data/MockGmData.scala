@@ -0,0 +1,33 @@
+package com.deciphernow.greymatter.data
+
+import cats.effect.{ConcurrentEffect, IO, Timer}
+import cats.implicits._
+import org.http4s.HttpRoutes
+import org.http4s.dsl.Http4sDsl
+import org.http4s.implicits._
+import org.http4s.server.Router
+import org.http4s.server.blaze.BlazeServerBuilder
+
+/**
+  * A stand-in for the GM Data endpoints used by the processors, for tests that should not depend on the docker-compose environment.
+  */
+trait MockGmData extends Http4sDsl[IO] {
+
+  val mockUserField = "nifinpe@example.com"
+  val mockNamespaceOid = "1"
+
+  def mockProps(name: String, oid: String = "0123456789abcdef", parentOid: String = "fedcba9876543210", isFile: Boolean = true, tstamp: String = "16a7e1d8e8a0b000", childCount: Option[Long] = None) =
+    s"""{"parentoid":"$parentOid","name":"$name","objectpolicy":{},"action":"C","oid":"$oid","tstamp":"$tstamp","policy":{"policy":["C","R","U","D","X","P"]},"isfile":$isFile${childCount.map(count => s""","childCount":$count""").getOrElse("")}}"""
+
+  /** The given routes take precedence over the default answers for /config, /self and /props. */
+  def mockGmDataRoutes(routes: HttpRoutes[IO] = HttpRoutes.empty[IO]): HttpRoutes[IO] = routes <+> HttpRoutes.of[IO] {
+    case GET -> Root / "config" => Ok(s"""{"GMDATA_NAMESPACE_OID":"$mockNamespaceOid","GMDATA_NAMESPACE_USERFIELD":"email"}""")
+    case GET -> Root / "self" => Ok(s"""{"values":{"email":["$mockUserField"]}}""")
+    case GET -> "props" /: rest => Ok(mockProps(rest.toList.lastOption.getOrElse("")))
+  }
+
+  def withMockGmData[X](routes: HttpRoutes[IO] = mockGmDataRoutes())(test: String => X)(implicit ce: ConcurrentEffect[IO], timer: Timer[IO]): X =
+    BlazeServerBuilder[IO].bindHttp(0, "127.0.0.1").withHttpApp(Router("/" -> routes).orNotFound).resource.use { server =>
+      IO(test(s"http://127.0.0.1:${server.address.getPort}"))
+    }.unsafeRunSync()
+}
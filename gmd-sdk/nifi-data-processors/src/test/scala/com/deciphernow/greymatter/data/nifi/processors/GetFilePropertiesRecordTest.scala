@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.deciphernow.greymatter.data.nifi.processors
+
+import java.io.ByteArrayInputStream
+import java.util.concurrent.atomic.AtomicInteger
+
+import cats.data.OptionT
+import cats.effect.{ContextShift, IO, Timer}
+import com.deciphernow.greymatter.data.MockGmData
+import com.deciphernow.greymatter.data.nifi.properties.GetFilePropertiesRecordProperties
+import com.deciphernow.greymatter.data.nifi.relationships.ProcessorRelationships
+import org.apache.nifi.serialization.record.{MockRecordParser, MockRecordWriter, RecordFieldType}
+import org.apache.nifi.util.{TestRunner, TestRunners}
+import org.http4s.HttpRoutes
+import org.scalatest._
+
+import scala.concurrent.ExecutionContext
+
+class GetFilePropertiesRecordTest extends FunSpec with Matchers with GetFilePropertiesRecordProperties with ProcessorRelationships with MockGmData {
+
+  import scala.collection.JavaConverters._
+
+  implicit lazy val ec = ExecutionContext.global
+  implicit val ctxShift: ContextShift[IO] = IO.contextShift(ec)
+  implicit val timer: Timer[IO] = IO.timer(ec)
+
+  private def countingRoutes(identityCalls: AtomicInteger, propsCalls: AtomicInteger) = HttpRoutes[IO] { request =>
+    OptionT.liftF(IO {
+      if (Set("/config", "/self").contains(request.pathInfo)) identityCalls.incrementAndGet()
+      if (request.pathInfo.startsWith("/props/")) propsCalls.incrementAndGet()
+    }).flatMap(_ => mockGmDataRoutes(HttpRoutes.of[IO] {
+      case GET -> "props" /: rest if rest.toList.lastOption.contains("missing.txt") => NotFound("The file does not exist")
+    })(request))
+  }
+
+  private def recordRunner(rootUrl: String, records: List[(String, String)]) = {
+    val runner = TestRunners.newTestRunner(new GetFilePropertiesRecord)
+    val recordReader = new MockRecordParser
+    recordReader.addSchemaField("path", RecordFieldType.STRING)
+    recordReader.addSchemaField("filename", RecordFieldType.STRING)
+    records.foreach { case (path, filename) => recordReader.addRecord(path, filename) }
+    val recordWriter = new MockRecordWriter(null, false)
+    runner.addControllerService("record-reader", recordReader)
+    runner.addControllerService("record-writer", recordWriter)
+    runner.enableControllerService(recordReader)
+    runner.enableControllerService(recordWriter)
+    runner.setProperty(rootUrlProperty, rootUrl)
+    runner.setProperty(recordReaderProperty, "record-reader")
+    runner.setProperty(recordWriterProperty, "record-writer")
+    runner.setProperty(lookupConcurrencyProperty, "4")
+    runner.enqueue(new ByteArrayInputStream(Array[Byte]()))
+    runner
+  }
+
+  private def writtenLines(runner: TestRunner) = runner.getFlowFilesForRelationship(RelSuccess).asScala.toList
+    .flatMap(flowFile => new String(runner.getContentAsByteArray(flowFile)).split("\n").filter(_.nonEmpty))
+
+  describe("GetFilePropertiesRecord processor") {
+    it("should write every record with the properties of the file it names, in order") {
+      val identityCalls = new AtomicInteger(0)
+      val propsCalls = new AtomicInteger(0)
+      withMockGmData(countingRoutes(identityCalls, propsCalls)) { rootUrl =>
+        val files = (1 to 50).toList.map(index => s"/folder$index" -> (if (index % 10 == 0) "missing.txt" else s"file$index.txt"))
+        val runner = recordRunner(rootUrl, files)
+        runner.run()
+        runner.assertTransferCount(RelSuccess, 1)
+        runner.assertTransferCount(RelFailure, 0)
+        runner.getFlowFilesForRelationship(RelSuccess).get(0).assertAttributeEquals("record.count", "50")
+        val lines = writtenLines(runner)
+        lines.length shouldBe 50
+        lines.zip(files).foreach {
+          case (line, (path, "missing.txt")) =>
+            line should startWith(s"$path,missing.txt,404,")
+          case (line, (path, filename)) =>
+            line should startWith(s"$path,$filename,200,0123456789abcdef,16a7e1d8e8a0b000,")
+        }
+        identityCalls.get shouldBe 2
+        propsCalls.get shouldBe 50
+      }
+    }
+
+    it("should write an error for a record without a filename") {
+      withMockGmData() { rootUrl =>
+        val runner = recordRunner(rootUrl, List("/folder" -> null))
+        runner.run()
+        runner.assertTransferCount(RelSuccess, 1)
+        writtenLines(runner).head should include("The record has no filename")
+      }
+    }
+
+    it("should route the FlowFile to failure when the user folder cannot be resolved") {
+      val routes = HttpRoutes.of[IO] {
+        case GET -> Root / "self" => InternalServerError("unavailable")
+      }
+      withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+        val runner = recordRunner(rootUrl, List("/folder" -> "file.txt"))
+        runner.run()
+        runner.assertTransferCount(RelSuccess, 0)
+        runner.assertTransferCount(RelFailure, 1)
+        runner.getFlowFilesForRelationship(RelFailure).get(0).assertAttributeExists("getfilepropertiesrecord.scala.exception.message")
+      }
+    }
+  }
+}
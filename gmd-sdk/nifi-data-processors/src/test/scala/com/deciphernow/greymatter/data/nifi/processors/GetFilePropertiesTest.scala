@@ -16,23 +16,30 @@
  */
 package com.deciphernow.greymatter.data.nifi.processors
 
-import java.io.ByteArrayInputStream
+import java.io.{ByteArrayInputStream, File}
+import java.lang.management.ManagementFactory
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicInteger
+
+import cats.data.OptionT
 import cats.effect.{ContextShift, IO, Timer}
-import com.deciphernow.greymatter.data.TestContext
+import com.deciphernow.greymatter.data.{MockGmData, TestContext}
 import com.deciphernow.greymatter.data.nifi.http.Metadata
 import com.deciphernow.greymatter.data.nifi.properties.GetFilePropertiesProperties
+import fs2.Stream
 import io.circe.generic.auto._
 import io.circe.syntax._
 import io.circe.parser._
-import org.apache.nifi.util.{TestRunner, TestRunners}
+import org.apache.nifi.util.{MockFlowFile, TestRunner, TestRunners}
 import org.http4s.client.blaze.BlazeClientBuilder
-import org.http4s.{Header, Headers, Uri}
+import org.http4s.{Header, Headers, HttpRoutes, Uri}
 import org.http4s.dsl.Http4sDsl
 import org.scalatest._
 
 import scala.concurrent.ExecutionContext
+import scala.util.Try
 
-class GetFilePropertiesTest extends FunSpec with TestContext with Matchers with GetFilePropertiesProperties with Http4sDsl[IO]{
+class GetFilePropertiesTest extends FunSpec with TestContext with Matchers with GetFilePropertiesProperties with Http4sDsl[IO] with MockGmData {
 
   import scala.collection.JavaConverters._
 
@@ -108,4 +115,167 @@ class GetFilePropertiesTest extends FunSpec with TestContext with Matchers with
       }
     }
   }
+
+  describe("GetFileProperties processor identity cache") {
+    it("should ask GM Data for /config and /self once for FlowFiles with the same headers") {
+      val identityCalls = new AtomicInteger(0)
+      val routes = HttpRoutes[IO] { request =>
+        OptionT.liftF(IO(if (Set("/config", "/self").contains(request.pathInfo)) identityCalls.incrementAndGet())).flatMap(_ => mockGmDataRoutes()(request))
+      }
+      withMockGmData(routes) { rootUrl =>
+        val runner = TestRunners.newTestRunner(new GetFileProperties)
+        runner.setProperty(rootUrlProperty, rootUrl)
+        (1 to 10).foreach(index => runner.enqueue(new ByteArrayInputStream("".getBytes), Map("filename" -> s"file$index.txt", "path" -> "/some/path").asJava))
+        runner.run(10)
+        runner.assertTransferCount(RelSuccess, 10)
+        identityCalls.get shouldBe 2
+      }
+    }
+  }
+
+  describe("GetFileProperties processor props cache") {
+    def propsRoutes(calls: AtomicInteger) = HttpRoutes.of[IO] {
+      case request @ GET -> "props" /: _ => IO(calls.incrementAndGet()).flatMap { _ =>
+        if (request.headers.toList.exists(header => header.name.value == "If-None-Match" && header.value == "\"v1\"")) NotModified()
+        else Ok(mockProps("file.txt")).map(_.putHeaders(Header("ETag", "\"v1\"")))
+      }
+    }
+
+    def propsRunner(rootUrl: String, ttl: String) = {
+      val runner = TestRunners.newTestRunner(new GetFileProperties)
+      runner.setProperty(rootUrlProperty, rootUrl)
+      runner.setProperty(propsCacheSizeProperty, "10")
+      runner.setProperty(propsCacheTtlProperty, ttl)
+      (1 to 5).foreach(_ => runner.enqueue(new ByteArrayInputStream("".getBytes), Map("filename" -> "file.txt", "path" -> "/some/path").asJava))
+      runner.run(5)
+      runner.assertTransferCount(RelSuccess, 5)
+      runner.getFlowFilesForRelationship(RelSuccess).asScala.foreach { flowFile =>
+        flowFile.assertAttributeEquals("gmdata.status.code", "200")
+        flowFile.assertAttributeEquals("gmdata.file.props", mockProps("file.txt"))
+      }
+      runner
+    }
+
+    it("should answer repeated lookups of a path from the cache") {
+      val calls = new AtomicInteger(0)
+      withMockGmData(mockGmDataRoutes(propsRoutes(calls))) { rootUrl =>
+        val runner = propsRunner(rootUrl, "1 min")
+        calls.get shouldBe 1
+        runner.getCounterValue("Props Cache Misses") shouldBe 1
+        runner.getCounterValue("Props Cache Hits") shouldBe 4
+      }
+    }
+
+    it("should revalidate stale answers with their ETag") {
+      val calls = new AtomicInteger(0)
+      withMockGmData(mockGmDataRoutes(propsRoutes(calls))) { rootUrl =>
+        val runner = propsRunner(rootUrl, "0 secs")
+        calls.get shouldBe 5
+        runner.getCounterValue("Props Cache Misses") shouldBe 1
+        runner.getCounterValue("Props Cache Revalidations") shouldBe 4
+      }
+    }
+  }
+
+  describe("GetFileProperties processor output destination") {
+    def destinationRunner(rootUrl: String, destination: String) = {
+      val runner = TestRunners.newTestRunner(new GetFileProperties)
+      runner.setProperty(rootUrlProperty, rootUrl)
+      runner.setProperty(outputDestinationProperty, destination)
+      runner.setProperty(extractedFieldsProperty, "oid,tstamp,policy.policy")
+      runner.enqueue(new ByteArrayInputStream("original".getBytes), Map("filename" -> "file.txt", "path" -> "/some/path").asJava)
+      runner.run(1)
+      runner.assertTransferCount(RelSuccess, 1)
+      val flowFile = runner.getFlowFilesForRelationship(RelSuccess).get(0)
+      assertExtracted(flowFile)
+      flowFile.assertContentEquals("original")
+      runner
+    }
+
+    def assertExtracted(flowFile: MockFlowFile) = {
+      flowFile.assertAttributeEquals("gmdata.status.code", "200")
+      flowFile.assertAttributeEquals("gmdata.file.props.oid", "0123456789abcdef")
+      flowFile.assertAttributeEquals("gmdata.file.props.tstamp", "16a7e1d8e8a0b000")
+      flowFile.assertAttributeEquals("gmdata.file.props.policy.policy", "[\"C\",\"R\",\"U\",\"D\",\"X\",\"P\"]")
+      flowFile.assertAttributeNotExists("gmdata.file.props")
+    }
+
+    it("should stream the props into the content of a child of the FlowFile and keep the FlowFile as it was") {
+      withMockGmData() { rootUrl =>
+        val runner = destinationRunner(rootUrl, "content")
+        runner.assertTransferCount(RelResponse, 1)
+        val response = runner.getFlowFilesForRelationship(RelResponse).get(0)
+        response.assertContentEquals(mockProps("file.txt"))
+        assertExtracted(response)
+        response.assertAttributeEquals("filename", "file.txt")
+      }
+    }
+
+    it("should only keep the extracted fields when the props are parsed") {
+      withMockGmData() { rootUrl =>
+        destinationRunner(rootUrl, "parsed").assertTransferCount(RelResponse, 0)
+      }
+    }
+
+    def assertFailed(routes: HttpRoutes[IO], destination: String) = withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+      val runner = TestRunners.newTestRunner(new GetFileProperties)
+      runner.setProperty(rootUrlProperty, rootUrl)
+      runner.setProperty(outputDestinationProperty, destination)
+      runner.setProperty(extractedFieldsProperty, "oid,tstamp")
+      runner.enqueue(new ByteArrayInputStream("original".getBytes), Map("filename" -> "file.txt", "path" -> "/some/path").asJava)
+      runner.run(1)
+      runner.assertTransferCount(RelFailure, 1)
+      runner.assertTransferCount(RelSuccess, 0)
+      runner.assertTransferCount(RelResponse, 0)
+      runner.getFlowFilesForRelationship(RelFailure).get(0).assertContentEquals("original")
+    }
+
+    val malformedProps = HttpRoutes.of[IO] {
+      case GET -> "props" /: _ => Ok("""{"oid": "0123456789abcdef", "tstamp": oops}""")
+    }
+
+    val interruptedProps = HttpRoutes.of[IO] {
+      case GET -> "props" /: _ => Ok(Stream.emits(mockProps("file.txt").take(20).getBytes).covary[IO] ++ Stream.raiseError[IO](new Exception("The connection was reset")))
+    }
+
+    it("should route the FlowFile to failure when the props are malformed") {
+      assertFailed(malformedProps, "content")
+      assertFailed(malformedProps, "parsed")
+    }
+
+    it("should route the FlowFile to failure when the props stop streaming partway") {
+      assertFailed(interruptedProps, "content")
+      assertFailed(interruptedProps, "parsed")
+    }
+  }
+
+  private def threadCount = ManagementFactory.getThreadMXBean.getThreadCount
+
+  private def openSocketCount = Option(new File("/proc/self/fd").listFiles).map(_.count { fd =>
+    Try(Files.readSymbolicLink(fd.toPath).toString.startsWith("socket:")).getOrElse(false)
+  })
+
+  describe("GetFileProperties processor lifecycle") {
+    it("should keep thread and open socket counts flat across many reschedules") {
+      withMockGmData() { rootUrl =>
+        val runner = TestRunners.newTestRunner(new GetFileProperties)
+        runner.setProperty(rootUrlProperty, rootUrl)
+        def reschedule() = {
+          runner.enqueue(new ByteArrayInputStream("".getBytes), Map("filename" -> "file.txt", "path" -> "/some/path").asJava)
+          runner.run(1, true, true)
+        }
+        (1 to 5).foreach(_ => reschedule())
+        val threadsBefore = threadCount
+        val socketsBefore = openSocketCount
+        (1 to 100).foreach(_ => reschedule())
+        runner.assertTransferCount(RelSuccess, 105)
+        runner.assertTransferCount(RelFailure, 0)
+        threadCount should be <= threadsBefore + 10
+        for {
+          before <- socketsBefore
+          after <- openSocketCount
+        } after should be <= before + 5
+      }
+    }
+  }
 }
@@ -17,9 +17,13 @@
 package com.deciphernow.greymatter.data.nifi.processors
 
 import java.io.ByteArrayInputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicInteger, AtomicReference}
 
+import cats.data.OptionT
 import cats.effect.{ConcurrentEffect, ContextShift, IO, Timer}
-import com.deciphernow.greymatter.data.TestContext
+import cats.implicits._
+import com.deciphernow.greymatter.data.{MockDistributedMapCache, MockGmData, TestContext}
 import com.deciphernow.greymatter.data.nifi.http.Security
 import com.deciphernow.greymatter.data.nifi.properties.GetOidForPathProperties
 import io.circe.Json
@@ -29,8 +33,8 @@ import javax.net.ssl.SSLContext
 import org.apache.nifi.util.{MockFlowFile, TestRunner, TestRunners}
 import org.http4s.{Header, Headers, HttpRoutes, Uri}
 import org.http4s.client.blaze.BlazeClientBuilder
-import org.http4s.dsl.Http4sDsl
 import org.http4s.implicits._
+import org.http4s.multipart.Multipart
 import org.http4s.server.Router
 import org.http4s.server.blaze.BlazeServerBuilder
 import org.scalatest._
@@ -39,7 +43,7 @@ import fs2.Stream
 import scala.concurrent.ExecutionContext
 import scala.concurrent.duration._
 
-class GetOidForPathTest extends FunSpec with TestContext with Matchers with GetOidForPathProperties with Http4sDsl[IO]{
+class GetOidForPathTest extends FunSpec with TestContext with Matchers with GetOidForPathProperties with MockGmData {
 
   case class Configuration(rootURL: String,
       fileName: String,
@@ -107,6 +111,68 @@ class GetOidForPathTest extends FunSpec with TestContext with Matchers with GetO
     }
   }
 
+  private def countingRoutes(calls: AtomicInteger) = HttpRoutes[IO](request => OptionT.liftF(IO(calls.incrementAndGet())).flatMap(_ => mockGmDataRoutes()(request)))
+
+  private def mockRunner(rootUrl: String, ttl: String = "0 secs") = {
+    val runner = TestRunners.newTestRunner(new GetOidForPath)
+    runner.setProperty(rootUrlProperty, rootUrl)
+    runner.setProperty(objectPolicyProperty, policies.head)
+    runner.setProperty(folderCacheTtlProperty, ttl)
+    runner.setProperty("USER_DN", "CN=nifinpe,OU=Engineering,O=Untrusted Example,L=Baltimore,ST=MD,C=US")
+    runner
+  }
+
+  private def enqueueFiles(runner: TestRunner, count: Int, path: String = "a/b/c/file.txt") =
+    (1 to count).foreach(i => runner.enqueue(new ByteArrayInputStream(Array[Byte]()), Map("filename" -> s"file$i.txt", "path" -> path).asJava))
+
+  /**
+    * A GM Data that keeps the folders written to it by parent oid and name, and counts the writes of each folder. A write
+    * of a folder whose parent does not exist is refused.
+    */
+  private class MockFolders(refuseDuplicates: Boolean = false) {
+    val folders = new ConcurrentHashMap[(String, String), String]()
+    val writes = new ConcurrentHashMap[(String, String), AtomicInteger]()
+    val writeRequests = new AtomicInteger(0)
+    val lookups = new AtomicInteger(0)
+    private val generatedOids = new AtomicInteger(0)
+
+    def oidOf(path: String*) = path.foldLeft(mockNamespaceOid)((parent, name) => folders.get(parent -> name))
+
+    val routes = HttpRoutes.of[IO] {
+      case GET -> "props" /: rest =>
+        lookups.incrementAndGet()
+        val base :: names = rest.toList
+        val oids = names.scanLeft(Option(base))((parent, name) => parent.flatMap(oid => Option(folders.get(oid -> name))))
+        oids.takeRight(2) match {
+          case List(Some(parent), Some(oid)) => Ok(mockProps(names.last, oid, parent, isFile = false))
+          case _ => NotFound()
+        }
+      case GET -> "list" /: rest =>
+        lookups.incrementAndGet()
+        val parent = rest.toList.head
+        Ok(folders.asScala.collect { case ((`parent`, name), oid) => mockProps(name, oid, parent, isFile = false) }.mkString("[", ",", "]"))
+      case request @ POST -> Root / "write" => for {
+        multipart <- request.as[Multipart[IO]]
+        meta <- multipart.parts.find(_.name.contains("meta")).get.bodyText.compile.string
+        _ <- IO(writeRequests.incrementAndGet())
+        _ <- IO.sleep(20.millis)
+        written = parse(meta).right.get.asArray.get.toList.map { folder =>
+          val cursor = folder.hcursor
+          val parent = cursor.get[String]("parentoid").right.get
+          val name = cursor.get[String]("name").right.get
+          if (parent != mockNamespaceOid && !folders.containsValue(parent)) Left(BadRequest("The parent folder does not exist"))
+          else if (refuseDuplicates && folders.containsKey(parent -> name)) Left(Conflict("A folder with this name already exists"))
+          else {
+            writes.computeIfAbsent(parent -> name, _ => new AtomicInteger(0)).incrementAndGet()
+            val oid = folders.computeIfAbsent(parent -> name, _ => cursor.get[String]("oid").getOrElse(f"${generatedOids.incrementAndGet()}%016x"))
+            Right(mockProps(name, oid, parent, isFile = false))
+          }
+        }
+        response <- written.collectFirst { case Left(refused) => refused }.getOrElse(Ok(written.collect { case Right(folder) => folder }.mkString("[", ",", "]")))
+      } yield response
+    }
+  }
+
   describe("GetOIDForPathProcessor") {
     it("should create folders in GM Data successfully given the correct properties") {
       runProcessorTests(attributeMap(_)) { (runner: TestRunner, configuration, sslContext) =>
@@ -214,5 +280,217 @@ class GetOidForPathTest extends FunSpec with TestContext with Matchers with GetO
         runner.assertTransferCount(RelFailure, 0)
       }()
     }
+
+    describe("when the folder cache is enabled") {
+      it("should only resolve the folders of a path for the first FlowFile") {
+        val calls = new AtomicInteger(0)
+        withMockGmData(countingRoutes(calls)) { rootUrl =>
+          val runner = mockRunner(rootUrl, "1 min")
+          enqueueFiles(runner, 5)
+          runner.run(5)
+          runner.assertTransferCount(RelSuccess, 5)
+          runner.getFlowFilesForRelationship(RelSuccess).asScala.foreach(_.assertAttributeEquals("gmdata.parentoid", "0123456789abcdef"))
+          calls.get shouldBe 6
+          enqueueFiles(runner, 1, "a/b/d/file.txt")
+          runner.run()
+          calls.get shouldBe 7
+        }
+      }
+
+      it("should resolve the folders for every FlowFile when the TTL is 0") {
+        val calls = new AtomicInteger(0)
+        withMockGmData(countingRoutes(calls)) { rootUrl =>
+          val runner = mockRunner(rootUrl, "0 secs")
+          runner.setProperty(identityCacheTtlProperty, "0 secs")
+          enqueueFiles(runner, 3)
+          runner.run(3)
+          runner.assertTransferCount(RelSuccess, 3)
+          calls.get shouldBe 18
+        }
+      }
+
+      it("should reuse the answers of /config and /self when only the identity cache is enabled") {
+        val calls = new AtomicInteger(0)
+        withMockGmData(countingRoutes(calls)) { rootUrl =>
+          val runner = mockRunner(rootUrl, "0 secs")
+          enqueueFiles(runner, 3)
+          runner.run(3)
+          runner.assertTransferCount(RelSuccess, 3)
+          calls.get shouldBe 14
+        }
+      }
+
+      it("should share the resolved folders through the folder cache service") {
+        val calls = new AtomicInteger(0)
+        val cache = new MockDistributedMapCache
+        withMockGmData(countingRoutes(calls)) { rootUrl =>
+          List(mockRunner(rootUrl, "1 min"), mockRunner(rootUrl, "1 min")).foreach { runner =>
+            runner.addControllerService("folder-cache", cache)
+            runner.enableControllerService(cache)
+            runner.setProperty(folderCacheServiceProperty, "folder-cache")
+            enqueueFiles(runner, 2)
+            runner.run(2)
+            runner.assertTransferCount(RelSuccess, 2)
+            runner.getFlowFilesForRelationship(RelSuccess).asScala.foreach(_.assertAttributeEquals("gmdata.parentoid", "0123456789abcdef"))
+          }
+          calls.get shouldBe 6
+          cache.values.keySet.asScala.size shouldBe 4
+        }
+      }
+    }
+
+    describe("when many FlowFiles create the same folders concurrently") {
+      it("should write each folder once") {
+        val gmData = new MockFolders
+        withMockGmData(mockGmDataRoutes(gmData.routes)) { rootUrl =>
+          val runner = mockRunner(rootUrl)
+          enqueueFiles(runner, 2000, "x/y/z/file.txt")
+          runner.setThreadCount(16)
+          runner.run(2000)
+          runner.assertTransferCount(RelSuccess, 2000)
+          runner.getFlowFilesForRelationship(RelSuccess).asScala.map(_.getAttribute("gmdata.parentoid")).toSet.size shouldBe 1
+          gmData.writes.size shouldBe 4
+          gmData.writes.asScala.values.map(_.get).toSet shouldBe Set(1)
+        }
+      }
+    }
+
+    describe("when the batch size is greater than 1") {
+      it("should resolve each distinct path once per run") {
+        val calls = new AtomicInteger(0)
+        withMockGmData(countingRoutes(calls)) { rootUrl =>
+          val runner = mockRunner(rootUrl)
+          runner.setProperty(batchSizeProperty, "10")
+          enqueueFiles(runner, 4, "a/b/file.txt")
+          enqueueFiles(runner, 4, "a/c/file.txt")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 8)
+          runner.assertAllFlowFilesContainAttribute(RelSuccess, "gmdata.parentoid")
+          calls.get should be <= 10
+        }
+      }
+    }
+
+    describe("when missing folders are created together") {
+      it("should create the missing folders of a path with a single write") {
+        val gmData = new MockFolders
+        withMockGmData(mockGmDataRoutes(gmData.routes)) { rootUrl =>
+          val runner = mockRunner(rootUrl)
+          runner.setProperty(createFoldersTogetherProperty, "true")
+          enqueueFiles(runner, 1, "p/q/r/s/t/file.txt")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 1)
+          gmData.writeRequests.get shouldBe 2
+          gmData.folders.size shouldBe 6
+          val parentOid = gmData.oidOf(mockUserField, "p", "q", "r", "s", "t")
+          runner.getFlowFilesForRelationship(RelSuccess).get(0).assertAttributeEquals("gmdata.parentoid", parentOid)
+          enqueueFiles(runner, 1, "p/q/u/file.txt")
+          runner.run()
+          gmData.writeRequests.get shouldBe 3
+          gmData.writes.asScala.values.map(_.get).toSet shouldBe Set(1)
+          runner.getFlowFilesForRelationship(RelSuccess).get(1).assertAttributeEquals("gmdata.parentoid", gmData.oidOf(mockUserField, "p", "q", "u"))
+        }
+      }
+    }
+
+    describe("when the deepest folder is resolved first") {
+      it("should resolve an existing path with a single lookup") {
+        val calls = new AtomicInteger(0)
+        withMockGmData(countingRoutes(calls)) { rootUrl =>
+          val runner = mockRunner(rootUrl)
+          runner.setProperty(resolveDeepestFirstProperty, "true")
+          enqueueFiles(runner, 1, "a/b/c/d/e/file.txt")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 1)
+          runner.getFlowFilesForRelationship(RelSuccess).get(0).assertAttributeEquals("gmdata.parentoid", "0123456789abcdef")
+          calls.get shouldBe 3
+        }
+      }
+
+      it("should create the folders below the deepest existing folder") {
+        val gmData = new MockFolders
+        List(mockNamespaceOid -> mockUserField, "00000000000000a1" -> "p", "00000000000000a2" -> "q", "00000000000000a3" -> "r").zipWithIndex.foreach {
+          case (folder, index) => gmData.folders.put(folder, f"${0xa1 + index}%016x")
+        }
+        withMockGmData(mockGmDataRoutes(gmData.routes)) { rootUrl =>
+          val runner = mockRunner(rootUrl)
+          runner.setProperty(resolveDeepestFirstProperty, "true")
+          enqueueFiles(runner, 1, "p/q/r/s/t/file.txt")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 1)
+          gmData.writes.asScala.keySet shouldBe Set("00000000000000a4" -> "s", gmData.oidOf(mockUserField, "p", "q", "r", "s") -> "t")
+          runner.getFlowFilesForRelationship(RelSuccess).get(0).assertAttributeEquals("gmdata.parentoid", gmData.oidOf(mockUserField, "p", "q", "r", "s", "t"))
+        }
+      }
+    }
+
+    describe("when folders are created first") {
+      it("should only look up the folders that already exist") {
+        val gmData = new MockFolders(refuseDuplicates = true)
+        gmData.folders.put(mockNamespaceOid -> mockUserField, "00000000000000a1")
+        gmData.folders.put("00000000000000a1" -> "p", "00000000000000a2")
+        withMockGmData(mockGmDataRoutes(gmData.routes)) { rootUrl =>
+          val runner = mockRunner(rootUrl)
+          runner.setProperty(createFoldersFirstProperty, "true")
+          enqueueFiles(runner, 1, "p/q/r/file.txt")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 1)
+          gmData.writeRequests.get shouldBe 3
+          gmData.lookups.get shouldBe 2
+          gmData.writes.asScala.keySet shouldBe Set("00000000000000a2" -> "q", gmData.oidOf(mockUserField, "p", "q") -> "r")
+          runner.getFlowFilesForRelationship(RelSuccess).get(0).assertAttributeEquals("gmdata.parentoid", gmData.oidOf(mockUserField, "p", "q", "r"))
+        }
+      }
+
+      it("should fail without a lookup when GM Data refuses a write for another reason") {
+        val gmData = new MockFolders(refuseDuplicates = true)
+        gmData.folders.put(mockNamespaceOid -> mockUserField, "00000000000000a1")
+        gmData.folders.put("00000000000000a1" -> "p", "00000000000000a2")
+        val failingWrites = HttpRoutes.of[IO] { case POST -> Root / "write" => InternalServerError("GM Data is unavailable") }
+        withMockGmData(mockGmDataRoutes(failingWrites <+> gmData.routes)) { rootUrl =>
+          val runner = mockRunner(rootUrl)
+          runner.setProperty(createFoldersFirstProperty, "true")
+          enqueueFiles(runner, 1, "p/q/file.txt")
+          runner.run()
+          runner.assertTransferCount(RelFailure, 1)
+          gmData.lookups.get shouldBe 1
+        }
+      }
+    }
+
+    describe("when a cached folder no longer exists") {
+      it("should drop the cached folders and resolve the path again") {
+        val gmData = new MockFolders
+        withMockGmData(mockGmDataRoutes(gmData.routes)) { rootUrl =>
+          val runner = mockRunner(rootUrl, "1 hour")
+          enqueueFiles(runner, 1, "p/q/file.txt")
+          runner.run()
+          gmData.folders.clear()
+          enqueueFiles(runner, 1, "p/q/r/file.txt")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 2)
+          runner.getFlowFilesForRelationship(RelSuccess).get(1).assertAttributeEquals("gmdata.parentoid", gmData.oidOf(mockUserField, "p", "q", "r"))
+        }
+      }
+
+      it("should drop the cached folders when GM Data places a folder below another parent") {
+        val gmData = new MockFolders
+        val staleOid = new AtomicReference[String]()
+        val staleRoutes = HttpRoutes.of[IO] {
+          case GET -> "props" /: rest if rest.toList.headOption.contains(staleOid.get) => Ok(mockProps(rest.toList.last, "0000000000000bad", "00000000000000ff", isFile = false))
+        }
+        withMockGmData(mockGmDataRoutes(staleRoutes <+> gmData.routes)) { rootUrl =>
+          val runner = mockRunner(rootUrl, "1 hour")
+          enqueueFiles(runner, 1, "p/q/file.txt")
+          runner.run()
+          staleOid.set(gmData.oidOf(mockUserField, "p", "q"))
+          gmData.folders.put(gmData.oidOf(mockUserField, "p") -> "q", "00000000000000aa")
+          enqueueFiles(runner, 1, "p/q/r/file.txt")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 2)
+          runner.getFlowFilesForRelationship(RelSuccess).get(1).assertAttributeEquals("gmdata.parentoid", gmData.oidOf(mockUserField, "p", "q", "r"))
+        }
+      }
+    }
   }
 }
@@ -0,0 +1,107 @@
+package com.deciphernow.greymatter.data.nifi.processors
+
+import java.io.ByteArrayInputStream
+import java.util.concurrent.atomic.AtomicInteger
+
+import cats.effect.{ContextShift, IO, Timer}
+import cats.implicits._
+import com.deciphernow.greymatter.data.MockGmData
+import org.apache.nifi.util.{TestRunner, TestRunners}
+import org.http4s.HttpRoutes
+import org.scalatest._
+
+import scala.concurrent.ExecutionContext
+import scala.concurrent.duration._
+
+class GetPoliciesBatchTest extends FunSpec with Matchers with MockGmData {
+
+  import scala.collection.JavaConverters._
+
+  implicit lazy val ec = ExecutionContext.global
+  implicit val ctxShift: ContextShift[IO] = IO.contextShift(ec)
+  implicit val timer: Timer[IO] = IO.timer(ec)
+
+  private val conversion = """{"objectpolicy":{"label":"everyone"},"lisp":"(yield-all)","security":{"label":"U"},"originalobjectpolicy":{}}"""
+
+  private def convertRoutes(calls: AtomicInteger, inFlight: AtomicInteger, maxInFlight: AtomicInteger) = HttpRoutes.of[IO] {
+    case POST -> Root / "convert" / "addpermissions" => for {
+      current <- IO(calls.incrementAndGet()) *> IO(inFlight.incrementAndGet())
+      _ <- IO(maxInFlight.accumulateAndGet(current, (a, b) => a max b))
+      _ <- timer.sleep(200.millis)
+      _ <- IO(inFlight.decrementAndGet())
+      response <- Ok(conversion)
+    } yield response
+  }
+
+  private def batchRunner(rootUrl: String, flowFiles: Int) = {
+    val runner = TestRunners.newTestRunner(new GetPolicies)
+    runner.setProperty(GetPolicies.PROP_BASE_URL, rootUrl)
+    runner.setProperty(GetPolicies.PROP_BATCH_SIZE, flowFiles.toString)
+    runner.setProperty(GetPolicies.PROP_MAX_REQUESTS_PER_HOST, "5")
+    (1 to flowFiles).foreach { _ =>
+      runner.enqueue(new ByteArrayInputStream("".getBytes), Map("acm" -> """{"version":"2.1.0","classif":"U"}""", "permission" -> """{"read":{"allow":["group/-everyone"]}}""").asJava)
+    }
+    runner
+  }
+
+  private def assertConverted(runner: TestRunner, flowFiles: Int) = {
+    runner.assertAllFlowFilesTransferred(GetPolicies.REL_RESPONSE, flowFiles)
+    runner.getFlowFilesForRelationship(GetPolicies.REL_RESPONSE).asScala.foreach { flowFile =>
+      flowFile.assertAttributeEquals("getpolicies.status.code", "200")
+      flowFile.assertAttributeEquals("gmdata.lisp", "(yield-all)")
+      flowFile.assertAttributeEquals("gmdata.objectpolicy", """{"label":"everyone"}""")
+    }
+  }
+
+  describe("GetPolicies processor batch mode") {
+    it("should keep several requests of a batch in flight within the limit per host") {
+      val (calls, inFlight, maxInFlight) = (new AtomicInteger(0), new AtomicInteger(0), new AtomicInteger(0))
+      withMockGmData(convertRoutes(calls, inFlight, maxInFlight)) { rootUrl =>
+        val runner = batchRunner(rootUrl, 10)
+        runner.run(1)
+        assertConverted(runner, 10)
+        calls.get shouldBe 10
+        maxInFlight.get should (be > 1 and be <= 5)
+      }
+    }
+
+    it("should share a single conversion between the identical FlowFiles of a batch") {
+      val (calls, inFlight, maxInFlight) = (new AtomicInteger(0), new AtomicInteger(0), new AtomicInteger(0))
+      withMockGmData(convertRoutes(calls, inFlight, maxInFlight)) { rootUrl =>
+        val runner = batchRunner(rootUrl, 10)
+        runner.setProperty(GetPolicies.PROP_CONVERSION_CACHE_SIZE, "10")
+        runner.run(1)
+        assertConverted(runner, 10)
+        calls.get shouldBe 1
+        runner.getCounterValue("Conversion Cache Misses") shouldBe 1
+        runner.getCounterValue("Conversion Cache Shared Requests") shouldBe 9
+      }
+    }
+
+    it("should stream each conversion into a child of its FlowFile when the output destination is content") {
+      val (calls, inFlight, maxInFlight) = (new AtomicInteger(0), new AtomicInteger(0), new AtomicInteger(0))
+      withMockGmData(convertRoutes(calls, inFlight, maxInFlight)) { rootUrl =>
+        val runner = batchRunner(rootUrl, 3)
+        runner.setProperty(GetPolicies.PROP_OUTPUT_DESTINATION, "content")
+        runner.run(1)
+        runner.assertTransferCount(GetPolicies.REL_RESPONSE, 3)
+        runner.assertTransferCount(GetPolicies.REL_RESPONSE_CONTENT, 3)
+        runner.getFlowFilesForRelationship(GetPolicies.REL_RESPONSE).asScala.foreach(_.assertContentEquals(""))
+        runner.getFlowFilesForRelationship(GetPolicies.REL_RESPONSE_CONTENT).asScala.foreach { flowFile =>
+          flowFile.assertContentEquals(conversion)
+          flowFile.assertAttributeEquals("gmdata.lisp", "(yield-all)")
+          flowFile.assertAttributeEquals("acm", """{"version":"2.1.0","classif":"U"}""")
+        }
+      }
+    }
+
+    it("should route the FlowFiles whose requests fail to failure") {
+      withMockGmData(HttpRoutes.empty[IO]) { rootUrl =>
+        val runner = batchRunner(rootUrl, 3)
+        runner.run(1)
+        runner.assertAllFlowFilesTransferred(GetPolicies.REL_FAILURE, 3)
+        runner.getFlowFilesForRelationship(GetPolicies.REL_FAILURE).asScala.foreach(_.assertAttributeEquals("getpolicies.status.code", "404"))
+      }
+    }
+  }
+}
@@ -16,26 +16,31 @@
  */
 package com.deciphernow.greymatter.data.nifi.processors
 
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+
 import cats.effect.{ContextShift, IO, Timer}
 import cats.implicits._
-import com.deciphernow.greymatter.data.TestContext
+import com.deciphernow.greymatter.data.{MockDistributedMapCache, MockGmData, TestContext}
 import com.deciphernow.greymatter.data.nifi.http.Metadata
+import com.deciphernow.greymatter.data.nifi.processors.utils.ListingShards
 import com.deciphernow.greymatter.data.nifi.properties.ListFilesProperties
 import io.circe.Json
 import io.circe.parser.parse
 import javax.net.ssl.SSLContext
 import org.apache.nifi.util.{TestRunner, TestRunners}
 import org.http4s.client.blaze.BlazeClientBuilder
-import org.http4s.{Header, Headers, Uri}
+import org.http4s.{Header, Headers, HttpRoutes, Uri}
 import org.scalatest._
 import fs2.{Pure, Stream}
+import org.apache.nifi.components.state.Scope
 import org.apache.nifi.expression.ExpressionLanguageScope
+import org.apache.nifi.serialization.record.MockRecordWriter
 
 import scala.concurrent.duration._
 import scala.collection.JavaConverters._
 import scala.concurrent.ExecutionContext
 
-class ListFilesTest extends FunSpec with TestContext with Matchers with ListFilesProperties {
+class ListFilesTest extends FunSpec with TestContext with Matchers with ListFilesProperties with MockGmData {
   implicit lazy val ec = ExecutionContext.global
   implicit val ctxShift: ContextShift[IO] = IO.contextShift(ec)
   implicit val timer: Timer[IO] = IO.timer(ec)
@@ -222,6 +227,331 @@ class ListFilesTest extends FunSpec with TestContext with Matchers with ListFile
         }
       }
     }
+    describe("when listing concurrency is greater than 1") {
+      it("should list every file in the folder tree with no more than that many /list calls in flight") {
+        val inFlight = new AtomicInteger(0)
+        val maxInFlight = new AtomicInteger(0)
+        def children(oid: String) = {
+          val folders = if (oid.count(_ == '-') < levels) (0 until numberOfFolders).map(i => mockProps(s"folder$i", s"$oid-$i", oid, isFile = false)) else List()
+          folders ++ (0 until numberOfFiles).map(i => mockProps(s"file$i", s"$oid-file$i", oid))
+        }
+        def expectedPath(oid: String) = {
+          val folders = oid.split("-").toList.drop(1).dropRight(1).map(i => s"folder$i")
+          if (folders.isEmpty) "/" else folders.mkString("/", "/", "/")
+        }
+        val routes = HttpRoutes.of[IO] {
+          case GET -> Root / "list" / oid => for {
+            current <- IO(inFlight.incrementAndGet())
+            _ <- IO(maxInFlight.accumulateAndGet(current, (a, b) => math.max(a, b)))
+            _ <- IO.sleep(20 millis)
+            _ <- IO(inFlight.decrementAndGet())
+            response <- Ok(children(oid).mkString("[", ",", "]"))
+          } yield response
+        }
+        withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+          val runner = TestRunners.newTestRunner(new ListFiles)
+          runner.setProperty(rootUrlProperty, rootUrl)
+          runner.setProperty(inputDirectoryProperty, "root")
+          runner.setProperty(listingConcurrencyProperty, "4")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, totalFileNumber.toInt)
+          runner.assertTransferCount(RelFailure, 0)
+          runner.getFlowFilesForRelationship(RelSuccess).asScala.foreach(flowFile => flowFile.assertAttributeEquals("path", expectedPath(flowFile.getAttribute("gmdata.oid"))))
+          maxInFlight.get should (be > 1 and be <= 4)
+        }
+      }
+    }
+    describe("when a folder entry has no oid") {
+      it("should skip the entry and finish listing the rest of the tree") {
+        val routes = HttpRoutes.of[IO] {
+          case GET -> Root / "list" / "root" => Ok(List(
+            mockProps("nooid", isFile = false).replace(""""oid":"0123456789abcdef",""", ""),
+            mockProps("folder", "00000000000000f0", "root", isFile = false),
+            mockProps("file", "00000000000000a0", "root")).mkString("[", ",", "]"))
+          case GET -> Root / "list" / "00000000000000f0" => Ok(List(mockProps("child", "00000000000000a1", "00000000000000f0")).mkString("[", ",", "]"))
+        }
+        withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+          val runner = TestRunners.newTestRunner(new ListFiles)
+          runner.setProperty(rootUrlProperty, rootUrl)
+          runner.setProperty(inputDirectoryProperty, "root")
+          runner.setProperty(listingConcurrencyProperty, "2")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 2)
+          runner.assertTransferCount(RelFailure, 0)
+          runner.getFlowFilesForRelationship(RelSuccess).asScala.map(_.getAttribute("gmdata.oid")).toSet shouldBe Set("00000000000000a0", "00000000000000a1")
+        }
+      }
+    }
+    describe("when a folder holds more objects than the list page size") {
+      it("should page through the folder with the last cursor and list every file once") {
+        object CountParam extends QueryParamDecoderMatcher[Int]("count")
+        object LastParam extends OptionalQueryParamDecoderMatcher[String]("last")
+        val listCalls = new AtomicInteger(0)
+        val tstamps = (1 to 25).map(i => 0x16a7e1d8e8a0b000L + i)
+        def page(count: Int, last: Option[String]) = tstamps.filter(tstamp => last.forall(tstamp > java.lang.Long.parseLong(_, 16))).take(count)
+          .map(tstamp => mockProps(s"file$tstamp", s"oid$tstamp", "big", tstamp = tstamp.toHexString))
+        val routes = HttpRoutes.of[IO] {
+          case GET -> Root / "list" / "big" :? CountParam(count) +& LastParam(last) =>
+            IO(listCalls.incrementAndGet()).flatMap(_ => Ok(page(count, last).mkString("[", ",", "]")))
+        }
+        withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+          val runner = TestRunners.newTestRunner(new ListFiles)
+          runner.setProperty(rootUrlProperty, rootUrl)
+          runner.setProperty(inputDirectoryProperty, "big")
+          runner.setProperty(listPageSizeProperty, "10")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, tstamps.length)
+          runner.assertTransferCount(RelFailure, 0)
+          runner.getFlowFilesForRelationship(RelSuccess).asScala.map(_.getAttribute("gmdata.oid")).toSet.size shouldBe tstamps.length
+          listCalls.get shouldBe 3
+        }
+      }
+
+      it("should list every file once when more files than fit on a page share the tstamp at the end of a page") {
+        object CountParam extends QueryParamDecoderMatcher[Int]("count")
+        object LastParam extends OptionalQueryParamDecoderMatcher[String]("last")
+        val base = 0x16a7e1d8e8a0b000L
+        val files = (1 to 5).map(i => (base, f"$i%016x")) ++ (6 to 20).map(i => (base + 1, f"$i%016x")) ++ (21 to 25).map(i => (base + 2, f"$i%016x"))
+        def page(count: Int, last: Option[String]) = files.filter { case (tstamp, _) => last.forall(tstamp > java.lang.Long.parseLong(_, 16)) }.take(count)
+          .map { case (tstamp, oid) => mockProps(s"file$oid", oid, "shared", tstamp = tstamp.toHexString) }
+        val routes = HttpRoutes.of[IO] {
+          case GET -> Root / "list" / "shared" :? CountParam(count) +& LastParam(last) => Ok(page(count, last).mkString("[", ",", "]"))
+        }
+        withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+          val runner = TestRunners.newTestRunner(new ListFiles)
+          runner.setProperty(rootUrlProperty, rootUrl)
+          runner.setProperty(inputDirectoryProperty, "shared")
+          runner.setProperty(listPageSizeProperty, "10")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, files.length)
+          runner.assertTransferCount(RelFailure, 0)
+          runner.getFlowFilesForRelationship(RelSuccess).asScala.map(_.getAttribute("gmdata.oid")).toSet shouldBe files.map(_._2).toSet
+        }
+      }
+    }
+    describe("when many files share an object policy") {
+      it("should find the file owner once and share the policy attributes between FlowFiles") {
+        val routes = HttpRoutes.of[IO] {
+          case GET -> Root / "list" / "shared" => Ok((1 to 50).map { i =>
+            mockProps(s"file$i", f"$i%016x", "shared").replace(""""objectpolicy":{}""", s""""objectpolicy":$objectPolicyOrganizationA""")
+          }.mkString("[", ",", "]"))
+        }
+        withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+          val runner = TestRunners.newTestRunner(new ListFiles)
+          runner.setProperty(rootUrlProperty, rootUrl)
+          runner.setProperty(inputDirectoryProperty, "shared")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 50)
+          val flowFiles = runner.getFlowFilesForRelationship(RelSuccess).asScala.toList
+          flowFiles.foreach(_.assertAttributeEquals("file.owner", "OrganizationA"))
+          flowFiles.map(_.getAttribute("gmdata.objectpolicy")).foreach(_ should be theSameInstanceAs flowFiles.head.getAttribute("gmdata.objectpolicy"))
+        }
+      }
+    }
+    describe("when attribute groups and a policy cache are set") {
+      it("should only write the selected attributes and replace the object policy with its hash") {
+        val routes = HttpRoutes.of[IO] {
+          case GET -> Root / "list" / "projected" => Ok((1 to 5).map { i =>
+            mockProps(s"file$i", f"$i%016x", "projected").replace(""""objectpolicy":{}""", s""""objectpolicy":$objectPolicyOrganizationA,"security":{"label":"l","foreground":"f","background":"b"}""")
+          }.mkString("[", ",", "]"))
+        }
+        withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+          val runner = TestRunners.newTestRunner(new ListFiles)
+          val cache = new MockDistributedMapCache
+          runner.addControllerService("policy-cache", cache)
+          runner.enableControllerService(cache)
+          runner.setProperty(rootUrlProperty, rootUrl)
+          runner.setProperty(inputDirectoryProperty, "projected")
+          runner.setProperty(attributeGroupsProperty, "file, gmdata,policy")
+          runner.setProperty(policyCacheServiceProperty, "policy-cache")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 5)
+          val flowFiles = runner.getFlowFilesForRelationship(RelSuccess).asScala.toList
+          flowFiles.foreach { flowFile =>
+            flowFile.assertAttributeExists("gmdata.oid")
+            flowFile.assertAttributeEquals("file.owner", "OrganizationA")
+            flowFile.assertAttributeNotExists("gmdata.objectpolicy")
+            flowFile.assertAttributeNotExists("gmdata.security")
+          }
+          val hashes = flowFiles.map(_.getAttribute("gmdata.objectpolicy.hash")).toSet
+          hashes.size shouldBe 1
+          cache.values.keySet.asScala shouldBe Set(s"gmdata.objectpolicy.${hashes.head}")
+          parse(new String(cache.values.get(s"gmdata.objectpolicy.${hashes.head}"))) shouldBe parse(objectPolicyOrganizationA)
+        }
+      }
+
+      it("should not accept unknown attribute groups") {
+        val runner = TestRunners.newTestRunner(new ListFiles)
+        runner.setProperty(rootUrlProperty, "http://localhost")
+        runner.setProperty(inputDirectoryProperty, "projected")
+        runner.setProperty(attributeGroupsProperty, "file,everything")
+        runner.assertNotValid()
+      }
+    }
+    describe("when a listing is interrupted") {
+      it("should commit the files listed so far and resume from the folders that were left") {
+        val rootListCalls = new AtomicInteger(0)
+        val failNextListOfB = new AtomicBoolean(true)
+        def files(folder: String) = (0 until 4).map(i => mockProps(s"file$i", s"$folder-file$i", folder))
+        val routes = HttpRoutes.of[IO] {
+          case GET -> Root / "list" / "root" =>
+            val folders = List("a", "b", "c").map(folder => mockProps(folder, folder, "root", isFile = false))
+            val rootFiles = (0 until 2).map(i => mockProps(s"file$i", s"root-file$i", "root"))
+            IO(rootListCalls.incrementAndGet()).flatMap(_ => Ok((folders ++ rootFiles).mkString("[", ",", "]")))
+          case GET -> Root / "list" / "b" if failNextListOfB.getAndSet(false) => InternalServerError("unavailable")
+          case GET -> Root / "list" / folder => Ok(files(folder).mkString("[", ",", "]"))
+        }
+        withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+          val runner = TestRunners.newTestRunner(new ListFiles)
+          runner.setProperty(rootUrlProperty, rootUrl)
+          runner.setProperty(inputDirectoryProperty, "root")
+          runner.setProperty(commitBatchSizeProperty, "3")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 6)
+          runner.getStateManager.getState(Scope.CLUSTER).toMap.asScala.keys.exists(_.startsWith("listing.walk.frontier.")) shouldBe true
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 14)
+          runner.getFlowFilesForRelationship(RelSuccess).asScala.map(_.getAttribute("gmdata.oid")).toSet.size shouldBe 14
+          runner.getStateManager.getState(Scope.CLUSTER).toMap.asScala.keys.exists(_.startsWith("listing.walk.")) shouldBe false
+          rootListCalls.get shouldBe 1
+        }
+      }
+    }
+    describe("when a run reaches its budget or downstream is back pressured") {
+      val routes = HttpRoutes.of[IO] {
+        case GET -> Root / "list" / "budget" => Ok((0 until 10).map(i => mockProps(s"file$i", f"$i%016x", "budget")).mkString("[", ",", "]"))
+      }
+      def walkKeys(runner: TestRunner) = runner.getStateManager.getState(Scope.CLUSTER).toMap.asScala.keys.filter(_.startsWith("listing.walk."))
+
+      it("should pause after Max Objects Per Run and resume on the next run") {
+        withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+          val runner = TestRunners.newTestRunner(new ListFiles)
+          runner.setProperty(rootUrlProperty, rootUrl)
+          runner.setProperty(inputDirectoryProperty, "budget")
+          runner.setProperty(maxObjectsPerRunProperty, "4")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 4)
+          walkKeys(runner) should not be empty
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 8)
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 10)
+          runner.getFlowFilesForRelationship(RelSuccess).asScala.map(_.getAttribute("gmdata.oid")).toSet.size shouldBe 10
+          walkKeys(runner) shouldBe empty
+        }
+      }
+
+      it("should pause at the next commit while the success relationship is unavailable") {
+        withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+          val runner = TestRunners.newTestRunner(new ListFiles)
+          runner.setProperty(rootUrlProperty, rootUrl)
+          runner.setProperty(inputDirectoryProperty, "budget")
+          runner.setProperty(commitBatchSizeProperty, "3")
+          runner.setRelationshipUnavailable(RelSuccess)
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 3)
+          walkKeys(runner) should not be empty
+          runner.setRelationshipAvailable(RelSuccess)
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 10)
+          runner.getFlowFilesForRelationship(RelSuccess).asScala.map(_.getAttribute("gmdata.oid")).toSet.size shouldBe 10
+          walkKeys(runner) shouldBe empty
+        }
+      }
+    }
+    describe("when unchanged folders are skipped") {
+      it("should only list the folders whose tstamp or child count changed since the last listing") {
+        object ChildCountParam extends OptionalQueryParamDecoderMatcher[String]("childCount")
+        val listCalls = new java.util.concurrent.ConcurrentHashMap[String, AtomicInteger]()
+        val withoutChildCount = new AtomicInteger(0)
+        val filesInB = new AtomicInteger(2)
+        def tstamp(i: Int) = (0x16a7e1d8e8a0b000L + i).toHexString
+        def files(folder: String, count: Int) = (0 until count).map(i => mockProps(s"file$i", s"$folder-file$i", folder, tstamp = tstamp(i)))
+        val routes = HttpRoutes.of[IO] {
+          case GET -> Root / "list" / folder :? ChildCountParam(childCount) =>
+            val response = folder match {
+              case "root" => List(
+                mockProps("a", "a", "root", isFile = false, childCount = Some(2)),
+                mockProps("b", "b", "root", isFile = false, tstamp = tstamp(filesInB.get), childCount = Some(filesInB.get.toLong)))
+              case "b" => files("b", filesInB.get)
+              case other => files(other, 2)
+            }
+            IO {
+              listCalls.computeIfAbsent(folder, _ => new AtomicInteger(0)).incrementAndGet()
+              if (!childCount.contains("true")) withoutChildCount.incrementAndGet()
+            }.flatMap(_ => Ok(response.mkString("[", ",", "]")))
+        }
+        withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+          val runner = TestRunners.newTestRunner(new ListFiles)
+          runner.setProperty(rootUrlProperty, rootUrl)
+          runner.setProperty(inputDirectoryProperty, "root")
+          runner.setProperty(skipUnchangedFoldersProperty, "true")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 4)
+          runner.getStateManager.getState(Scope.CLUSTER).toMap.asScala.keys.exists(_.startsWith("listing.folders.")) shouldBe true
+          filesInB.set(3)
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 5)
+          runner.getFlowFilesForRelationship(RelSuccess).asScala.map(_.getAttribute("gmdata.oid")).toSet.size shouldBe 5
+          listCalls.get("root").get shouldBe 2
+          listCalls.get("a").get shouldBe 1
+          listCalls.get("b").get shouldBe 2
+          withoutChildCount.get shouldBe 0
+        }
+      }
+    }
+    describe("when the listing is distributed") {
+      it("should only list the shards owned by this node and take over the shards of a node that left") {
+        val folders = (0 until 10).map(i => s"f$i")
+        def files(folder: String) = (0 until 2).map(i => mockProps(s"file$i", s"$folder-file$i", folder))
+        val routes = HttpRoutes.of[IO] {
+          case GET -> Root / "list" / "root" => Ok((folders.map(folder => mockProps(folder, folder, "root", isFile = false)) :+ mockProps("file", "root-file", "root")).mkString("[", ",", "]"))
+          case GET -> Root / "list" / folder => Ok(files(folder).mkString("[", ",", "]"))
+        }
+        withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+          val runner = TestRunners.newTestRunner(new ListFiles)
+          runner.setProperty(rootUrlProperty, rootUrl)
+          runner.setProperty(inputDirectoryProperty, "root")
+          runner.setProperty(distributeListingProperty, "true")
+          runner.getStateManager.setState(Map("listing.nodes.other" -> System.currentTimeMillis.toString).asJava, Scope.CLUSTER)
+          runner.run(1, false)
+          val state = runner.getStateManager.getState(Scope.CLUSTER).toMap.asScala
+          val nodes = state.keys.filter(_.startsWith("listing.nodes.")).map(_.stripPrefix("listing.nodes.")).toList
+          val node = nodes.filterNot(_ == "other").head
+          val owned = ("root" :: folders.toList).filter(shard => ListingShards.owner(shard, nodes) == node)
+          runner.assertTransferCount(RelSuccess, owned.map(shard => if (shard == "root") 1 else 2).sum)
+          owned.foreach(shard => state.keySet should contain(s"listing.shards.$shard.listing.timestamp"))
+          runner.getStateManager.setState((state - "listing.nodes.other" + ("listing.nodes.abandoned" -> "0")).asJava, Scope.CLUSTER)
+          runner.run(1, true, false)
+          runner.assertTransferCount(RelSuccess, 21)
+          runner.getFlowFilesForRelationship(RelSuccess).asScala.map(_.getAttribute("gmdata.oid")).toSet.size shouldBe 21
+          runner.getStateManager.getState(Scope.CLUSTER).toMap.asScala.keys.exists(_.startsWith("listing.nodes.")) shouldBe false
+        }
+      }
+    }
+    describe("when a record writer is set") {
+      it("should write the listing as records into FlowFiles of at most Records Per FlowFile objects") {
+        val routes = HttpRoutes.of[IO] {
+          case GET -> Root / "list" / "records" => Ok((1 to 25).map(i => mockProps(s"file$i", f"$i%016x", "records")).mkString("[", ",", "]"))
+        }
+        withMockGmData(mockGmDataRoutes(routes)) { rootUrl =>
+          val runner = TestRunners.newTestRunner(new ListFiles)
+          val recordWriter = new MockRecordWriter(null, false)
+          runner.addControllerService("record-writer", recordWriter)
+          runner.enableControllerService(recordWriter)
+          runner.setProperty(rootUrlProperty, rootUrl)
+          runner.setProperty(inputDirectoryProperty, "records")
+          runner.setProperty(recordWriterProperty, "record-writer")
+          runner.setProperty(recordsPerFlowFileProperty, "10")
+          runner.run()
+          runner.assertTransferCount(RelSuccess, 3)
+          runner.assertTransferCount(RelFailure, 0)
+          val flowFiles = runner.getFlowFilesForRelationship(RelSuccess).asScala.toList
+          flowFiles.map(_.getAttribute("record.count").toInt).sorted shouldBe List(5, 10, 10)
+          flowFiles.flatMap(flowFile => new String(runner.getContentAsByteArray(flowFile)).split("\n").filter(_.nonEmpty)).length shouldBe 25
+        }
+      }
+    }
     it("should throw an error if a required property is missing") {
       an[AssertionError] should be thrownBy runProcessorTests { (_, _, _) => List() } { (_, _, _) => }
     }
@@ -0,0 +1,177 @@
+package com.deciphernow.greymatter.data.nifi.processors;
+
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.apache.nifi.util.MockComponentLog;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PolicyConversionCacheTest {
+    private static final String POLICIES = "{\"objectpolicy\":{},\"lisp\":\"(yield-all)\"}";
+
+    private final Request request = new Request.Builder().url("http://localhost/convert/addpermissions").build();
+
+    private final MockComponentLog logger = new MockComponentLog("getpolicies", this);
+
+    private Response respond(int code, String body) {
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message("message")
+                .body(ResponseBody.create(MediaType.parse("application/json"), body))
+                .build();
+    }
+
+    private String bodyOf(PolicyConversionCache.Lookup lookup) throws IOException {
+        try (Response response = lookup.response) {
+            return response.body().string();
+        }
+    }
+
+    @Test
+    public void testAnswersRepeatedConversionsFromTheCache() throws IOException {
+        PolicyConversionCache cache = new PolicyConversionCache(10, 60000, null, false, logger);
+        AtomicInteger calls = new AtomicInteger();
+        PolicyConversionCache.Call call = () -> {
+            calls.incrementAndGet();
+            return respond(200, POLICIES);
+        };
+
+        PolicyConversionCache.Lookup first = cache.execute("key", request, call);
+        PolicyConversionCache.Lookup second = cache.execute("key", request, call);
+
+        assertEquals(PolicyConversionCache.MISSES_COUNTER, first.counter);
+        assertEquals(PolicyConversionCache.HITS_COUNTER, second.counter);
+        assertEquals(POLICIES, bodyOf(second));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testDoesNotKeepUnsuccessfulConversions() throws IOException {
+        PolicyConversionCache cache = new PolicyConversionCache(10, 60000, null, false, logger);
+        AtomicInteger calls = new AtomicInteger();
+        PolicyConversionCache.Call call = () -> respond(calls.incrementAndGet() == 1 ? 400 : 200, POLICIES);
+
+        assertEquals(400, cache.execute("key", request, call).response.code());
+        assertEquals(200, cache.execute("key", request, call).response.code());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testServesStaleConversionsWhenTheServiceIsUnavailable() throws IOException {
+        PolicyConversionCache cache = new PolicyConversionCache(10, 0, null, true, logger);
+        cache.execute("key", request, () -> respond(200, POLICIES));
+
+        PolicyConversionCache.Lookup failed = cache.execute("key", request, () -> {
+            throw new IOException("Connection refused");
+        });
+        PolicyConversionCache.Lookup errored = cache.execute("key", request, () -> respond(503, "unavailable"));
+
+        assertEquals(PolicyConversionCache.STALE_COUNTER, failed.counter);
+        assertEquals(POLICIES, bodyOf(failed));
+        assertEquals(PolicyConversionCache.STALE_COUNTER, errored.counter);
+        assertEquals(POLICIES, bodyOf(errored));
+    }
+
+    @Test
+    public void testStartsWarmFromTheCacheDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("conversions");
+        new PolicyConversionCache(10, 60000, directory, false, logger).execute("key", request, () -> respond(200, POLICIES));
+
+        PolicyConversionCache restarted = new PolicyConversionCache(10, 60000, directory, false, logger);
+        PolicyConversionCache.Lookup lookup = restarted.execute("key", request, () -> {
+            throw new IOException("The service should not be called");
+        });
+
+        assertEquals(PolicyConversionCache.HITS_COUNTER, lookup.counter);
+        assertEquals("application/json", lookup.response.body().contentType().toString());
+        assertEquals(POLICIES, bodyOf(lookup));
+    }
+
+    @Test
+    public void testPrunesTheCacheDirectoryToTheEntriesThatCanBeServed() throws IOException {
+        Path directory = Files.createTempDirectory("conversions");
+        PolicyConversionCache cache = new PolicyConversionCache(2, 60000, directory, false, logger);
+        for (String key : new String[]{"expired", "oldest", "older", "newest"}) {
+            cache.execute(key, request, () -> respond(200, POLICIES));
+        }
+        long now = System.currentTimeMillis();
+        Files.setLastModifiedTime(directory.resolve("expired.json"), FileTime.fromMillis(now - 120000));
+        Files.setLastModifiedTime(directory.resolve("oldest.json"), FileTime.fromMillis(now - 3000));
+        Files.setLastModifiedTime(directory.resolve("older.json"), FileTime.fromMillis(now - 2000));
+        Files.write(directory.resolve("newest.json.1.tmp"), new byte[0]);
+        Files.setLastModifiedTime(directory.resolve("newest.json.1.tmp"), FileTime.fromMillis(now - 120000));
+
+        new PolicyConversionCache(2, 60000, directory, false, logger).prune();
+
+        assertTrue(Files.exists(directory.resolve("newest.json")));
+        assertTrue(Files.exists(directory.resolve("older.json")));
+        assertFalse(Files.exists(directory.resolve("oldest.json")));
+        assertFalse(Files.exists(directory.resolve("expired.json")));
+        assertFalse(Files.exists(directory.resolve("newest.json.1.tmp")));
+    }
+
+    @Test
+    public void testKeepsExpiredFilesWhenStaleConversionsAreServed() throws IOException {
+        Path directory = Files.createTempDirectory("conversions");
+        new PolicyConversionCache(2, 60000, directory, true, logger).execute("expired", request, () -> respond(200, POLICIES));
+        Files.setLastModifiedTime(directory.resolve("expired.json"), FileTime.fromMillis(System.currentTimeMillis() - 120000));
+
+        new PolicyConversionCache(2, 60000, directory, true, logger).prune();
+
+        assertTrue(Files.exists(directory.resolve("expired.json")));
+    }
+
+    @Test
+    public void testSharesConcurrentCallsForTheSameConversion() throws Exception {
+        PolicyConversionCache cache = new PolicyConversionCache(10, 60000, null, false, logger);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<PolicyConversionCache.Lookup> leader = executor.submit(() -> cache.execute("key", request, () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return respond(200, POLICIES);
+            }));
+            started.await();
+            Future<PolicyConversionCache.Lookup> follower = executor.submit(() -> cache.execute("key", request, () -> {
+                calls.incrementAndGet();
+                return respond(200, POLICIES);
+            }));
+            Thread.sleep(100);
+            release.countDown();
+
+            assertEquals(POLICIES, bodyOf(leader.get()));
+            PolicyConversionCache.Lookup shared = follower.get();
+            assertEquals(PolicyConversionCache.SHARED_COUNTER, shared.counter);
+            assertEquals(POLICIES, bodyOf(shared));
+            assertEquals(1, calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
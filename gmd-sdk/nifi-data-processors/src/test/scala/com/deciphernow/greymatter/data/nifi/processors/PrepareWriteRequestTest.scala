@@ -23,7 +23,7 @@ import com.deciphernow.greymatter.data.nifi.http.{Metadata, Security}
 import io.circe.syntax._
 import io.circe.parser._
 import io.circe.generic.auto._
-import com.deciphernow.greymatter.data.{Action, TestContext}
+import com.deciphernow.greymatter.data.{Action, MockDistributedMapCache, TestContext}
 import com.deciphernow.greymatter.data.nifi.properties.PrepareWriteRequestProperties
 import com.deciphernow.greymatter.data.nifi.relationships.ProcessorRelationships
 import io.circe.{Json, Printer}
@@ -147,6 +147,22 @@ class PrepareWriteRequestTest extends FunSpec with TestContext with ProcessorRel
       }()
     }
 
+    it("should resolve an object policy hash through the Policy Cache Service") {
+      val policy = parse(objectPolicyOrganizationA).right.get
+      val hash = Metadata.internPolicy(policy).hash
+      val cache = new MockDistributedMapCache
+      val runner = TestRunners.newTestRunner(new PrepareWriteRequest())
+      runner.addControllerService("policy-cache", cache)
+      runner.enableControllerService(cache)
+      cache.putString(s"gmdata.objectpolicy.$hash", policy.noSpaces)
+      runner.setProperty(policyCacheServiceProperty, "policy-cache")
+      runner.setProperty(oidProperty, "1234123412341234")
+      runner.enqueue("some content".getBytes, Map("filename" -> "mycontext.txt", "mime.type" -> "text/plain", "gmdata.objectpolicy.hash" -> hash).asJava)
+      runner.run(1)
+      runner.assertTransferCount(RelSuccess, 1)
+      new String(runner.getFlowFilesForRelationship(RelSuccess).asScala.head.toByteArray) should include(s""""objectpolicy":${policy.noSpaces}""")
+    }
+
     it("should throw an error if a required property is missing") {
       an[AssertionError] should be thrownBy runProcessorTests(attributeMap(_, _)) { (_, _, _) => } { (_, _) => }
     }
@@ -0,0 +1,29 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.scalatest._
+
+class ConcurrentLruTest extends FunSpec with Matchers {
+
+  describe("ConcurrentLru") {
+    it("should stay within its size and keep the entries used most recently") {
+      val lru = new ConcurrentLru[Int, String](100)
+      (0 until 100).foreach(i => lru.put(i, i.toString))
+      (0 until 10).foreach(lru.get)
+      (100 until 150).foreach(i => lru.put(i, i.toString))
+      lru.size should be <= 100
+      (0 until 10).foreach(i => lru.get(i) shouldBe Some(i.toString))
+      (140 until 150).foreach(i => lru.get(i) shouldBe Some(i.toString))
+      lru.get(10) shouldBe None
+    }
+
+    it("should derive a missing value once and share it") {
+      val lru = new ConcurrentLru[String, String](10)
+      val derived = new AtomicInteger(0)
+      val values = (1 to 100).par.map(_ => lru.getOrElseUpdate("key") { key => derived.incrementAndGet(); s"$key value" })
+      values.toSet shouldBe Set("key value")
+      derived.get shouldBe 1
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.nio.file.Files
+
+import org.scalatest._
+
+import scala.collection.JavaConverters._
+
+class FolderOidLogTest extends FunSpec with Matchers {
+
+  private def newLog = FolderOidLog(Files.createTempDirectory("folder-oids").resolve("processor.folders"))
+
+  describe("FolderOidLog") {
+    it("should load the latest live entry of every key") {
+      val log = newLog
+      log.append("a", CachedOid("0000000000000001", 2000))
+      log.append("b", CachedOid("0000000000000002", 2000))
+      log.append("c", CachedOid("0000000000000003", 500))
+      log.flush()
+      log.append("a", CachedOid("0000000000000004", 3000))
+      log.remove("b")
+      log.flush()
+      log.load(1000) shouldBe Map("a" -> CachedOid("0000000000000004", 3000))
+    }
+
+    it("should ignore a truncated line and compact the file when it is loaded") {
+      val log = newLog
+      log.append("a", CachedOid("0000000000000001", 2000))
+      log.append("a", CachedOid("0000000000000002", 2000))
+      log.flush()
+      Files.write(log.file, "b 20".getBytes, java.nio.file.StandardOpenOption.APPEND)
+      log.load(1000) shouldBe Map("a" -> CachedOid("0000000000000002", 2000))
+      Files.readAllLines(log.file).asScala shouldBe List("a 2000 0000000000000002")
+    }
+
+    it("should compact the file once it holds many more lines than live entries") {
+      val log = newLog
+      val expires = System.currentTimeMillis + 60000
+      (0 to FolderOidLog.minLinesToCompact.toInt).foreach { i =>
+        log.append("a", CachedOid(f"$i%016x", expires))
+        log.flush()
+      }
+      Files.readAllLines(log.file).asScala shouldBe List(f"a $expires ${FolderOidLog.minLinesToCompact}%016x")
+    }
+
+    it("should warm a new cache with the folders of an earlier one") {
+      val log = newLog
+      val now = System.currentTimeMillis
+      val cache = new FolderOidCache
+      cache.open(Some(log), now)
+      cache.put("a", "0000000000000001", now + 60000)
+      cache.put("b", "0000000000000002", now + 60000)
+      cache.remove("b")
+      cache.flush()
+      val restarted = new FolderOidCache
+      restarted.open(Some(FolderOidLog(log.file)), now)
+      restarted.get("a", now) shouldBe Some("0000000000000001")
+      restarted.get("b", now) shouldBe None
+    }
+  }
+}
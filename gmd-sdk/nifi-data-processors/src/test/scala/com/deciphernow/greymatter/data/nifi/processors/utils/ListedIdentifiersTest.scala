@@ -0,0 +1,98 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import com.deciphernow.greymatter.data.Benchmark
+import org.scalatest._
+
+import scala.util.Random
+
+class ListedIdentifiersTest extends FunSpec with Matchers {
+
+  private val random = new Random(42)
+  private val oneMillion = 1000000
+
+  private def randomOid = f"${random.nextLong}%016x"
+
+  private def stateSize(identifiers: ListedIdentifiers) = identifiers.toStateMap.map { case (key, value) => key.length + value.length }.sum
+
+  private def timeLookups(identifiers: ListedIdentifiers, lookups: Seq[String]) = {
+    val start = System.nanoTime()
+    lookups.foreach(identifiers.contains)
+    System.nanoTime() - start
+  }
+
+  describe("ListedIdentifiers") {
+    it("should round trip GM Data oids and other identifiers through the state map") {
+      val oids = List.fill(1000)(randomOid)
+      val others = List("not-an-oid", "0123456789abcdef0", "")
+      val identifiers = ListedIdentifiers.fromIdentifiers(oids ++ others)
+      val restored = ListedIdentifiers.fromStateMap(identifiers.toStateMap + ("listing.timestamp" -> "1"))
+      restored shouldBe identifiers
+      (oids ++ others).foreach(restored.contains(_) shouldBe true)
+      restored.contains(randomOid) shouldBe false
+    }
+
+    it("should only store canonical oids as their value") {
+      ListedIdentifiers.hash("0000000000000abc") shouldBe 0xabcL
+      ListedIdentifiers.hash("abc") should not be ListedIdentifiers.hash("0000000000000abc")
+      ListedIdentifiers.hash("0123456789ABCDEF") should not be ListedIdentifiers.hash("0123456789abcdef")
+      ListedIdentifiers.fromIdentifiers(List("abc")).contains("0000000000000abc") shouldBe false
+    }
+
+    it("should restore an empty set when the state holds no identifiers") {
+      ListedIdentifiers.fromStateMap(Map("listing.timestamp" -> "1")) shouldBe ListedIdentifiers.empty
+      ListedIdentifiers.fromStateMap(ListedIdentifiers.empty.toStateMap) shouldBe ListedIdentifiers.empty
+    }
+
+    it("should keep the identifiers at the latest timestamp while they fit their share of the state") {
+      val thousand = SaveState(ListedIdentifiers.fromIdentifiers(List.fill(1000)(randomOid)), 42L, 1000)
+      thousand.bounded() shouldBe thousand
+    }
+
+    describe("benchmark") {
+      lazy val millionOids = Vector.fill(oneMillion)(randomOid)
+      lazy val million = ListedIdentifiers.fromIdentifiers(millionOids)
+
+      it("should dedupe 1,000,000 identifiers about as fast as 1,000", Benchmark) {
+        val thousand = ListedIdentifiers.fromIdentifiers(millionOids.take(1000))
+        val lookups = Vector.fill(200000)(randomOid) ++ millionOids.take(200000)
+        (1 to 3).foreach { _ =>
+          timeLookups(thousand, lookups)
+          timeLookups(million, lookups)
+        }
+        val smallNanos = timeLookups(thousand, lookups)
+        val largeNanos = timeLookups(million, lookups)
+        info(s"${lookups.length} lookups took ${smallNanos / 1000000} ms against 1,000 identifiers and ${largeNanos / 1000000} ms against 1,000,000 identifiers")
+        million.size shouldBe oneMillion
+        millionOids.take(200000).forall(million.contains) shouldBe true
+      }
+
+      it("should store 1,000,000 random identifiers in at most 10 bytes each and values that ZooKeeper can write", Benchmark) {
+        val size = stateSize(million)
+        info(s"1,000,000 random oids take $size bytes in ${million.toStateMap.size} keys")
+        million.toStateMap.values.foreach(_.length should be <= StateEncoding.maxStateValueLength)
+        size should be <= oneMillion * 10
+        ListedIdentifiers.fromStateMap(million.toStateMap).size shouldBe oneMillion
+      }
+
+      it("should keep the saved listing state under 1 MB with 1,000,000 identifiers at the latest timestamp and 1,000,000 indexed folders", Benchmark) {
+        val saved = SaveState(million, 42L, oneMillion).bounded()
+        val index = FolderIndex(millionOids.map(oid => ListedIdentifiers.hash(oid) -> random.nextInt).toMap)
+        val state = Map("listing.timestamp" -> saved.timestamp.toString) ++ saved.ids.toStateMap ++ index.toStateMap
+        info(s"The listing state takes ${StateEncoding.stateSize(state)} bytes in ${state.size} keys")
+        StateEncoding.stateSize(state) should be < StateEncoding.maxStateSize
+        state.values.foreach(_.length should be <= StateEncoding.maxStateValueLength)
+        saved shouldBe SaveState(ListedIdentifiers.empty, 43L, oneMillion)
+        FolderIndex.fromStateMap(state).markers.toSet.subsetOf(index.markers.toSet) shouldBe true
+      }
+
+      it("should store 1,000,000 sequential identifiers in a single key", Benchmark) {
+        val start = random.nextLong & 0x0fffffffffffffffL
+        val sequential = ListedIdentifiers.fromIdentifiers((0 until oneMillion).map(i => f"${start + i * 16}%016x"))
+        val size = stateSize(sequential)
+        info(s"1,000,000 sequential oids take $size bytes in ${sequential.toStateMap.size} keys")
+        sequential.toStateMap.size shouldBe 1
+        size should be < 64 * 1024
+      }
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import org.scalatest._
+
+class ListingCheckpointTest extends FunSpec with Matchers {
+
+  private val root = FolderToList("root", "/")
+  private val a = FolderToList("000000000000000a", "/a/", Some(1))
+  private val b = FolderToList("000000000000000b", "/b/", Some(2))
+
+  private def walk = ListingProgress.start(SaveState(ListedIdentifiers.empty, 0L, 0), None, 0L)
+    .walkStarted(List(root))
+    .folderDiscovered(root.path, a)
+    .folderDiscovered(root.path, b)
+    .fileListed(root.path, "0000000000000001", SaveState(ListedIdentifiers.empty + "0000000000000001", 1L, 1))
+    .fileListed(a.path, "0000000000000002", SaveState(ListedIdentifiers.empty + "0000000000000002", 2L, 2))
+
+  describe("ListingCheckpoint") {
+    it("should only hold the folders left to list and what was listed from each of them") {
+      val checkpoint = walk.folderListed(a.path).checkpoint()
+      checkpoint.frontier.map(_.folder).toSet shouldBe Set(root, b)
+      checkpoint.frontier.find(_.folder == root).map(_.discoveredFolders) shouldBe Some(ListedIdentifiers.fromIdentifiers(List(a.path, b.path)))
+      checkpoint.listedFiles shouldBe ListedIdentifiers.empty + "0000000000000001"
+    }
+
+    it("should round trip through the state map and resume the progress of each folder") {
+      val checkpoint = walk.checkpoint()
+      val restored = ListingCheckpoint.fromStateMap(checkpoint.toStateMap + ("listing.timestamp" -> "1"))
+      restored shouldBe Some(checkpoint.copy(progress = checkpoint.progress.copy(count = 0)))
+
+      val resumed = ListingProgress.start(restored.get.progress, restored, 0L).folderListed(root.path).folderListed(a.path)
+      resumed.checkpoint().frontier shouldBe List(FolderProgress(b, ListedIdentifiers.empty, ListedIdentifiers.empty))
+      resumed.checkpoint().listedFiles shouldBe ListedIdentifiers.empty
+    }
+
+    it("should not keep anything once every folder is listed") {
+      walk.folderListed(a.path).folderListed(b.path).folderListed(root.path).checkpoint().frontier shouldBe empty
+    }
+  }
+}
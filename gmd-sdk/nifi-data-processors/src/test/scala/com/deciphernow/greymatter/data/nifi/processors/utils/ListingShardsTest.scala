@@ -0,0 +1,92 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import cats.effect.concurrent.Ref
+import cats.effect.{ContextShift, IO}
+import com.deciphernow.greymatter.data.nifi.processors.ListFiles
+import org.apache.nifi.components.state.{Scope, StateMap}
+import org.apache.nifi.state.MockStateManager
+import org.scalatest._
+
+import scala.concurrent.ExecutionContext
+
+class ListingShardsTest extends FunSpec with Matchers {
+
+  implicit val ctxShift: ContextShift[IO] = IO.contextShift(ExecutionContext.global)
+
+  private val shards = (0 until 10000).map(i => f"${i * 7919L}%016x")
+  private val nodes = List("node-a", "node-b", "node-c", "node-d")
+
+  private def assignments(nodes: List[String]) = shards.map(shard => shard -> ListingShards.owner(shard, nodes)).toMap
+
+  describe("ListingShards") {
+    it("should spread the shards evenly across the nodes") {
+      val shardsPerNode = assignments(nodes).groupBy(_._2).mapValues(_.size)
+      shardsPerNode.keySet shouldBe nodes.toSet
+      shardsPerNode.values.foreach(_ should (be > shards.length / 5 and be < shards.length * 3 / 10))
+    }
+
+    it("should only move the shards of a node that leaves") {
+      val before = assignments(nodes)
+      val after = assignments(nodes.filterNot(_ == "node-b"))
+      before.collect { case (shard, owner) if owner != "node-b" => shard -> owner } shouldBe after.filterKeys(before(_) != "node-b")
+      after.values.toSet shouldBe Set("node-a", "node-c", "node-d")
+    }
+
+    it("should only move shards to a node that joins") {
+      val before = assignments(nodes)
+      val after = assignments("node-e" :: nodes)
+      after.collect { case (shard, owner) if owner != "node-e" => shard -> owner }.foreach { case (shard, owner) => before(shard) shouldBe owner }
+      after.values.count(_ == "node-e") should be > shards.length / 6
+    }
+
+    it("should assign every shard to the same node whatever the order of the nodes") {
+      assignments(nodes) shouldBe assignments(nodes.reverse)
+    }
+
+    it("should keep the id of a node in its local state") {
+      val stateManager = new MockStateManager(new ListFiles)
+      val nodeId = ListingShards.nodeId(stateManager).unsafeRunSync()
+      ListingShards.nodeId(stateManager).unsafeRunSync() shouldBe nodeId
+      stateManager.getState(Scope.LOCAL).get(ListingShards.localNodeIdKey) shouldBe nodeId
+    }
+
+    it("should give up updating the shared state after a bounded number of attempts") {
+      val attempts = new AtomicInteger(0)
+      val stateManager = new MockStateManager(new ListFiles) {
+        override def replace(oldValue: StateMap, newValue: java.util.Map[String, String], scope: Scope): Boolean = {
+          attempts.incrementAndGet()
+          false
+        }
+      }
+      ListingShards.heartbeat(stateManager, Scope.CLUSTER, "node-a", 0L, 1000L).attempt.unsafeRunSync().isLeft shouldBe true
+      attempts.get shouldBe ListingShards.maxUpdateAttempts
+    }
+
+    it("should renew the heartbeat during a walk and give up the shards another node owns") {
+      val stateManager = new MockStateManager(new ListFiles)
+      val now = System.currentTimeMillis
+      ListingShards.heartbeat(stateManager, Scope.CLUSTER, "node-b", now, 60000L).unsafeRunSync()
+      val lastHeartbeat = Ref[IO].of(0L).unsafeRunSync()
+      val byOwner = shards.groupBy(ListingShards.owner(_, List("node-a", "node-b")))
+      ListingShards.stillOwned(stateManager, Scope.CLUSTER, "node-a", 60000L, lastHeartbeat)(byOwner("node-b").head).unsafeRunSync() shouldBe false
+      lastHeartbeat.get.unsafeRunSync() should be >= now
+      ListingShards.heartbeat(stateManager, Scope.CLUSTER, "node-b", now, 60000L).unsafeRunSync() shouldBe List("node-a", "node-b")
+      ListingShards.stillOwned(stateManager, Scope.CLUSTER, "node-a", 60000L, lastHeartbeat)(byOwner("node-a").head).unsafeRunSync() shouldBe true
+    }
+
+    it("should not touch the shared state before a quarter of the expiration has passed") {
+      val stateManager = new MockStateManager(new ListFiles)
+      val lastHeartbeat = Ref[IO].of(System.currentTimeMillis).unsafeRunSync()
+      ListingShards.stillOwned(stateManager, Scope.CLUSTER, "node-a", 60000L, lastHeartbeat)(shards.head).unsafeRunSync() shouldBe true
+      stateManager.getState(Scope.CLUSTER).toMap.isEmpty shouldBe true
+    }
+
+    it("should split the size of the cluster state between the shards") {
+      val stateManager = new MockStateManager(new ListFiles)
+      val shard = ListingShard("000000000000000a", FolderToList("000000000000000a", "/a/"), recurse = true)
+      ListingShards.stateStore(stateManager, Scope.CLUSTER, shard, 10).maxSize * 10 should be < StateEncoding.maxStateSize
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicBoolean
+
+import com.deciphernow.greymatter.data.MockDistributedMapCache
+import com.deciphernow.greymatter.data.nifi.http.Metadata
+import io.circe.generic.auto._
+import io.circe.parser.decode
+import org.apache.nifi.distributed.cache.client.Serializer
+import org.scalatest._
+
+class PolicyReferencesTest extends FunSpec with Matchers {
+
+  private val metadata = decode[Metadata]("""{"parentoid":"fedcba9876543210","name":"file","objectpolicy":{"label":"everyone"},"action":"C","oid":"0123456789abcdef","tstamp":"16a7e1d8e8a0b000","isfile":true}""").right.get
+
+  describe("ListedAttributes") {
+    it("should store a policy again when storing it in the policy cache failed") {
+      val failNext = new AtomicBoolean(true)
+      val cache = new MockDistributedMapCache {
+        override def putIfAbsent[K, V](key: K, value: V, keySerializer: Serializer[K], valueSerializer: Serializer[V]): Boolean =
+          if (failNext.getAndSet(false)) throw new IOException("The cache server is unavailable") else super.putIfAbsent(key, value, keySerializer, valueSerializer)
+      }
+      val attributes = ListedAttributes(Set("policy"), Some(cache))
+      an[IOException] should be thrownBy attributes.of(metadata)
+      val hash = attributes.of(metadata)(PolicyReferences.hashAttribute)
+      PolicyReferences.resolve(cache, hash) shouldBe Some("""{"label":"everyone"}""")
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.io.ByteArrayInputStream
+
+import org.scalatest._
+
+import scala.collection.JavaConverters._
+
+class ResponseOutputTest extends FunSpec with Matchers {
+
+  private def extract(json: String, fields: String) = ResponseOutput.extractFields(new ByteArrayInputStream(json.getBytes), ResponseOutput.fieldList(fields)).asScala.toMap
+
+  describe("ResponseOutput") {
+    it("should extract top level and nested fields by their path") {
+      extract("""{"oid":"1","size":12,"policy":{"policy":["C","R"],"label":"U"},"name":"a.txt"}""", "oid, size, policy.label") shouldBe
+        Map("oid" -> "1", "size" -> "12", "policy.label" -> "U")
+    }
+
+    it("should render objects and arrays as JSON and leave out missing and null fields") {
+      extract("""{"objectpolicy":{"f":"own","a":[1,2]},"lisp":null,"security":["S"]}""", "objectpolicy,lisp,security,missing") shouldBe
+        Map("objectpolicy" -> """{"f":"own","a":[1,2]}""", "security" -> """["S"]""")
+    }
+  }
+}
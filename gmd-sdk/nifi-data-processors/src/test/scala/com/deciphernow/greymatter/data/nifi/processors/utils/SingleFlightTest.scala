@@ -0,0 +1,51 @@
+package com.deciphernow.greymatter.data.nifi.processors.utils
+
+import java.util.concurrent.CancellationException
+import java.util.concurrent.atomic.AtomicInteger
+
+import cats.effect.concurrent.Deferred
+import cats.effect.{ContextShift, IO, Timer}
+import cats.implicits._
+import org.scalatest._
+
+import scala.concurrent.ExecutionContext
+import scala.concurrent.duration._
+
+class SingleFlightTest extends FunSpec with Matchers {
+
+  implicit val ctxShift: ContextShift[IO] = IO.contextShift(ExecutionContext.global)
+
+  implicit val timer: Timer[IO] = IO.timer(ExecutionContext.global)
+
+  describe("SingleFlight") {
+    it("should run the effect of a key once for concurrent callers") {
+      val flights = new SingleFlight[IO, String, Int]
+      val runs = new AtomicInteger(0)
+      val results = (for {
+        started <- Deferred[IO, Unit]
+        leader <- flights("key")(started.complete(()) *> IO.sleep(100.millis) *> IO.delay(runs.incrementAndGet())).start
+        _ <- started.get
+        follower <- flights("key")(IO.delay(runs.incrementAndGet())).start
+        results <- (leader.join, follower.join).tupled
+      } yield results).unsafeRunSync()
+      results shouldBe ((1, 1))
+      runs.get shouldBe 1
+    }
+
+    it("should fail the waiting callers and forget the key when the running caller is cancelled") {
+      val flights = new SingleFlight[IO, String, Int]
+      val (followed, retried) = (for {
+        started <- Deferred[IO, Unit]
+        leader <- flights("key")(started.complete(()) *> IO.never).start
+        _ <- started.get
+        follower <- flights("key")(IO.pure(1)).start
+        _ <- IO.sleep(100.millis)
+        _ <- leader.cancel
+        followed <- follower.join.attempt.timeout(5.seconds)
+        retried <- flights("key")(IO.pure(2))
+      } yield (followed, retried)).unsafeRunSync()
+      followed.left.map(_.getClass) shouldBe Left(classOf[CancellationException])
+      retried shouldBe 2
+    }
+  }
+}
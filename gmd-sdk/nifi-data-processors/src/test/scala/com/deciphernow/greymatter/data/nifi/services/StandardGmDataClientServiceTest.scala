@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.deciphernow.greymatter.data.nifi.services
+
+import java.util.concurrent.TimeUnit
+
+import com.deciphernow.greymatter.data.nifi.processors.ListFiles
+import com.deciphernow.greymatter.data.nifi.properties.GmDataClientServiceProperties
+import org.apache.nifi.util.{TestRunner, TestRunners}
+import org.scalatest._
+
+import scala.concurrent.duration._
+
+class StandardGmDataClientServiceTest extends FunSpec with Matchers with GmDataClientServiceProperties {
+
+  import scala.collection.JavaConverters._
+
+  val serviceName = "gm-data-client"
+
+  private def runServiceTests(properties: Map[String, String] = Map())(serviceTests: (TestRunner, StandardGmDataClientService) => Unit) = {
+    val runner = TestRunners.newTestRunner(new ListFiles)
+    val service = new StandardGmDataClientService
+    runner.addControllerService(serviceName, service, properties.asJava)
+    runner.enableControllerService(service)
+    serviceTests(runner, service)
+  }
+
+  describe("StandardGmDataClientService") {
+    it("should hand out the same pooled client for the same SSL context and timeout") {
+      runServiceTests() { (_, service) =>
+        service.getClient(None, 5.seconds) should be theSameInstanceAs service.getClient(None, 5.seconds)
+        service.getClient(None, 5.seconds) should not be theSameInstanceAs(service.getClient(None, 10.seconds))
+      }
+    }
+
+    it("should share one connection pool and dispatcher between OkHttp clients derived from it") {
+      runServiceTests(Map(maxConnectionsProperty.getName -> "7", maxConnectionsPerHostProperty.getName -> "3")) { (_, service) =>
+        val pooled = service.getOkHttpClient(null)
+        val derived = pooled.newBuilder().readTimeout(1, TimeUnit.SECONDS).build()
+        derived.connectionPool should be theSameInstanceAs pooled.connectionPool
+        derived.dispatcher should be theSameInstanceAs pooled.dispatcher
+        pooled.dispatcher.getMaxRequests shouldBe 7
+        pooled.dispatcher.getMaxRequestsPerHost shouldBe 3
+      }
+    }
+
+    it("should release its clients when disabled and create new ones when enabled again") {
+      runServiceTests() { (runner, service) =>
+        val client = service.getClient(None, 5.seconds)
+        val okHttpClient = service.getOkHttpClient(null)
+        runner.disableControllerService(service)
+        okHttpClient.dispatcher.executorService.isShutdown shouldBe true
+        an[IllegalStateException] should be thrownBy service.getClient(None, 5.seconds)
+        runner.enableControllerService(service)
+        service.getClient(None, 5.seconds) should not be theSameInstanceAs(client)
+      }
+    }
+  }
+}